@@ -0,0 +1,104 @@
+package io.github.volyx.benchmark;
+
+import io.github.volyx.RecordWriter;
+import io.github.volyx.RecordsFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steady state operations on a file holding a fixed number of records. The file is
+ * recreated for every iteration. Run with -t to measure several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordsFileBenchmark {
+
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private File file;
+    private RecordsFile recordsFile;
+    private byte[] payload;
+    private final AtomicInteger inserted = new AtomicInteger();
+    private final AtomicInteger grown = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        file = File.createTempFile("records-file-bench", ".jdb");
+        payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte)1);
+        recordsFile = populate(file, records, payload, 2 * records);
+        inserted.set(0);
+        grown.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        recordsFile.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void insert() throws IOException {
+        recordsFile.insertRecord(record("new" + inserted.getAndIncrement(), payload));
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        return recordsFile.readRecord(randomKey()).getData();
+    }
+
+    @Benchmark
+    public void updateInPlace() throws IOException {
+        recordsFile.updateRecord(record(randomKey(), payload));
+    }
+
+    /**
+     * Every update is longer than the record's capacity, so the record is relocated.
+     */
+    @Benchmark
+    public void updateRelocate() throws IOException {
+        int n = grown.getAndIncrement();
+        byte[] data = new byte[payloadSize + 16 * (n / records + 1)];
+        recordsFile.updateRecord(record("key" + n % records, data));
+    }
+
+    @Benchmark
+    public RecordsFile reopen() throws IOException {
+        RecordsFile reopened = new RecordsFile(file.getPath(), "r");
+        reopened.close();
+        return reopened;
+    }
+
+    private String randomKey() {
+        return "key" + ThreadLocalRandom.current().nextInt(records);
+    }
+
+    static RecordsFile populate(File file, int records, byte[] payload, int initialSize) throws IOException {
+        file.delete();
+        RecordsFile recordsFile = new RecordsFile(file.getPath(), initialSize);
+        for (int i = 0; i < records; i++) {
+            recordsFile.insertRecord(record("key" + i, payload));
+        }
+        return recordsFile;
+    }
+
+    static RecordWriter record(String key, byte[] data) throws IOException {
+        RecordWriter rw = new RecordWriter(key);
+        rw.getOutputStream().write(data);
+        return rw;
+    }
+}
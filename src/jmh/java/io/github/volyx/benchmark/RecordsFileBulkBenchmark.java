@@ -0,0 +1,64 @@
+package io.github.volyx.benchmark;
+
+import io.github.volyx.RecordsFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations which use up the records of the file, timed once per freshly populated file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RecordsFileBulkBenchmark {
+
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private File file;
+    private RecordsFile recordsFile;
+    private byte[] payload;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        file = File.createTempFile("records-file-bench", ".jdb");
+        payload = new byte[payloadSize];
+        // the index is full, so every further insert has to move a record out of its way
+        recordsFile = RecordsFileBenchmark.populate(file, records, payload, records);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        recordsFile.close();
+        file.delete();
+    }
+
+    /**
+     * Deletes every record, in insertion order.
+     */
+    @Benchmark
+    public void deleteAll() throws IOException {
+        for (int i = 0; i < records; i++) {
+            recordsFile.deleteRecord("key" + i);
+        }
+    }
+
+    /**
+     * Doubles the number of records, growing the index through insureIndexSpace.
+     */
+    @Benchmark
+    public void insertWithIndexGrowth() throws IOException {
+        for (int i = 0; i < records; i++) {
+            recordsFile.insertRecord(RecordsFileBenchmark.record("grow" + i, payload));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.volyx.benchmark;
+
+import io.github.volyx.RecordsFileOptions;
+import io.github.volyx.ShardedRecordsFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inserts into a sharded file. Run with -t to see writes scale with the number of shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedRecordsFileBenchmark {
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private File dir;
+    private ShardedRecordsFile recordsFile;
+    private byte[] payload;
+    private final AtomicInteger inserted = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("sharded-bench", "");
+        dir.delete();
+        dir.mkdir();
+        payload = new byte[payloadSize];
+        recordsFile = new ShardedRecordsFile(new File(dir, "db").getPath(), shards, 1024, new RecordsFileOptions());
+        inserted.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        recordsFile.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void insert() throws IOException {
+        recordsFile.insertRecord(RecordsFileBenchmark.record("key" + inserted.getAndIncrement(), payload));
+    }
+}
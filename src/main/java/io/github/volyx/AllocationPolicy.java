@@ -0,0 +1,17 @@
+package io.github.volyx;
+
+/**
+ * Selects how free space inside existing records is chosen for a new record.
+ */
+public enum AllocationPolicy {
+    /**
+     * Uses the record with the smallest free space that can hold the new record.
+     */
+    BEST_FIT,
+    /**
+     * Rounds the requested length up to a power-of-two size class and takes the first
+     * record found in that class, falling back to best fit. Leaves remainders that are
+     * large enough to be reused by later records.
+     */
+    FIRST_FIT
+}
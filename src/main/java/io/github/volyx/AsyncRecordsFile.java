@@ -0,0 +1,273 @@
+package io.github.volyx;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations of a RecordsFile on its own I/O threads and returns futures, so that
+ * callers such as event loops are not blocked by the disk. Writes run on one thread in the
+ * order they are submitted. Reads are queued and each read thread takes all queued reads,
+ * up to a limit, and reads them together with RecordsFile.readRecords, so that many reads
+ * in flight become fewer, larger disk reads. A read is not ordered after writes which are
+ * still pending; chain on the write's future for that.
+ * <p>
+ * At most maxPending operations may be pending. Beyond that the returned future fails at
+ * once with a RejectedExecutionException, rather than blocking the caller. Futures are
+ * completed on the I/O threads, so dependent stages which block should use an executor
+ * of their own.
+ */
+public class AsyncRecordsFile {
+    // Most reads served by one call to readRecords.
+    private static final int MAX_COALESCED_READS = 256;
+
+    private final RecordsFile recordsFile;
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+    private final int readThreads;
+    private final int maxPending;
+    private final Semaphore pending;
+    private final Queue<PendingRead> reads = new ConcurrentLinkedQueue<PendingRead>();
+    // Number of read threads draining the read queue.
+    private final AtomicInteger drainers = new AtomicInteger();
+    // Set by close, which then waits on this object until no operation is pending.
+    private volatile boolean closing;
+    private final Runnable drainReads = new Runnable() {
+        public void run() {
+            try {
+                List<PendingRead> batch;
+                while (!(batch = pollReads()).isEmpty()) {
+                    read(batch);
+                }
+            } finally {
+                drainers.decrementAndGet();
+            }
+            // reads queued after the last poll may have found all read threads busy
+            scheduleReads();
+        }
+    };
+
+    /**
+     * Creates an asynchronous view of the records file with one read thread and at most
+     * 1024 pending operations.
+     */
+    public AsyncRecordsFile(RecordsFile recordsFile) {
+        this(recordsFile, 1, 1024);
+    }
+    public AsyncRecordsFile(RecordsFile recordsFile, int readThreads, int maxPending) {
+        if (readThreads < 1) {
+            throw new IllegalArgumentException("Bad thread count: " + readThreads);
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Bad pending limit: " + maxPending);
+        }
+        this.recordsFile = recordsFile;
+        this.readThreads = readThreads;
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+        readExecutor = Executors.newFixedThreadPool(readThreads, threadFactory("records-file-reader"));
+        writeExecutor = Executors.newSingleThreadExecutor(threadFactory("records-file-writer"));
+    }
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+    public RecordsFile getRecordsFile() {
+        return recordsFile;
+    }
+    /**
+     * Returns the number of operations submitted but not yet completed.
+     */
+    public int getPendingCount() {
+        return maxPending - pending.availablePermits();
+    }
+    /**
+     * Reads a record. The future fails with an IOException if the key does not exist.
+     */
+    public CompletableFuture<RecordReader> readRecordAsync(String key) {
+        CompletableFuture<RecordReader> future = new CompletableFuture<RecordReader>();
+        if (acquire(future)) {
+            reads.add(new PendingRead(key, future));
+            scheduleReads();
+        }
+        return future;
+    }
+    public CompletableFuture<Void> insertRecordAsync(final RecordWriter rw) {
+        return write(new Callable<Void>() {
+            public Void call() throws IOException {
+                recordsFile.insertRecord(rw);
+                return null;
+            }
+        });
+    }
+    public CompletableFuture<Void> updateRecordAsync(final RecordWriter rw) {
+        return write(new Callable<Void>() {
+            public Void call() throws IOException {
+                recordsFile.updateRecord(rw);
+                return null;
+            }
+        });
+    }
+    public CompletableFuture<Void> deleteRecordAsync(final String key) {
+        return write(new Callable<Void>() {
+            public Void call() throws IOException {
+                recordsFile.deleteRecord(key);
+                return null;
+            }
+        });
+    }
+    /**
+     * Waits for the pending operations and stops the I/O threads. The records file is not
+     * closed. Operations submitted afterwards fail with a RejectedExecutionException.
+     */
+    public void close() throws IOException {
+        writeExecutor.shutdown();
+        try {
+            writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            // the read threads stop once the queue is drained
+            synchronized (this) {
+                closing = true;
+                while (getPendingCount() > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing");
+        } finally {
+            readExecutor.shutdown();
+        }
+    }
+    private CompletableFuture<Void> write(final Callable<Void> operation) {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (!acquire(future)) {
+            return future;
+        }
+        try {
+            writeExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        operation.call();
+                        complete(future, null, null);
+                    } catch (Throwable e) {
+                        complete(future, null, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(future, null, e);
+        }
+        return future;
+    }
+    private boolean acquire(CompletableFuture<?> future) {
+        if (writeExecutor.isShutdown()) {
+            future.completeExceptionally(new RejectedExecutionException("Closed"));
+            return false;
+        }
+        if (!pending.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many pending operations"));
+            return false;
+        }
+        return true;
+    }
+    private <T> void complete(CompletableFuture<T> future, T value, Throwable error) {
+        pending.release();
+        if (closing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(value);
+        }
+    }
+    /**
+     * Starts another read thread on the queue, unless all of them are busy or it is empty.
+     */
+    private void scheduleReads() {
+        while (!reads.isEmpty()) {
+            int n = drainers.get();
+            if (n >= readThreads) {
+                return;
+            }
+            if (drainers.compareAndSet(n, n + 1)) {
+                try {
+                    readExecutor.execute(drainReads);
+                } catch (RejectedExecutionException e) {
+                    drainers.decrementAndGet();
+                    failReads(e);
+                }
+                return;
+            }
+        }
+    }
+    private List<PendingRead> pollReads() {
+        List<PendingRead> batch = new ArrayList<PendingRead>();
+        PendingRead r;
+        while (batch.size() < MAX_COALESCED_READS && (r = reads.poll()) != null) {
+            batch.add(r);
+        }
+        return batch;
+    }
+    private void failReads(Throwable error) {
+        PendingRead r;
+        while ((r = reads.poll()) != null) {
+            complete(r.future, null, error);
+        }
+    }
+    private void read(List<PendingRead> batch) {
+        // requests for the same key share one read
+        Map<String, List<PendingRead>> byKey = new LinkedHashMap<String, List<PendingRead>>();
+        for (PendingRead r : batch) {
+            List<PendingRead> same = byKey.get(r.key);
+            if (same == null) {
+                same = new ArrayList<PendingRead>(1);
+                byKey.put(r.key, same);
+            }
+            same.add(r);
+        }
+        List<String> keys = new ArrayList<String>(byKey.keySet());
+        RecordReader[] records;
+        try {
+            records = recordsFile.readRecords(keys);
+        } catch (Throwable e) {
+            for (PendingRead r : batch) {
+                complete(r.future, null, e);
+            }
+            return;
+        }
+        for (int i = 0; i < records.length; i++) {
+            List<PendingRead> same = byKey.get(keys.get(i));
+            // the first request gets the record last, after the others have copied it
+            for (int k = same.size() - 1; k >= 0; k--) {
+                PendingRead r = same.get(k);
+                if (records[i] == null) {
+                    complete(r.future, null, new IOException("Key not found: " + r.key));
+                } else if (k == 0) {
+                    complete(r.future, records[i], null);
+                } else {
+                    complete(r.future, recordsFile.newRecordReader(r.key, records[i].getData().clone()), null);
+                }
+            }
+        }
+    }
+
+    private static class PendingRead {
+        final String key;
+        final CompletableFuture<RecordReader> future;
+
+        PendingRead(String key, CompletableFuture<RecordReader> future) {
+            this.key = key;
+            this.future = future;
+        }
+    }
+}
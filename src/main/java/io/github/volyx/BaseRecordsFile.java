@@ -2,51 +2,338 @@ package io.github.volyx;
 
 import java.io.*;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Checksum;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public abstract class BaseRecordsFile {
     // The database file.
-    private RandomAccessFile file;
+    private Storage file;
+    // The write-ahead logged view of the database file, or null if it is not logged.
+    private LoggedStorage log;
+    // The outermost view of the database file, which saves the data of open snapshots
+    // before it is overwritten.
+    private SnapshotStorage snapshots;
+    // Decodes the objects of the records returned by readRecord.
+    private final RecordCodec codec;
+    // Compression of records whose writers do not choose one, and the length below which
+    // records are not compressed.
+    private final Compression compression;
+    private final int compressionThreshold;
+    // Unused capacity given to records, as a percentage of their length, and whether records
+    // which outgrow their capacity get room for growing as much again.
+    private final int padding;
+    private final boolean adaptivePadding;
+    // Counters and latencies, or null if metrics are disabled.
+    protected final RecordsFileMetrics metrics;
+    // Name under which the metrics are registered with JMX, or null.
+    private ObjectName mbeanName;
     // Current file pointer to the start of the record data.
     protected long dataStartPtr;
+    // File pointer to the first record data. Space between dataStartPtr and the first record,
+    // left by deleting the first record, is free and is used first when the index grows.
+    protected long firstRecordPtr;
     // Total length in bytes of the global database headers.
     protected static final int FILE_HEADERS_REGION_LENGTH = 16;
     // Number of bytes in the record header.
     protected static final int RECORD_HEADER_LENGTH = 16;
-    // The length of a key in the index.
-    protected static final int MAX_KEY_LENGTH = 64;
-    // The total length of one index entry - the key length plus the record header length.
-    protected static final int INDEX_ENTRY_LENGTH = MAX_KEY_LENGTH + RECORD_HEADER_LENGTH;
+    // The length of a key slot in the index of files without a format header.
+    protected static final int LEGACY_KEY_SLOT_LENGTH = 64;
+    // Version of the file format. Stored in the top byte of the format header, below it the
+    // key slot length. Files written before the header existed have 0 there, and version 2
+    // files with 64-byte key slots have the layout of those files.
+    protected static final int FORMAT_VERSION = 2;
+    // Version of files with checksums, whose index entries hold a checksum after each record
+    // header. Readers of version 2 refuse these files rather than misread them.
+    protected static final int CHECKSUM_FORMAT_VERSION = 3;
+    // Set in the format header while a file is open for writing on MappedStorage, which may
+    // leave it longer than its length, with the length in a trailer, if it is not closed. Only
+    // files with the flag are looked at for a trailer. Files without a format header never
+    // get it, and are left with a zero filled tail of unused space.
+    protected static final int MAPPED_FLAG = 1 << 23;
+    // Number of bytes in the checksum of a record.
+    protected static final int CHECKSUM_LENGTH = 4;
+    // True if the records carry checksums, which are verified when the data is read.
+    protected final boolean checksums;
+    // The length of a key slot in the index - the encoded key and its 2-byte length.
+    protected final int keySlotLength;
+    // The total length of one index entry - the key slot length plus the record header length,
+    // plus the checksum length in files with checksums.
+    protected final int indexEntryLength;
     // File pointer to the num records header.
     protected static final long NUM_RECORDS_HEADER_LOCATION = 0;
     // File pointer to the data start pointer header.
     protected static final long DATA_START_HEADER_LOCATION = 4;
+    // File pointer to the format header.
+    protected static final long FORMAT_HEADER_LOCATION = 12;
+    // Number of bytes of record data gathered before a batch writes them to the file.
+    protected static final int BATCH_WRITE_CHUNK = 1 << 20;
+    // Zeros written as the padding of records written by a batch.
+    private static final byte[] PADDING_ZEROS = new byte[4096];
+    // Longest single read made for several records, and the most unused bytes between two
+    // records which are still read as one.
+    protected static final int MAX_COALESCED_READ = 1 << 16;
+    protected static final int MAX_COALESCED_GAP = 1 << 12;
+    // Number of bytes buffered by a record output stream before they are written to the file.
+    protected static final int STREAM_CHUNK = 1 << 16;
+    /**
+     * Guards the file and the in-memory index. Reads hold the read lock and may run
+     * concurrently; mutations hold the write lock.
+     */
+    protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // File pointer to the record where incremental compaction continues.
+    private long compactCursor;
+    // Keys of the records being written by insertRecordStream. Guarded by the write lock.
+    private final Set<String> streamingKeys = new HashSet<String>();
+    // The storage below the log of a file open for writing on MappedStorage, whose format
+    // header has MAPPED_FLAG until it is closed, or null.
+    private Storage mappedFile;
     /**
      * Creates a new database file, initializing the appropriate headers. Enough space is allocated in
      * the index for the specified initial size.
      */
     protected BaseRecordsFile(String dbPath, int initialSize) throws IOException {
+        this(dbPath, initialSize, new RecordsFileOptions());
+    }
+    /**
+     * Creates a new database file on the storage selected by the options.
+     */
+    protected BaseRecordsFile(String dbPath, int initialSize, RecordsFileOptions options) throws IOException {
         File f = new File(dbPath);
         if (f.exists()) {
             throw new IOException("Database already exits: " + dbPath);
         }
-        file = new RandomAccessFile(f, "rw");
-        dataStartPtr = indexPositionToKeyFp(initialSize);  // Record Data Region starts were the
-        setFileLength(dataStartPtr);                       // (i+1)th index entry would start.
-        writeNumRecordsHeader(0);
-        writeDataStartPtrHeader(dataStartPtr);
+        File walFile = walFile(dbPath);
+        if (walFile.exists() && !walFile.delete()) {
+            throw new IOException("Cannot delete stale log: " + walFile);
+        }
+        codec = options.getCodec();
+        compression = options.getCompression();
+        compressionThreshold = options.getCompressionThreshold();
+        padding = options.getPadding();
+        adaptivePadding = options.isAdaptivePadding();
+        metrics = options.isMetrics() ? new RecordsFileMetrics(this, options.getMetricsListener()) : null;
+        file = openStorage(f, "rw", options, false);
+        keySlotLength = options.getMaxKeyLength() + 2;
+        checksums = options.isChecksums();
+        indexEntryLength = keySlotLength + RECORD_HEADER_LENGTH + (checksums ? CHECKSUM_LENGTH : 0);
+        try {
+            dataStartPtr = indexPositionToKeyFp(initialSize);  // Record Data Region starts were the
+            setFileLength(dataStartPtr);                       // (i+1)th index entry would start.
+            int version = checksums ? CHECKSUM_FORMAT_VERSION : FORMAT_VERSION;
+            int format = (version << 24) | keySlotLength;
+            if (options.isMemoryMapped()) {
+                format |= MAPPED_FLAG;
+                mappedFile = file;
+            }
+            file.writeInt(FORMAT_HEADER_LOCATION, format);
+            firstRecordPtr = dataStartPtr;
+            writeNumRecordsHeader(0);
+            writeDataStartPtrHeader(dataStartPtr);
+            if (options.isWriteAheadLog()) {
+                file.sync();
+                openLog(walFile, options);
+            }
+            file = snapshots = new SnapshotStorage(file);
+            registerMBean(f, options);
+        } catch (IOException e) {
+            throw closeAfterFailure(e);
+        } catch (RuntimeException e) {
+            throw closeAfterFailure(e);
+        }
     }
     /**
      * Opens an existing database file and initializes the dataStartPtr. The accessFlags
      * parameter can be "r" or "rw" -- as defined in RandomAccessFile.
      */
     protected BaseRecordsFile(String dbPath, String accessFlags) throws IOException {
+        this(dbPath, accessFlags, new RecordsFileOptions());
+    }
+    /**
+     * Opens an existing database file on the storage selected by the options.
+     */
+    protected BaseRecordsFile(String dbPath, String accessFlags, RecordsFileOptions options) throws IOException {
         File f = new File (dbPath);
         if(!f.exists()) {
             throw new IOException("Database not found: " + dbPath);
         }
-        file = new RandomAccessFile(f, accessFlags);
-        dataStartPtr = readDataStartHeader();
+        codec = options.getCodec();
+        compression = options.getCompression();
+        compressionThreshold = options.getCompressionThreshold();
+        padding = options.getPadding();
+        adaptivePadding = options.isAdaptivePadding();
+        metrics = options.isMetrics() ? new RecordsFileMetrics(this, options.getMetricsListener()) : null;
+        file = openStorage(f, accessFlags, options, isMappedFormat(f));
+        try {
+            File walFile = walFile(dbPath);
+            if (walFile.length() > 0) {
+                if (accessFlags.indexOf('w') < 0) {
+                    throw new IOException("Database has to be recovered, open it with \"rw\": " + dbPath);
+                }
+                WriteAheadLog.recover(walFile, file);
+            }
+            int format = readFormatHeader();
+            if (format != 0 && accessFlags.indexOf('w') >= 0) {
+                int flagged = options.isMemoryMapped() ? format | MAPPED_FLAG : format & ~MAPPED_FLAG;
+                if (flagged != format) {
+                    file.writeInt(FORMAT_HEADER_LOCATION, flagged);
+                }
+                if (options.isMemoryMapped()) {
+                    mappedFile = file;
+                }
+            }
+            // a file opened read only is never written, so it needs no log
+            if (options.isWriteAheadLog() && accessFlags.indexOf('w') >= 0) {
+                openLog(walFile, options);
+            }
+            keySlotLength = format == 0 ? LEGACY_KEY_SLOT_LENGTH : format & 0x7fffff;
+            checksums = format >>> 24 == CHECKSUM_FORMAT_VERSION;
+            indexEntryLength = keySlotLength + RECORD_HEADER_LENGTH + (checksums ? CHECKSUM_LENGTH : 0);
+            dataStartPtr = readDataStartHeader();
+            file = snapshots = new SnapshotStorage(file);
+            registerMBean(f, options);
+        } catch (IOException e) {
+            throw closeAfterFailure(e);
+        } catch (RuntimeException e) {
+            throw closeAfterFailure(e);
+        }
+    }
+    /**
+     * Closes the storage, and the log if it was opened, after a constructor failed. Returns
+     * the failure to be thrown, with any failure to close added to it.
+     */
+    protected <T extends Exception> T closeAfterFailure(T e) {
+        try {
+            if (mbeanName != null) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                mbeanName = null;
+            }
+        } catch (JMException unregisterFailure) {
+            e.addSuppressed(unregisterFailure);
+        }
+        try {
+            file.close();
+        } catch (IOException closeFailure) {
+            e.addSuppressed(closeFailure);
+        } catch (RuntimeException closeFailure) {
+            e.addSuppressed(closeFailure);
+        }
+        return e;
+    }
+    private Storage openStorage(File f, String accessFlags, RecordsFileOptions options, boolean trailer) throws IOException {
+        Storage storage = options.openStorage(f, accessFlags, trailer);
+        return metrics == null ? storage : new MeteredStorage(storage, metrics);
+    }
+    /**
+     * Returns true if the format header of the file has MAPPED_FLAG, so that the file may have
+     * been left longer than its length by MappedStorage.
+     */
+    private static boolean isMappedFormat(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            if (raf.length() < FILE_HEADERS_REGION_LENGTH) {
+                return false;
+            }
+            raf.seek(FORMAT_HEADER_LOCATION);
+            int format = raf.readInt();
+            return format >>> 24 != 0 && (format & MAPPED_FLAG) != 0;
+        } finally {
+            raf.close();
+        }
+    }
+    private void registerMBean(File f, RecordsFileOptions options) throws IOException {
+        if (!options.isJmx()) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("io.github.volyx:type=RecordsFile,path=" + ObjectName.quote(f.getAbsolutePath()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            mbeanName = name;
+        } catch (JMException e) {
+            throw new IOException("Cannot register metrics of " + f, e);
+        }
+    }
+    /**
+     * Returns the metrics of the file, or null if they are not enabled in the options.
+     */
+    public RecordsFileMetrics getMetrics() {
+        return metrics;
+    }
+    /**
+     * Returns the start time of an operation to be timed, or 0 if metrics are disabled or
+     * the operation is part of a mutation which is timed already.
+     */
+    protected long startOperation() {
+        return metrics == null || lock.isWriteLockedByCurrentThread() ? 0 : System.nanoTime();
+    }
+    /**
+     * Records the latency of an operation started by startOperation.
+     */
+    protected void endOperation(RecordOperation operation, String key, long start, boolean failed) {
+        if (start != 0) {
+            metrics.operationCompleted(operation, key, System.nanoTime() - start, failed);
+        }
+    }
+    /**
+     * Returns the write-ahead log file of a database.
+     */
+    protected static File walFile(String dbPath) {
+        return new File(dbPath + ".wal");
+    }
+    /**
+     * Stops the background flushes of the write-ahead log. Must be called by close before the
+     * write lock is taken, as a flush in progress waits for it.
+     */
+    protected void stopLogFlusher() {
+        if (log != null) {
+            log.stopFlusher();
+        }
+    }
+    private void openLog(File walFile, RecordsFileOptions options) throws IOException {
+        log = new LoggedStorage(file, new WriteAheadLog(walFile), options, lock.writeLock());
+        file = log;
+    }
+    /**
+     * Waits until the in-memory index can answer for the given key, or for every key if the
+     * key is null. Called before any lock is taken. The default index is always complete.
+     */
+    protected void awaitIndex(String key) throws IOException {
+    }
+    /**
+     * Starts a mutation by acquiring the write lock. Every mutation must end with endMutation().
+     */
+    protected void beginMutation() throws IOException {
+        awaitIndex(null);
+        lock.writeLock().lock();
+    }
+    /**
+     * Ends a mutation. When the outermost mutation ends and the file is logged, its changes
+     * are committed to the write-ahead log as one atomic record; the write lock is released
+     * before waiting for the record to reach the disk, so concurrent commits can share one
+     * force of the log. Changes made before a failure are committed as well, since the
+     * in-memory index already reflects them.
+     */
+    protected void endMutation() throws IOException {
+        long lsn = -1;
+        try {
+            if (log != null && lock.getWriteHoldCount() == 1) {
+                lsn = log.commit();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (lsn >= 0) {
+            log.awaitDurable(lsn);
+        }
     }
     /**
      * Returns an Enumeration of the keys of all records in the database.
@@ -71,7 +358,7 @@ public abstract class BaseRecordsFile {
     /**
      * Returns the record to which the target file pointer belongs - meaning the specified location
      * in the file is part of the record data of the RecordHeader which is returned.  Returns null if
-     * the location is not part of a record. (O(n) mem accesses)
+     * the location is not part of a record.
      */
     protected abstract RecordHeader getRecordAt(long targetFp) throws IOException;
     protected long getFileLength() throws IOException {
@@ -84,81 +371,192 @@ public abstract class BaseRecordsFile {
      * Reads the number of records header from the file.
      */
     protected int readNumRecordsHeader() throws IOException {
-        file.seek(NUM_RECORDS_HEADER_LOCATION);
-        return file.readInt();
+        return file.readInt(NUM_RECORDS_HEADER_LOCATION);
     }
     /**
      * Writes the number of records header to the file.
      */
     protected void writeNumRecordsHeader(int numRecords) throws IOException {
-        file.seek(NUM_RECORDS_HEADER_LOCATION);
-        file.writeInt(numRecords);
+        file.writeInt(NUM_RECORDS_HEADER_LOCATION, numRecords);
     }
     /**
      * Reads the data start pointer header from the file.
      */
     protected long readDataStartHeader() throws IOException {
-        file.seek(DATA_START_HEADER_LOCATION);
-        return file.readLong();
+        return file.readLong(DATA_START_HEADER_LOCATION);
+    }
+    /**
+     * Reads and checks the format header, which is 0 in files written before it existed.
+     */
+    private int readFormatHeader() throws IOException {
+        int format = file.readInt(FORMAT_HEADER_LOCATION);
+        int version = format >>> 24;
+        if (version == 0) {
+            return 0;
+        }
+        int slotLength = format & 0x7fffff;
+        if (version != FORMAT_VERSION && version != CHECKSUM_FORMAT_VERSION || slotLength < 3) {
+            throw new IOException("Unsupported file format: " + Integer.toHexString(format));
+        }
+        return format;
+    }
+    /**
+     * Returns the longest key, in bytes of modified UTF-8, which the index of this file holds.
+     */
+    public int getMaxKeyLength() {
+        return keySlotLength - 2;
+    }
+    /**
+     * Returns true if the records of this file carry checksums.
+     */
+    public boolean hasChecksums() {
+        return checksums;
+    }
+    /**
+     * Throws a CorruptRecordException if the file has checksums and the stored data of the
+     * record, len bytes at off, does not match the checksum of its header.
+     */
+    protected void verifyChecksum(RecordHeader header, byte[] buf, int off) throws CorruptRecordException {
+        if (checksums && Crc32c.compute(buf, off, header.dataCount) != header.checksum) {
+            checksumFailed(header);
+        }
+    }
+    /**
+     * Like verifyChecksum, for the remaining bytes of a buffer.
+     */
+    protected void verifyChecksum(RecordHeader header, ByteBuffer buf) throws CorruptRecordException {
+        if (checksums && Crc32c.compute(buf) != header.checksum) {
+            checksumFailed(header);
+        }
+    }
+    private void checksumFailed(RecordHeader header) throws CorruptRecordException {
+        if (metrics != null) {
+            metrics.checksumFailures.increment();
+        }
+        throw new CorruptRecordException("Checksum mismatch in the record at " + header.dataPointer);
+    }
+    /**
+     * Returns the checksum to store with the data of a record, or 0 if the file has none.
+     */
+    protected int checksum(byte[] data, int off, int len) {
+        return checksums ? Crc32c.compute(data, off, len) : 0;
     }
     /**
      * Writes the data start pointer header to the file.
      */
     protected void writeDataStartPtrHeader(long dataStartPtr) throws IOException {
-        file.seek(DATA_START_HEADER_LOCATION);
-        file.writeLong(dataStartPtr);
+        file.writeLong(DATA_START_HEADER_LOCATION, dataStartPtr);
     }
     /**
      * Returns a file pointer in the index pointing to the first byte
      * in the key located at the given index position.
      */
     protected long indexPositionToKeyFp(int pos) {
-        return FILE_HEADERS_REGION_LENGTH + (INDEX_ENTRY_LENGTH * pos);
+        return FILE_HEADERS_REGION_LENGTH + ((long)indexEntryLength * pos);
     }
     /**
      * Returns a file pointer in the index pointing to the first byte
      * in the record pointer located at the given index position.
      */
     long indexPositionToRecordHeaderFp(int pos) {
-        return indexPositionToKeyFp(pos) + MAX_KEY_LENGTH;
+        return indexPositionToKeyFp(pos) + keySlotLength;
     }
     /**
      * Reads the ith key from the index.
      */
     String readKeyFromIndex(int position) throws IOException {
-        file.seek(indexPositionToKeyFp(position));
-        return file.readUTF();
+        byte[] buf = new byte[keySlotLength];
+        file.read(indexPositionToKeyFp(position), buf, 0, keySlotLength);
+        return decodeKey(buf, 0);
+    }
+    /**
+     * Decodes a key written by DataOutput.writeUTF at the given offset. ASCII keys, the
+     * common case, are decoded without going through a DataInputStream.
+     */
+    String decodeKey(byte[] buf, int off) throws IOException {
+        int len = ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+        if (len > keySlotLength - 2) {
+            throw new IOException("Corrupt key in index, length " + len);
+        }
+        for (int i = off + 2; i < off + 2 + len; i++) {
+            if (buf[i] <= 0) {
+                return new DataInputStream(new ByteArrayInputStream(buf, off, len + 2)).readUTF();
+            }
+        }
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char)buf[off + 2 + i];
+        }
+        return new String(chars);
+    }
+    /**
+     * Reads count consecutive entries of the index, starting at the given position, with a
+     * single read, and decodes their keys and record headers.
+     */
+    protected void readIndexEntries(int position, int count, String[] keys, RecordHeader[] headers) throws IOException {
+        byte[] buf = new byte[count * indexEntryLength];
+        file.read(indexPositionToKeyFp(position), buf, 0, buf.length);
+        for (int i = 0; i < count; i++) {
+            int off = i * indexEntryLength;
+            keys[i] = decodeKey(buf, off);
+            RecordHeader h = new RecordHeader();
+            h.read(buf, off + keySlotLength, checksums);
+            h.setIndexPosition(position + i);
+            headers[i] = h;
+        }
     }
     /**
      * Reads the ith record header from the index.
      */
     RecordHeader readRecordHeaderFromIndex(int position) throws IOException {
-        file.seek(indexPositionToRecordHeaderFp(position));
-        return RecordHeader.readHeader(file);
+        RecordHeader r = new RecordHeader();
+        r.read(file, indexPositionToRecordHeaderFp(position), checksums);
+        return r;
     }
     /**
      * Writes the ith record header to the index.
      */
     protected void writeRecordHeaderToIndex(RecordHeader header) throws IOException {
-        file.seek(indexPositionToRecordHeaderFp(header.indexPosition));
-        header.write(file);
+        header.write(file, indexPositionToRecordHeaderFp(header.indexPosition), checksums);
     }
     /**
-     * Appends an entry to end of index. Assumes that insureIndexSpace() has already been called.
+     * Encodes a key as written by DataOutput.writeUTF and checks that it fits in the index.
      */
-    protected void addEntryToIndex(String key, RecordHeader newRecord, int currentNumRecords) throws IOException {
-        DbByteArrayOutputStream temp = new DbByteArrayOutputStream(MAX_KEY_LENGTH);
+    protected DbByteArrayOutputStream encodeKey(String key) throws IOException {
+        DbByteArrayOutputStream temp = new DbByteArrayOutputStream(Math.min(keySlotLength, 2 + 3 * key.length()));
         (new DataOutputStream(temp)).writeUTF(key);
-        if (temp.size() > MAX_KEY_LENGTH) {
-            throw new IOException("Key is larger than permitted size of " + MAX_KEY_LENGTH + " bytes");
+        if (temp.size() > keySlotLength) {
+            throw new IOException("Key is larger than permitted size of " + keySlotLength + " bytes");
         }
-        file.seek(indexPositionToKeyFp(currentNumRecords));
-        temp.writeTo(file);
-        file.seek(indexPositionToRecordHeaderFp(currentNumRecords));
-        newRecord.write(file);
+        return temp;
+    }
+    /**
+     * Appends an entry to end of index. Assumes that insureIndexSpace() has already been called.
+     */
+    protected void addEntryToIndex(String key, RecordHeader newRecord, int currentNumRecords) throws IOException {
+        DbByteArrayOutputStream temp = encodeKey(key);
+        temp.writeTo(file, indexPositionToKeyFp(currentNumRecords));
+        newRecord.write(file, indexPositionToRecordHeaderFp(currentNumRecords), checksums);
         newRecord.setIndexPosition(currentNumRecords);
         writeNumRecordsHeader(currentNumRecords+1);
     }
+    /**
+     * Appends a run of entries to the end of the index with a single write, and updates the
+     * num records header once. Assumes that insureIndexSpace() has already been called.
+     */
+    protected void addEntriesToIndex(List<String> keys, List<RecordHeader> newRecords, int currentNumRecords) throws IOException {
+        byte[] entries = new byte[indexEntryLength * keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            DbByteArrayOutputStream temp = encodeKey(keys.get(i));
+            RecordHeader h = newRecords.get(i);
+            int off = indexEntryLength * i;
+            System.arraycopy(temp.toByteArray(), 0, entries, off, temp.size());
+            h.write(entries, off + keySlotLength, checksums);
+            h.setIndexPosition(currentNumRecords + i);
+        }
+        file.write(indexPositionToKeyFp(currentNumRecords), entries, 0, entries.length);
+        writeNumRecordsHeader(currentNumRecords + keys.size());
+    }
     /**
      * Removes the record from the index. Replaces the target with the entry at the
      * end of the index.
@@ -168,60 +566,692 @@ public abstract class BaseRecordsFile {
             String lastKey = readKeyFromIndex(currentNumRecords-1);
             RecordHeader last  = keyToRecordHeader(lastKey);
             last.setIndexPosition(header.indexPosition);
-            file.seek(indexPositionToKeyFp(last.indexPosition));
-            file.writeUTF(lastKey);
-            file.seek(indexPositionToRecordHeaderFp(last.indexPosition));
-            last.write(file);
+            encodeKey(lastKey).writeTo(file, indexPositionToKeyFp(last.indexPosition));
+            last.write(file, indexPositionToRecordHeaderFp(last.indexPosition), checksums);
         }
         writeNumRecordsHeader(currentNumRecords-1);
     }
     /**
      * Adds the given record to the database.
      */
-    public synchronized void insertRecord(RecordWriter rw) throws IOException {
-        String key = rw.getKey();
-        if (recordExists(key)) {
-            throw new IOException("Key exists: " + key);
+    public void insertRecord(RecordWriter rw) throws IOException {
+        rw = compressRecord(rw);
+        insertRecord(rw, paddedCapacity(rw.getDataLength(), 0), false);
+    }
+    /**
+     * Adds a record whose data has been compressed already, with the given capacity, and
+     * marked as grown if it is an update which outgrew its record.
+     */
+    private void insertRecord(RecordWriter rw, int capacity, boolean grown) throws IOException {
+        beginMutation();
+        try {
+            String key = rw.getKey();
+            if (recordExists(key)) {
+                throw new IOException("Key exists: " + key);
+            }
+            insureIndexSpace(getNumRecords() + 1);
+            RecordHeader newRecord = allocateRecord(key, capacity);
+            newRecord.grown = grown;
+            writeRecordData(newRecord, rw);
+            addEntryToIndex(key, newRecord, getNumRecords());
+        } finally {
+            endMutation();
         }
-        insureIndexSpace(getNumRecords() + 1);
-        RecordHeader newRecord = allocateRecord(key, rw.getDataLength());
-        writeRecordData(newRecord, rw);
-        addEntryToIndex(key, newRecord, getNumRecords());
     }
     /**
-     * Updates an existing record. If the new contents do not fit in the original record,
-     * then the update is handled by deleting the old record and adding the new.
+     * Returns the capacity to allocate for a record of dataLength bytes, which has just grown
+     * by growth bytes: its length plus the padding.
      */
-    public synchronized void updateRecord(RecordWriter rw) throws IOException {
-        RecordHeader header = keyToRecordHeader(rw.getKey());
-        if (rw.getDataLength() > header.dataCapacity) {
-            deleteRecord(rw.getKey());
-            insertRecord(rw);
-        } else {
+    protected int paddedCapacity(int dataLength, int growth) {
+        long capacity = dataLength + (long)dataLength * padding / 100;
+        if (adaptivePadding && growth > 0) {
+            capacity = Math.max(capacity, (long)dataLength + growth);
+        }
+        return (int)Math.min(capacity, Integer.MAX_VALUE);
+    }
+    /**
+     * Returns the capacity a record keeps for itself: its data and padding, and room to grow
+     * if it grew with adaptive padding. Free space beyond it may be split off for other records.
+     */
+    protected int reservedCapacity(RecordHeader header) {
+        return RecordHeader.reservedCapacity(header.dataCount, padding, adaptivePadding && header.grown);
+    }
+    /**
+     * Grows a record in place to the given capacity, for data which outgrew its own capacity.
+     * Free space after a record is part of its capacity, so only the last record in the file,
+     * which grows with the file, can grow; for any other record this returns false and the
+     * record is moved instead, so that no other record is moved or loses its padding. The
+     * header is not written to the file.
+     */
+    private boolean growRecord(RecordHeader header, int capacity) throws IOException {
+        if (header.dataPointer + header.dataCapacity != getFileLength()) {
+            return false;
+        }
+        setFileLength(header.dataPointer + capacity);
+        header.dataCapacity = capacity;
+        if (metrics != null) {
+            metrics.inPlaceGrowths.increment();
+        }
+        return true;
+    }
+    /**
+     * Inserts a record with room for capacity bytes and returns a stream which writes its
+     * data straight to the file, a chunk at a time, so that the data need not fit in memory.
+     * The record exists from the start and holds the data written so far; closing the stream
+     * ends it. Writing more than capacity bytes fails. A failed write deletes the record and
+     * closes the stream. Streamed records are not compressed.
+     */
+    public OutputStream insertRecordStream(String key, int capacity) throws IOException {
+        beginMutation();
+        try {
+            if (recordExists(key)) {
+                throw new IOException("Key exists: " + key);
+            }
+            insureIndexSpace(getNumRecords() + 1);
+            RecordHeader newRecord = allocateRecord(key, capacity);
+            addEntryToIndex(key, newRecord, getNumRecords());
+            streamingKeys.add(key);
+        } finally {
+            endMutation();
+        }
+        return new BufferedOutputStream(new RecordOutputStream(key, capacity), STREAM_CHUNK);
+    }
+    /**
+     * Appends data to a record being written by insertRecordStream, at the given offset,
+     * which must be the length of the data written so far. checksum is that of all the data
+     * up to the end of the chunk.
+     */
+    protected void writeRecordChunk(String key, int offset, byte[] b, int off, int len, int checksum) throws IOException {
+        beginMutation();
+        try {
+            RecordHeader header = keyToRecordHeader(key);
+            if (!streamingKeys.contains(key) || header.dataCount != offset) {
+                throw new IOException("Record changed while streaming: " + key);
+            }
+            if (offset + len > header.dataCapacity) {
+                throw new IOException("Record data does not fit");
+            }
+            file.write(header.dataPointer + offset, b, off, len);
+            header.dataCount = offset + len;
+            header.checksum = checksum;
+            writeRecordHeaderToIndex(header);
+        } finally {
+            endMutation();
+        }
+    }
+    private void endRecordStream(String key) throws IOException {
+        beginMutation();
+        try {
+            streamingKeys.remove(key);
+        } finally {
+            endMutation();
+        }
+    }
+    /**
+     * Deletes a record whose stream failed, unless it has been updated or deleted since.
+     */
+    private void abortRecordStream(String key) throws IOException {
+        beginMutation();
+        try {
+            if (streamingKeys.remove(key)) {
+                deleteRecord(key);
+            }
+        } finally {
+            endMutation();
+        }
+    }
+    /**
+     * Checks if the record is being written by insertRecordStream, in which case its unused
+     * capacity is reserved for the stream.
+     */
+    protected boolean isStreaming(RecordHeader r) throws IOException {
+        for (String key : streamingKeys) {
+            if (keyToRecordHeader(key).dataPointer == r.dataPointer) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Writes the data of a record being streamed by insertRecordStream.
+     */
+    private class RecordOutputStream extends OutputStream {
+        private final String key;
+        private final int capacity;
+        private final Checksum checksum = checksums ? Crc32c.newChecksum() : null;
+        private int written;
+        private boolean closed;
+
+        RecordOutputStream(String key, int capacity) {
+            this.key = key;
+            this.capacity = capacity;
+        }
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len > capacity - written) {
+                throw abort(new IOException("Record data does not fit"));
+            }
+            if (len > 0) {
+                if (checksum != null) {
+                    checksum.update(b, off, len);
+                }
+                try {
+                    writeRecordChunk(key, written, b, off, len, checksum == null ? 0 : (int)checksum.getValue());
+                } catch (IOException e) {
+                    throw abort(e);
+                } catch (RuntimeException e) {
+                    throw abort(e);
+                }
+                written += len;
+            }
+        }
+        /**
+         * Closes the stream and deletes the record after a failed write, so that no partial
+         * record is left. Returns the failure, with any failure to delete added to it.
+         */
+        private <T extends Exception> T abort(T e) {
+            closed = true;
+            try {
+                abortRecordStream(key);
+            } catch (IOException abortFailure) {
+                e.addSuppressed(abortFailure);
+            } catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            return e;
+        }
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                endRecordStream(key);
+            }
+        }
+    }
+    /**
+     * Inserts or updates a group of records. Records which are updated in place are written
+     * as by updateRecord. All other records are given one contiguous region at the end of the
+     * file: index space is reserved once, the data is written sequentially in large chunks,
+     * the index entries are written with a single write and the num records header is updated
+     * once. A key may appear only once in a batch.
+     */
+    public void writeBatch(Collection<RecordWriter> writers) throws IOException {
+        writeCompressedBatch(compressRecords(writers));
+    }
+    /**
+     * Writes a batch whose records have been through compressRecords already.
+     */
+    protected void writeCompressedBatch(Collection<RecordWriter> writers) throws IOException {
+        beginMutation();
+        try {
+            Set<String> keys = new HashSet<String>();
+            for (RecordWriter rw : writers) {
+                if (!keys.add(rw.getKey())) {
+                    throw new IOException("Duplicate key in batch: " + rw.getKey());
+                }
+                encodeKey(rw.getKey());
+            }
+            List<RecordWriter> inserts = new ArrayList<RecordWriter>();
+            List<Integer> capacities = new ArrayList<Integer>();
+            Set<String> grownKeys = new HashSet<String>();
+            long totalLength = 0;
+            for (RecordWriter rw : writers) {
+                int length = rw.getDataLength();
+                int capacity = paddedCapacity(length, 0);
+                if (recordExists(rw.getKey())) {
+                    RecordHeader header = keyToRecordHeader(rw.getKey());
+                    if (length > header.dataCapacity) {
+                        capacity = paddedCapacity(length, length - header.dataCount);
+                        if (adaptivePadding) {
+                            header.grown = true;
+                            grownKeys.add(rw.getKey());
+                        }
+                    }
+                    if (length <= header.dataCapacity || growRecord(header, capacity)) {
+                        streamingKeys.remove(rw.getKey());
+                        writeRecordData(header, rw);
+                        writeRecordHeaderToIndex(header);
+                        continue;
+                    }
+                    deleteRecord(rw.getKey());
+                }
+                inserts.add(rw);
+                capacities.add(capacity);
+                totalLength += capacity;
+            }
+            if (inserts.isEmpty()) {
+                return;
+            }
+            int currentNumRecords = getNumRecords();
+            insureIndexSpace(currentNumRecords + inserts.size());
+            long fp = getFileLength();
+            setFileLength(fp + totalLength);
+            List<String> newKeys = new ArrayList<String>(inserts.size());
+            List<RecordHeader> newRecords = new ArrayList<RecordHeader>(inserts.size());
+            DbByteArrayOutputStream chunk = new DbByteArrayOutputStream((int)Math.min(totalLength, BATCH_WRITE_CHUNK));
+            DataOutputStream chunkOut = new DataOutputStream(chunk);
+            long chunkFp = fp;
+            for (int i = 0; i < inserts.size(); i++) {
+                RecordWriter rw = inserts.get(i);
+                RecordHeader header = new RecordHeader(fp, capacities.get(i));
+                header.grown = grownKeys.contains(rw.getKey());
+                header.dataCount = rw.getDataLength();
+                header.compressed = rw.compressed;
+                header.checksum = checksum(rw.out.getBuffer(), 0, rw.getDataLength());
+                rw.writeTo((DataOutput)chunkOut);
+                // the padding is written too, so that the records stay in one sequential write
+                for (int pad = header.dataCapacity - header.dataCount; pad > 0; pad -= PADDING_ZEROS.length) {
+                    chunkOut.write(PADDING_ZEROS, 0, Math.min(pad, PADDING_ZEROS.length));
+                }
+                fp += header.dataCapacity;
+                if (chunk.size() >= BATCH_WRITE_CHUNK) {
+                    chunk.writeTo(file, chunkFp);
+                    chunk.reset();
+                    chunkFp = fp;
+                }
+                newKeys.add(rw.getKey());
+                newRecords.add(header);
+            }
+            chunk.writeTo(file, chunkFp);
+            addEntriesToIndex(newKeys, newRecords, currentNumRecords);
+        } finally {
+            endMutation();
+        }
+    }
+    /**
+     * Returns a writer holding the compressed data of the given writer, or the writer itself
+     * if compression is off for it, it is shorter than the threshold or does not compress
+     * well. Called before the write lock is taken.
+     */
+    protected RecordWriter compressRecord(RecordWriter rw) {
+        Compression method = rw.getCompression() != null ? rw.getCompression() : compression;
+        if (method == Compression.NONE || rw.compressed || rw.getDataLength() < compressionThreshold) {
+            return rw;
+        }
+        byte[] packed = RecordCompressor.compress(method, rw.out.getBuffer(), 0, rw.getDataLength());
+        return packed == null ? rw : new RecordWriter(rw.getKey(), packed, rw.getCodec());
+    }
+    /**
+     * Applies compressRecord to each writer of a batch.
+     */
+    protected Collection<RecordWriter> compressRecords(Collection<RecordWriter> writers) {
+        if (compression == Compression.NONE) {
+            boolean any = false;
+            for (RecordWriter rw : writers) {
+                any |= rw.getCompression() != null && rw.getCompression() != Compression.NONE;
+            }
+            if (!any) {
+                return writers;
+            }
+        }
+        List<RecordWriter> compressed = new ArrayList<RecordWriter>(writers.size());
+        for (RecordWriter rw : writers) {
+            compressed.add(compressRecord(rw));
+        }
+        return compressed;
+    }
+    /**
+     * Updates an existing record. If the new contents do not fit in the original record, the
+     * record grows in place if it can, and otherwise the update is handled by deleting the
+     * old record and adding the new.
+     */
+    public void updateRecord(RecordWriter rw) throws IOException {
+        updateCompressedRecord(compressRecord(rw));
+    }
+    /**
+     * Updates a record with a writer which has been through compressRecord already.
+     */
+    protected void updateCompressedRecord(RecordWriter rw) throws IOException {
+        beginMutation();
+        try {
+            RecordHeader header = keyToRecordHeader(rw.getKey());
+            int length = rw.getDataLength();
+            if (length > header.dataCapacity) {
+                int capacity = paddedCapacity(length, length - header.dataCount);
+                header.grown |= adaptivePadding;
+                if (!growRecord(header, capacity)) {
+                    deleteRecord(rw.getKey());
+                    insertRecord(rw, capacity, adaptivePadding);
+                    return;
+                }
+            }
+            streamingKeys.remove(rw.getKey());
             writeRecordData(header, rw);
             writeRecordHeaderToIndex(header);
+        } finally {
+            endMutation();
         }
     }
     /**
      * Reads a record.
      */
-    public synchronized RecordReader readRecord(String key) throws IOException {
-        byte[] data = readRecordData(key);
-        return new RecordReader(key, data);
+    public RecordReader readRecord(String key) throws IOException {
+        awaitIndex(key);
+        lock.readLock().lock();
+        try {
+            byte[] data = readRecordData(key);
+            return newRecordReader(key, data);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Returns a stream over the data of a record, read from the file as it is consumed.
+     */
+    public InputStream readRecordStream(String key) throws IOException {
+        return Channels.newInputStream(readRecordChannel(key));
+    }
+    /**
+     * Returns a channel over the data of a record, read from the file as it is consumed, so
+     * that large records are served in constant memory. The channel reads the data the
+     * record had when it was opened and follows the record if it is moved; it fails if the
+     * record is deleted or shrunk, and an update in place may be seen part way. Compressed
+     * records are decompressed into memory when the channel is opened.
+     */
+    public ReadableByteChannel readRecordChannel(String key) throws IOException {
+        awaitIndex(key);
+        lock.readLock().lock();
+        try {
+            RecordHeader header = keyToRecordHeader(key);
+            if (header.compressed) {
+                return Channels.newChannel(new ByteArrayInputStream(readUncompressedData(header)));
+            }
+            return new RecordChannel(key, header.dataCount, header.checksum);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Reads the data of an uncompressed record, looking the record up for each read. The
+     * checksum is verified with the last read, unless the record has changed since the
+     * channel was opened.
+     */
+    private class RecordChannel implements ReadableByteChannel {
+        private final String key;
+        private final int length;
+        private final int expectedChecksum;
+        private final Checksum checksum = checksums ? Crc32c.newChecksum() : null;
+        private int position;
+        private boolean open = true;
+
+        RecordChannel(String key, int length, int expectedChecksum) {
+            this.key = key;
+            this.length = length;
+            this.expectedChecksum = expectedChecksum;
+        }
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), length - position);
+            if (n == 0) {
+                return 0;
+            }
+            awaitIndex(key);
+            lock.readLock().lock();
+            try {
+                RecordHeader header = keyToRecordHeader(key);
+                if (header.compressed || header.dataCount < length) {
+                    throw new IOException("Record changed while streaming: " + key);
+                }
+                ByteBuffer target = dst.duplicate();
+                target.limit(target.position() + n);
+                file.read(header.dataPointer + position, target);
+                if (checksum != null) {
+                    update(dst, target.position());
+                    if (position + n == length && header.dataCount == length && header.checksum == expectedChecksum
+                            && (int)checksum.getValue() != expectedChecksum) {
+                        checksumFailed(header);
+                    }
+                }
+                dst.position(target.position());
+            } finally {
+                lock.readLock().unlock();
+            }
+            position += n;
+            return n;
+        }
+        // Adds the bytes of dst from its position to end to the checksum.
+        private void update(ByteBuffer dst, int end) {
+            if (dst.hasArray()) {
+                checksum.update(dst.array(), dst.arrayOffset() + dst.position(), end - dst.position());
+                return;
+            }
+            ByteBuffer src = dst.duplicate();
+            src.limit(end);
+            byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+            while (src.hasRemaining()) {
+                int k = Math.min(src.remaining(), chunk.length);
+                src.get(chunk, 0, k);
+                checksum.update(chunk, 0, k);
+            }
+        }
+        public boolean isOpen() {
+            return open;
+        }
+        public void close() {
+            open = false;
+        }
+    }
+    /**
+     * Opens a snapshot of the given copies of the index entries. Called with the read lock
+     * held, so that no write comes between copying the index and registering the snapshot.
+     */
+    protected RecordsSnapshot openSnapshot(Map<String, RecordHeader> records) {
+        RecordsSnapshot snapshot = new RecordsSnapshot(this, records);
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+    void removeSnapshot(RecordsSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+    /**
+     * Reads a record of a snapshot, from the file or from the snapshot's spill file.
+     */
+    RecordReader readSnapshotRecord(RecordsSnapshot snapshot, String key, RecordHeader header) throws IOException {
+        lock.readLock().lock();
+        try {
+            byte[] data = snapshot.readData(header, file);
+            verifyChecksum(header, data, 0);
+            if (header.compressed) {
+                data = RecordCompressor.decompress(data, 0, data.length);
+            }
+            return newRecordReader(key, data);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Returns a reader for record data, which decodes objects with the file's codec.
+     */
+    protected RecordReader newRecordReader(String key, byte[] data) {
+        return new RecordReader(key, data, codec);
+    }
+    /**
+     * Reads the data of a record into the buffer, starting at its position, without
+     * allocating an intermediate array unless the record is compressed. Returns the number
+     * of bytes read.
+     */
+    public int readRecordInto(String key, ByteBuffer dst) throws IOException {
+        awaitIndex(key);
+        lock.readLock().lock();
+        try {
+            RecordHeader header = keyToRecordHeader(key);
+            if (header.compressed) {
+                byte[] data = readRecordData(key);
+                if (dst.remaining() < data.length) {
+                    throw new IOException("Buffer too small for record " + key + ": " + data.length + " bytes");
+                }
+                dst.put(data);
+                return data.length;
+            }
+            if (dst.remaining() < header.dataCount) {
+                throw new IOException("Buffer too small for record " + key + ": " + header.dataCount + " bytes");
+            }
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + header.dataCount);
+            file.read(header.dataPointer, target);
+            if (checksums) {
+                ByteBuffer data = dst.duplicate();
+                data.limit(target.position());
+                verifyChecksum(header, data);
+            }
+            dst.position(target.position());
+            return header.dataCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Returns a read-only buffer holding the data of a record. When the file is memory
+     * mapped, the buffer is a view of the mapping and no data is copied; the view then
+     * reflects later writes to the file and must not be used once the record has been
+     * updated or deleted, or the file closed. Otherwise, and for compressed records, the
+     * data is copied into a new buffer.
+     */
+    public ByteBuffer readRecordView(String key) throws IOException {
+        awaitIndex(key);
+        lock.readLock().lock();
+        try {
+            RecordHeader header = keyToRecordHeader(key);
+            if (header.compressed) {
+                return ByteBuffer.wrap(readRecordData(key)).asReadOnlyBuffer();
+            }
+            ByteBuffer view = file.slice(header.dataPointer, header.dataCount);
+            if (view == null) {
+                view = ByteBuffer.wrap(readRecordData(header)).asReadOnlyBuffer();
+            } else {
+                verifyChecksum(header, view);
+            }
+            return view;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Writes the data of a record to the channel with FileChannel.transferTo, so the data
+     * does not pass through the Java heap, except for compressed records which are
+     * decompressed first. Returns the number of bytes transferred. As the data is not seen,
+     * the checksum of an uncompressed record is not verified; scrub verifies it. The target
+     * must be in blocking mode, since the read lock is held until all the data is written.
+     */
+    public long transferRecordTo(String key, WritableByteChannel target) throws IOException {
+        if (target instanceof SelectableChannel && !((SelectableChannel)target).isBlocking()) {
+            throw new IllegalArgumentException("Target channel is in non-blocking mode");
+        }
+        awaitIndex(key);
+        lock.readLock().lock();
+        try {
+            RecordHeader header = keyToRecordHeader(key);
+            if (header.compressed) {
+                ByteBuffer data = ByteBuffer.wrap(readRecordData(key));
+                while (data.hasRemaining()) {
+                    if (target.write(data) <= 0) {
+                        throw new IOException("Target channel accepted no bytes");
+                    }
+                }
+                return data.capacity();
+            }
+            file.transferTo(header.dataPointer, header.dataCount, target);
+            return header.dataCount;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     /**
      * Reads the data for the record with the given key.
      */
     protected byte[] readRecordData(String key) throws IOException {
-        return readRecordData(keyToRecordHeader(key));
+        return readUncompressedData(keyToRecordHeader(key));
+    }
+    /**
+     * Reads the record data for the given record header, decompressing it if needed.
+     */
+    protected byte[] readUncompressedData(RecordHeader header) throws IOException {
+        if (!header.compressed) {
+            return readRecordData(header);
+        }
+        byte[] buf = RecordCompressor.scratch(header.dataCount);
+        file.read(header.dataPointer, buf, 0, header.dataCount);
+        verifyChecksum(header, buf, 0);
+        return RecordCompressor.decompress(buf, 0, header.dataCount);
+    }
+    /**
+     * Reads the uncompressed data of several records, in the order of their file pointers.
+     * Records close together in the file are read with one read. Null headers are skipped.
+     */
+    protected byte[][] readRecordsData(final RecordHeader[] headers) throws IOException {
+        byte[][] data = new byte[headers.length][];
+        List<Integer> order = new ArrayList<Integer>(headers.length);
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i] != null) {
+                order.add(i);
+            }
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(headers[a].dataPointer, headers[b].dataPointer);
+            }
+        });
+        int start = 0;
+        while (start < order.size()) {
+            RecordHeader first = headers[order.get(start)];
+            long end = first.dataPointer + first.dataCount;
+            int next = start + 1;
+            while (next < order.size()) {
+                RecordHeader h = headers[order.get(next)];
+                long runEnd = Math.max(end, h.dataPointer + h.dataCount);
+                if (h.dataPointer - end > MAX_COALESCED_GAP || runEnd - first.dataPointer > MAX_COALESCED_READ) {
+                    break;
+                }
+                end = runEnd;
+                next++;
+            }
+            if (next == start + 1) {
+                data[order.get(start)] = readUncompressedData(first);
+            } else {
+                byte[] buf = new byte[(int)(end - first.dataPointer)];
+                file.read(first.dataPointer, buf, 0, buf.length);
+                for (int k = start; k < next; k++) {
+                    RecordHeader h = headers[order.get(k)];
+                    int off = (int)(h.dataPointer - first.dataPointer);
+                    verifyChecksum(h, buf, off);
+                    data[order.get(k)] = h.compressed ? RecordCompressor.decompress(buf, off, h.dataCount)
+                            : Arrays.copyOfRange(buf, off, off + h.dataCount);
+                }
+            }
+            start = next;
+        }
+        return data;
     }
     /**
-     * Reads the record data for the given record header.
+     * Reads the record data for the given record header, and verifies its checksum.
      */
     protected byte[] readRecordData(RecordHeader header) throws IOException {
+        byte[] buf = readStoredData(header);
+        verifyChecksum(header, buf, 0);
+        return buf;
+    }
+    /**
+     * Reads bytes of the file as they are stored, for the Scrubber.
+     */
+    void readStored(long fp, byte[] b, int off, int len) throws IOException {
+        file.read(fp, b, off, len);
+    }
+    /**
+     * Reads the record data for the given record header as stored, without verifying it, to
+     * move it.
+     */
+    protected byte[] readStoredData(RecordHeader header) throws IOException {
         byte[] buf = new byte[header.dataCount];
-        file.seek(header.dataPointer);
-        file.readFully(buf);
+        file.read(header.dataPointer, buf, 0, buf.length);
         return buf;
     }
     /**
@@ -234,92 +1264,233 @@ public abstract class BaseRecordsFile {
             throw new IOException ("Record data does not fit");
         }
         header.dataCount = rw.getDataLength();
-        file.seek(header.dataPointer);
-        rw.writeTo((DataOutput)file);
+        header.compressed = rw.compressed;
+        header.checksum = checksum(rw.out.getBuffer(), 0, rw.getDataLength());
+        rw.writeTo(file, header.dataPointer);
     }
     /**
      * Updates the contents of the given record. A RecordsFileException is thrown if the new data does not
      * fit in the space allocated to the record. The header's data count is updated, but not
-     * written to the file.
+     * written to the file. Used to move a record's own data, so its checksum is kept: data
+     * which was damaged before the move still fails verification after it.
      */
     protected void writeRecordData(RecordHeader header, byte[] data) throws IOException {
         if (data.length > header.dataCapacity) {
             throw new IOException ("Record data does not fit");
         }
         header.dataCount = data.length;
-        file.seek(header.dataPointer);
-        file.write(data, 0, data.length);
+        file.write(header.dataPointer, data, 0, data.length);
     }
     /**
      * Deletes a record.
      */
-    public synchronized void deleteRecord(String key) throws IOException {
-        RecordHeader delRec = keyToRecordHeader(key);
-        int currentNumRecords = getNumRecords();
-        if (getFileLength() == delRec.dataPointer + delRec.dataCapacity) {
-            // shrink file since this is the last record in the file
-            setFileLength(delRec.dataPointer);
-        } else {
-            RecordHeader previous = getRecordAt(delRec.dataPointer -1);
-            if (previous != null) {
-
+    public void deleteRecord(String key) throws IOException {
+        beginMutation();
+        try {
+            RecordHeader delRec = keyToRecordHeader(key);
+            streamingKeys.remove(key);
+            int currentNumRecords = getNumRecords();
+            boolean first = delRec.dataPointer == firstRecordPtr;
+            if (getFileLength() == delRec.dataPointer + delRec.dataCapacity) {
+                // shrink file since this is the last record in the file
+                if (first) {
+                    // and the only one, so the free space ahead of it goes too
+                    firstRecordPtr = dataStartPtr;
+                }
+                setFileLength(first ? dataStartPtr : delRec.dataPointer);
+            } else if (first) {
+                // target record is first in the file: its space becomes free space ahead of
+                // the second record, so the second record does not have to be moved.
+                firstRecordPtr = delRec.dataPointer + delRec.dataCapacity;
+            } else {
                 // append space of deleted record onto previous record
-
+                RecordHeader previous = getRecordAt(delRec.dataPointer -1);
                 previous.dataCapacity += delRec.dataCapacity;
-
                 writeRecordHeaderToIndex(previous);
-            } else {
-
-                // target record is first in the file and is deleted by adding its space to
-
-                // the second record.
-
-                RecordHeader secondRecord = getRecordAt(delRec.dataPointer + (long)delRec.dataCapacity);
-
-                byte[] data = readRecordData(secondRecord);
-
-                secondRecord.dataPointer = delRec.dataPointer;
-
-                secondRecord.dataCapacity += delRec.dataCapacity;
-
-                writeRecordData(secondRecord, data);
-
-                writeRecordHeaderToIndex(secondRecord);
             }
+            deleteEntryFromIndex(key, delRec, currentNumRecords);
+        } finally {
+            endMutation();
         }
-        deleteEntryFromIndex(key, delRec, currentNumRecords);
     }
     // Checks to see if there is space for and additional index entry. If
-    // not, space is created by moving records to the end of the file.
+    // not, the index takes the free space ahead of the first record, and only
+    // when that is not enough are records moved to the end of the file.
     protected void insureIndexSpace(int requiredNumRecords) throws IOException {
-        int currentNumRecords = getNumRecords();
         long endIndexPtr = indexPositionToKeyFp(requiredNumRecords);
-        if (endIndexPtr > getFileLength() && currentNumRecords == 0) {
-            setFileLength(endIndexPtr);
-            dataStartPtr = endIndexPtr;
-            writeDataStartPtrHeader(dataStartPtr);
+        if (endIndexPtr <= dataStartPtr) {
             return;
         }
-        while (endIndexPtr > dataStartPtr) {
-            RecordHeader first = getRecordAt(dataStartPtr);
-            byte[] data = readRecordData(first);
+        if (getNumRecords() == 0) {
+            firstRecordPtr = Math.max(getFileLength(), endIndexPtr);
+            setFileLength(firstRecordPtr);
+        }
+        while (endIndexPtr > firstRecordPtr) {
+            RecordHeader first = getRecordAt(firstRecordPtr);
+            byte[] data = readStoredData(first);
+            long second = first.dataPointer + first.dataCapacity;
+            if (!isStreaming(first)) {
+                first.dataCapacity = Math.max(reservedCapacity(first), 1);
+            }
             first.dataPointer = getFileLength();
-            first.dataCapacity = data.length;
-            setFileLength(first.dataPointer + data.length);
+            setFileLength(first.dataPointer + first.dataCapacity);
             writeRecordData(first, data);
             writeRecordHeaderToIndex(first);
-            dataStartPtr += first.dataCapacity;
-            writeDataStartPtrHeader(dataStartPtr);
+            firstRecordPtr = second;
+            if (metrics != null) {
+                metrics.indexRelocations.increment();
+                metrics.indexRelocatedBytes.add(data.length);
+            }
+        }
+        dataStartPtr = endIndexPtr;
+        writeDataStartPtrHeader(dataStartPtr);
+    }
+    /**
+     * Walks the data region and sums the capacities and data counts of the records.
+     */
+    public FragmentationStats getFragmentationStats() throws IOException {
+        awaitIndex(null);
+        lock.readLock().lock();
+        try {
+            long fileLength = getFileLength();
+            long capacity = 0;
+            long live = 0;
+            long fp = firstRecordPtr;
+            while (fp < fileLength) {
+                RecordHeader r = getRecordAt(fp);
+                if (r == null) {
+                    throw new IOException("No record at " + fp);
+                }
+                capacity += r.dataCapacity;
+                live += r.dataCount;
+                fp = r.dataPointer + r.dataCapacity;
+            }
+            return new FragmentationStats(getNumRecords(), fileLength - dataStartPtr, capacity, live);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Compacts the data region incrementally: slides records toward the start of the data
+     * region so that the unused capacity gathers behind the last record, which is then
+     * cut off the file. Stops after moving about maxBytes bytes, or when a pass over the
+     * data region is complete, and returns the number of bytes moved. The write lock is
+     * only held while one record is moved, so other operations go on in between.
+     * Compaction resumes where the previous call stopped.
+     */
+    public long compact(long maxBytes) throws IOException {
+        long moved = 0;
+        while (moved < maxBytes) {
+            long step = compactStep();
+            if (step < 0) {
+                break;
+            }
+            moved += step;
+        }
+        return moved;
+    }
+    /**
+     * Gives the record at the compaction cursor's unused capacity to the following record,
+     * moving that record's data down. Returns the number of bytes moved, or -1 at the end
+     * of the data region.
+     */
+    private long compactStep() throws IOException {
+        beginMutation();
+        try {
+            long fileLength = getFileLength();
+            if (compactCursor < firstRecordPtr || compactCursor >= fileLength) {
+                compactCursor = firstRecordPtr;
+                if (compactCursor >= fileLength) {
+                    return -1;
+                }
+            }
+            RecordHeader r = getRecordAt(compactCursor);
+            if (r == null) {
+                // records moved since the last step; start the pass over
+                boolean restarted = compactCursor == firstRecordPtr;
+                compactCursor = firstRecordPtr;
+                return restarted ? -1 : 0;
+            }
+            long gap = r.dataPointer - dataStartPtr;
+            if (r.dataPointer == firstRecordPtr && gap > 0 && r.dataCapacity + gap <= Integer.MAX_VALUE) {
+                // move the first record down over the free space ahead of it
+                byte[] data = readStoredData(r);
+                r.dataPointer = dataStartPtr;
+                r.dataCapacity += (int)gap;
+                writeRecordData(r, data);
+                writeRecordHeaderToIndex(r);
+                firstRecordPtr = dataStartPtr;
+                compactCursor = dataStartPtr;
+                return data.length;
+            }
+            long end = r.dataPointer + r.dataCapacity;
+            if (isStreaming(r)) {
+                // keep the capacity reserved for a record still being written
+                compactCursor = end;
+                return end >= fileLength ? -1 : 0;
+            }
+            // records keep their padding, and grown records their room to grow
+            int keep = Math.min(Math.max(reservedCapacity(r), 1), r.dataCapacity);
+            int slack = r.dataCapacity - keep;
+            if (end >= fileLength) {
+                // last record in the file: cut off its unused capacity
+                if (slack > 0) {
+                    r.dataCapacity = keep;
+                    writeRecordHeaderToIndex(r);
+                    setFileLength(r.dataPointer + keep);
+                }
+                compactCursor = firstRecordPtr;
+                return -1;
+            }
+            if (slack == 0) {
+                compactCursor = end;
+                return 0;
+            }
+            RecordHeader next = getRecordAt(end);
+            byte[] data = readStoredData(next);
+            r.dataCapacity = keep;
+            writeRecordHeaderToIndex(r);
+            next.dataPointer = r.dataPointer + keep;
+            next.dataCapacity += slack;
+            writeRecordData(next, data);
+            writeRecordHeaderToIndex(next);
+            compactCursor = next.dataPointer;
+            return data.length;
+        } finally {
+            endMutation();
         }
     }
     /**
      * Closes the file.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+        stopLogFlusher();
+        lock.writeLock().lock();
         try {
-            file.close();
+            try {
+                for (RecordsSnapshot snapshot : snapshots.getSnapshots()) {
+                    snapshot.close();
+                }
+                if (mbeanName != null) {
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                    } catch (JMException e) {
+                        // already unregistered
+                    }
+                    mbeanName = null;
+                }
+                if (mappedFile != null) {
+                    // below the log, whose pending changes never touch the format header; if
+                    // the file cannot be truncated its tail is left as unused space
+                    mappedFile.writeInt(FORMAT_HEADER_LOCATION, mappedFile.readInt(FORMAT_HEADER_LOCATION) & ~MAPPED_FLAG);
+                }
+                file.close();
+            } finally {
+                file = null;
+                mappedFile = null;
+            }
         } finally {
-            file = null;
+            lock.writeLock().unlock();
         }
     }
 
@@ -0,0 +1,146 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes each object as a one byte type tag followed by its value. Integers, longs and
+ * lengths are zigzag varints, strings are UTF-8. Supports null, the primitive wrappers,
+ * String and byte[]; other objects are rejected with a NotSerializableException.
+ */
+public class BinaryCodec implements RecordCodec {
+    private static final int NULL = 0;
+    private static final int BOOLEAN = 1;
+    private static final int BYTE = 2;
+    private static final int SHORT = 3;
+    private static final int CHAR = 4;
+    private static final int INT = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int STRING = 9;
+    private static final int BYTES = 10;
+
+    public Encoder newEncoder(OutputStream out) {
+        final DataOutputStream dout = new DataOutputStream(out);
+        return new Encoder() {
+            public void writeObject(Object o) throws IOException {
+                encode(o, dout);
+                dout.flush();
+            }
+        };
+    }
+    public Decoder newDecoder(InputStream in) {
+        final DataInputStream din = new DataInputStream(in);
+        return new Decoder() {
+            public Object readObject() throws IOException {
+                return decode(din);
+            }
+        };
+    }
+    static void encode(Object o, DataOutputStream out) throws IOException {
+        if (o == null) {
+            out.write(NULL);
+        } else if (o instanceof String) {
+            byte[] b = ((String)o).getBytes(StandardCharsets.UTF_8);
+            out.write(STRING);
+            writeVarLong(out, b.length);
+            out.write(b);
+        } else if (o instanceof byte[]) {
+            byte[] b = (byte[])o;
+            out.write(BYTES);
+            writeVarLong(out, b.length);
+            out.write(b);
+        } else if (o instanceof Integer) {
+            out.write(INT);
+            writeVarLong(out, zigzag((Integer)o));
+        } else if (o instanceof Long) {
+            out.write(LONG);
+            writeVarLong(out, zigzag((Long)o));
+        } else if (o instanceof Boolean) {
+            out.write(BOOLEAN);
+            out.writeBoolean((Boolean)o);
+        } else if (o instanceof Byte) {
+            out.write(BYTE);
+            out.writeByte((Byte)o);
+        } else if (o instanceof Short) {
+            out.write(SHORT);
+            out.writeShort((Short)o);
+        } else if (o instanceof Character) {
+            out.write(CHAR);
+            out.writeChar((Character)o);
+        } else if (o instanceof Float) {
+            out.write(FLOAT);
+            out.writeFloat((Float)o);
+        } else if (o instanceof Double) {
+            out.write(DOUBLE);
+            out.writeDouble((Double)o);
+        } else {
+            throw new NotSerializableException(o.getClass().getName());
+        }
+    }
+    static Object decode(DataInputStream in) throws IOException {
+        int tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case BYTES:
+                return readBytes(in);
+            case INT:
+                return (int)unzigzag(readVarLong(in));
+            case LONG:
+                return unzigzag(readVarLong(in));
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHAR:
+                return in.readChar();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case -1:
+                throw new EOFException();
+            default:
+                throw new StreamCorruptedException("Unknown type tag: " + tag);
+        }
+    }
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Bad length: " + length);
+        }
+        byte[] b = new byte[(int)length];
+        in.readFully(b);
+        return b;
+    }
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.write((int)(v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int)v);
+    }
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new StreamCorruptedException("Varint too long");
+    }
+}
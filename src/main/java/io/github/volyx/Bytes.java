@@ -0,0 +1,26 @@
+package io.github.volyx;
+
+/**
+ * Big-endian encoding of primitives into byte arrays, matching DataInput/DataOutput.
+ */
+final class Bytes {
+    private Bytes() {
+    }
+    static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+    static long getLong(byte[] b, int off) {
+        return ((long)getInt(b, off) << 32) | (getInt(b, off + 4) & 0xffffffffL);
+    }
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int)(v >>> 32));
+        putInt(b, off + 4, (int)v);
+    }
+}
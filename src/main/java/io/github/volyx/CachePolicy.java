@@ -0,0 +1,17 @@
+package io.github.volyx;
+
+/**
+ * Selects which entries the record cache evicts when it is full.
+ */
+public enum CachePolicy {
+    /**
+     * Evicts the least recently used record.
+     */
+    LRU,
+    /**
+     * Admits records through a small LRU window into a segmented LRU main area, and lets a
+     * record from the window displace one in the main area only if it has been read more
+     * often recently (W-TinyLFU). Keeps the hot set of skewed workloads through scans.
+     */
+    TINY_LFU
+}
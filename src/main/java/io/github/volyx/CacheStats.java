@@ -0,0 +1,55 @@
+package io.github.volyx;
+
+/**
+ * A snapshot of the counters of the record cache.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int entries;
+    private final long size;
+    private final long capacity;
+
+    CacheStats(long hits, long misses, long evictions, int entries, long size, long capacity) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.size = size;
+        this.capacity = capacity;
+    }
+    public long getHits() {
+        return hits;
+    }
+    public long getMisses() {
+        return misses;
+    }
+    /**
+     * Returns the number of records dropped to stay within the capacity. Records dropped
+     * because they were updated or deleted are not counted.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+    public int getEntries() {
+        return entries;
+    }
+    /**
+     * Returns the number of bytes the cached records are charged for.
+     */
+    public long getSize() {
+        return size;
+    }
+    public long getCapacity() {
+        return capacity;
+    }
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double)hits / requests;
+    }
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", entries=" + entries + ", size=" + size + ", capacity=" + capacity + "}";
+    }
+}
@@ -0,0 +1,513 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * Record index kept in off-heap primitive columns, so that it creates no heap objects per
+ * record. The slot of a record is its index position, so deleting a record moves the last
+ * slot into the hole, as BaseRecordsFile.deleteEntryFromIndex() does with the file index.
+ * <p>
+ * Keys are stored in an arena as their modified UTF-8 bytes (the encoding written to the file
+ * index) and found through an open-addressing table of slot numbers; lookups encode the
+ * String on the fly and do not allocate. Records are also hashed by the first file pointer of
+ * their data and by the file pointer just past it, which resolves every pointer at the start
+ * or on the last byte of a record - the only pointers BaseRecordsFile asks about. Free space
+ * is tracked in power-of-two size classes, linked through the slots.
+ * <p>
+ * Per record this costs 40 bytes of columns, 8 bytes of key table, 48 bytes of extent tables
+ * and the key bytes plus one (three for keys of 255 bytes or more), all off-heap. Headers returned by get() are copies.
+ */
+class CompactRecordIndex implements RecordIndex {
+    // Number of records of the request's own size class examined for a fit.
+    private static final int MAX_CLASS_SCAN = 16;
+    private static final int NONE = -1;
+    private int size;
+    private int capacity;
+    private LongBuffer dataPointers;
+    private IntBuffer capacities;
+    private IntBuffer counts;
+    private IntBuffer checksums;
+    private IntBuffer keyOffsets;
+    private IntBuffer keyHashes;
+    private IntBuffer freeNext;
+    private IntBuffer freePrev;
+    private final int[] freeHeads = new int[32];
+    // Key bytes, each key preceded by its length: one byte, or 0xFF and two bytes from 255 on.
+    private ByteBuffer arena;
+    private int arenaUsed;
+    private int arenaGarbage;
+    // Slot number plus one of each key, 0 for an empty cell.
+    private IntBuffer table;
+    private int tableMask;
+    private LongIntHashMap starts;
+    private LongIntHashMap ends;
+    private volatile AllocationPolicy policy;
+    private final int padding;
+    private final boolean adaptivePadding;
+
+    CompactRecordIndex(int initialSize, AllocationPolicy policy, int padding, boolean adaptivePadding) {
+        this.policy = policy;
+        this.padding = padding;
+        this.adaptivePadding = adaptivePadding;
+        capacity = Math.max(initialSize, 16);
+        dataPointers = longColumn(null, capacity);
+        capacities = intColumn(null, capacity);
+        counts = intColumn(null, capacity);
+        checksums = intColumn(null, capacity);
+        keyOffsets = intColumn(null, capacity);
+        keyHashes = intColumn(null, capacity);
+        freeNext = intColumn(null, capacity);
+        freePrev = intColumn(null, capacity);
+        Arrays.fill(freeHeads, NONE);
+        arena = ByteBuffer.allocateDirect(capacity * 16);
+        int tableSize = LongIntHashMap.tableSize(capacity);
+        table = intColumn(null, tableSize);
+        tableMask = tableSize - 1;
+        starts = new LongIntHashMap(capacity);
+        ends = new LongIntHashMap(capacity);
+    }
+    private static LongBuffer longColumn(LongBuffer old, int capacity) {
+        LongBuffer b = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        if (old != null) {
+            LongBuffer src = old.duplicate();
+            src.clear();
+            b.put(src);
+            b.clear();
+        }
+        return b;
+    }
+    private static IntBuffer intColumn(IntBuffer old, int capacity) {
+        IntBuffer b = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        if (old != null) {
+            IntBuffer src = old.duplicate();
+            src.clear();
+            b.put(src);
+            b.clear();
+        }
+        return b;
+    }
+    private void ensureCapacity(int required) {
+        if (required <= capacity) {
+            return;
+        }
+        int newCapacity = (int)Math.min(Math.max(required, capacity * 2L), Integer.MAX_VALUE >> 3);
+        dataPointers = longColumn(dataPointers, newCapacity);
+        capacities = intColumn(capacities, newCapacity);
+        counts = intColumn(counts, newCapacity);
+        checksums = intColumn(checksums, newCapacity);
+        keyOffsets = intColumn(keyOffsets, newCapacity);
+        keyHashes = intColumn(keyHashes, newCapacity);
+        freeNext = intColumn(freeNext, newCapacity);
+        freePrev = intColumn(freePrev, newCapacity);
+        capacity = newCapacity;
+    }
+
+    // ---- keys ----
+
+    /**
+     * Returns the modified UTF-8 bytes of a character packed as (count << 24) | bytes,
+     * as written by DataOutput.writeUTF.
+     */
+    private static int utf(char c) {
+        if (c >= 0x0001 && c <= 0x007F) {
+            return (1 << 24) | c;
+        } else if (c <= 0x07FF) {
+            return (2 << 24) | ((0xC0 | (c >> 6)) << 8) | (0x80 | (c & 0x3F));
+        } else {
+            return (3 << 24) | ((0xE0 | (c >> 12)) << 16) | ((0x80 | ((c >> 6) & 0x3F)) << 8) | (0x80 | (c & 0x3F));
+        }
+    }
+    private static int utfLength(String key) {
+        int len = 0;
+        for (int i = 0; i < key.length(); i++) {
+            len += utf(key.charAt(i)) >>> 24;
+        }
+        return len;
+    }
+    private static int hash(String key) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            int u = utf(key.charAt(i));
+            for (int n = (u >>> 24) - 1; n >= 0; n--) {
+                h = (h ^ ((u >>> (8 * n)) & 0xFF)) * 0x01000193;
+            }
+        }
+        return h ^ (h >>> 16);
+    }
+    private boolean keyEquals(int slot, String key, int len) {
+        int p = keyOffsets.get(slot);
+        if (storedKeyLength(p) != len) {
+            return false;
+        }
+        p += lengthPrefix(len);
+        for (int i = 0; i < key.length(); i++) {
+            int u = utf(key.charAt(i));
+            for (int n = (u >>> 24) - 1; n >= 0; n--) {
+                if (arena.get(p++) != (byte)(u >>> (8 * n))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    private String keyAt(int slot) {
+        int p = keyOffsets.get(slot);
+        int len = storedKeyLength(p);
+        p += lengthPrefix(len);
+        byte[] b = new byte[len + 2];
+        b[0] = (byte)(len >>> 8);
+        b[1] = (byte)len;
+        for (int i = 0; i < len; i++) {
+            b[i + 2] = arena.get(p + i);
+        }
+        try {
+            return new DataInputStream(new ByteArrayInputStream(b)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt key in index", e);
+        }
+    }
+    // Returns the length of the key stored at the given arena offset.
+    private int storedKeyLength(int p) {
+        int len = arena.get(p) & 0xFF;
+        return len < 0xFF ? len : ((arena.get(p + 1) & 0xFF) << 8) | (arena.get(p + 2) & 0xFF);
+    }
+    // Returns the number of bytes taken by the length of a key in the arena.
+    private static int lengthPrefix(int len) {
+        return len < 0xFF ? 1 : 3;
+    }
+    private void appendKey(int slot, String key, int len) {
+        if (arenaUsed + len + lengthPrefix(len) > arena.capacity()) {
+            growArena(len + lengthPrefix(len));
+        }
+        keyOffsets.put(slot, arenaUsed);
+        if (len < 0xFF) {
+            arena.put(arenaUsed++, (byte)len);
+        } else {
+            arena.put(arenaUsed++, (byte)0xFF);
+            arena.put(arenaUsed++, (byte)(len >>> 8));
+            arena.put(arenaUsed++, (byte)len);
+        }
+        for (int i = 0; i < key.length(); i++) {
+            int u = utf(key.charAt(i));
+            for (int n = (u >>> 24) - 1; n >= 0; n--) {
+                arena.put(arenaUsed++, (byte)(u >>> (8 * n)));
+            }
+        }
+    }
+    /**
+     * Makes room for at least extra more bytes, dropping the bytes of deleted keys.
+     */
+    private void growArena(int extra) {
+        int live = arenaUsed - arenaGarbage;
+        long newCapacity = Math.max(arena.capacity(), 2L * (live + extra));
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Key arena is full");
+        }
+        ByteBuffer newArena = ByteBuffer.allocateDirect((int)newCapacity);
+        int used = 0;
+        for (int slot = 0; slot < size; slot++) {
+            int p = keyOffsets.get(slot);
+            int len = storedKeyLength(p);
+            len += lengthPrefix(len);
+            keyOffsets.put(slot, used);
+            for (int i = 0; i < len; i++) {
+                newArena.put(used++, arena.get(p + i));
+            }
+        }
+        arena = newArena;
+        arenaUsed = used;
+        arenaGarbage = 0;
+    }
+    private int lookup(String key) {
+        int len = utfLength(key);
+        if (len > 0xFFFF) {
+            return NONE;
+        }
+        int h = hash(key);
+        for (int i = h & tableMask; ; i = (i + 1) & tableMask) {
+            int v = table.get(i);
+            if (v == 0) {
+                return NONE;
+            }
+            int slot = v - 1;
+            if (keyHashes.get(slot) == h && keyEquals(slot, key, len)) {
+                return slot;
+            }
+        }
+    }
+    /**
+     * Returns the table cell holding the slot.
+     */
+    private int cellOf(int slot) {
+        for (int i = keyHashes.get(slot) & tableMask; ; i = (i + 1) & tableMask) {
+            if (table.get(i) == slot + 1) {
+                return i;
+            }
+        }
+    }
+    private void tableInsert(int slot) {
+        if ((size + 1) * 2L > tableMask + 1) {
+            int tableSize = (tableMask + 1) * 2;
+            table = intColumn(null, tableSize);
+            tableMask = tableSize - 1;
+            for (int s = 0; s < size; s++) {
+                tableCell(s);
+            }
+        }
+        tableCell(slot);
+    }
+    private void tableCell(int slot) {
+        int i = keyHashes.get(slot) & tableMask;
+        while (table.get(i) != 0) {
+            i = (i + 1) & tableMask;
+        }
+        table.put(i, slot + 1);
+    }
+    private void tableRemove(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & tableMask;
+            int v = table.get(j);
+            if (v == 0) {
+                break;
+            }
+            int h = keyHashes.get(v - 1) & tableMask;
+            if (i <= j ? (i < h && h <= j) : (i < h || h <= j)) {
+                continue;
+            }
+            table.put(i, v);
+            i = j;
+        }
+        table.put(i, 0);
+    }
+
+    // ---- free space ----
+
+    private static int sizeClass(int free) {
+        return 31 - Integer.numberOfLeadingZeros(free);
+    }
+    // The capacity beyond the data and the padding reserved for it, as RecordHeader.getSpareSpace.
+    private int freeSpace(int slot) {
+        int word = capacities.get(slot);
+        int capacity = word & RecordHeader.CAPACITY_MASK;
+        int reserved = RecordHeader.reservedCapacity(counts.get(slot) & RecordHeader.COUNT_MASK, padding, adaptivePadding && word < 0);
+        return capacity - Math.min(capacity, reserved);
+    }
+    private void file(int slot) {
+        int free = freeSpace(slot);
+        if (free <= 0) {
+            return;
+        }
+        int c = sizeClass(free);
+        int head = freeHeads[c];
+        freePrev.put(slot, NONE);
+        freeNext.put(slot, head);
+        if (head != NONE) {
+            freePrev.put(head, slot);
+        }
+        freeHeads[c] = slot;
+    }
+    private void unfile(int slot) {
+        int free = freeSpace(slot);
+        if (free <= 0) {
+            return;
+        }
+        int prev = freePrev.get(slot);
+        int next = freeNext.get(slot);
+        if (prev != NONE) {
+            freeNext.put(prev, next);
+        } else {
+            freeHeads[sizeClass(free)] = next;
+        }
+        if (next != NONE) {
+            freePrev.put(next, prev);
+        }
+    }
+    /**
+     * Finds free space in the size classes. FIRST_FIT takes the first record of the smallest
+     * class whose records all fit. BEST_FIT takes the tightest fit among the first records of
+     * the request's own class, then the first record of a larger class.
+     */
+    public RecordHeader findFreeSpace(int dataLength) {
+        int own = dataLength <= 1 ? 0 : sizeClass(dataLength);
+        boolean ownClassFits = dataLength <= (1 << own);
+        int found;
+        if (policy == AllocationPolicy.FIRST_FIT) {
+            found = firstInClasses(ownClassFits ? own : own + 1);
+            if (found == NONE && !ownClassFits) {
+                found = bestInClass(own, dataLength);
+            }
+        } else {
+            found = bestInClass(own, dataLength);
+            if (found == NONE) {
+                found = firstInClasses(own + 1);
+            }
+        }
+        return found == NONE ? null : header(found);
+    }
+    private int firstInClasses(int from) {
+        for (int c = from; c < freeHeads.length; c++) {
+            if (freeHeads[c] != NONE) {
+                return freeHeads[c];
+            }
+        }
+        return NONE;
+    }
+    private int bestInClass(int c, int dataLength) {
+        int best = NONE;
+        int bestFree = Integer.MAX_VALUE;
+        int scanned = 0;
+        for (int s = freeHeads[c]; s != NONE && scanned < MAX_CLASS_SCAN; s = freeNext.get(s), scanned++) {
+            int free = freeSpace(s);
+            if (free >= dataLength && free < bestFree) {
+                best = s;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    // ---- RecordIndex ----
+
+    private RecordHeader header(int slot) {
+        RecordHeader h = new RecordHeader();
+        h.dataPointer = dataPointers.get(slot);
+        h.setCapacityWord(capacities.get(slot));
+        h.setCountWord(counts.get(slot));
+        h.checksum = checksums.get(slot);
+        h.indexPosition = slot;
+        return h;
+    }
+    public int size() {
+        return size;
+    }
+    public boolean containsKey(String key) {
+        return lookup(key) != NONE;
+    }
+    public RecordHeader get(String key) {
+        int slot = lookup(key);
+        return slot == NONE ? null : header(slot);
+    }
+    public void put(String key, RecordHeader header) {
+        int len = utfLength(key);
+        if (len > 0xFFFF) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        int slot = header.indexPosition;
+        if (slot != size) {
+            throw new IllegalStateException("Record is not at the end of the index: " + slot);
+        }
+        ensureCapacity(size + 1);
+        dataPointers.put(slot, header.dataPointer);
+        capacities.put(slot, header.capacityWord());
+        counts.put(slot, header.countWord());
+        checksums.put(slot, header.checksum);
+        keyHashes.put(slot, hash(key));
+        appendKey(slot, key, len);
+        tableInsert(slot);
+        size++;
+        starts.put(header.dataPointer, slot);
+        ends.put(header.dataPointer + header.dataCapacity, slot);
+        file(slot);
+    }
+    public void update(RecordHeader header) {
+        int slot = header.indexPosition;
+        long oldPointer = dataPointers.get(slot);
+        int oldCapacity = capacities.get(slot) & RecordHeader.CAPACITY_MASK;
+        unfile(slot);
+        if (oldPointer != header.dataPointer || oldCapacity != header.dataCapacity) {
+            starts.remove(oldPointer, slot);
+            ends.remove(oldPointer + oldCapacity, slot);
+            dataPointers.put(slot, header.dataPointer);
+            starts.put(header.dataPointer, slot);
+            ends.put(header.dataPointer + header.dataCapacity, slot);
+        }
+        capacities.put(slot, header.capacityWord());
+        counts.put(slot, header.countWord());
+        checksums.put(slot, header.checksum);
+        file(slot);
+    }
+    public RecordHeader remove(String key) {
+        int slot = lookup(key);
+        if (slot == NONE) {
+            return null;
+        }
+        RecordHeader removed = header(slot);
+        unfile(slot);
+        starts.remove(removed.dataPointer, slot);
+        ends.remove(removed.dataPointer + removed.dataCapacity, slot);
+        tableRemove(cellOf(slot));
+        int keyLength = storedKeyLength(keyOffsets.get(slot));
+        arenaGarbage += keyLength + lengthPrefix(keyLength);
+        int last = size - 1;
+        if (slot != last) {
+            moveSlot(last, slot);
+        }
+        size--;
+        return removed;
+    }
+    /**
+     * Moves a record from one slot to another, free, slot.
+     */
+    private void moveSlot(int from, int to) {
+        unfile(from);
+        long dp = dataPointers.get(from);
+        int cap = capacities.get(from) & RecordHeader.CAPACITY_MASK;
+        table.put(cellOf(from), to + 1);
+        if (starts.get(dp) == from) {
+            starts.put(dp, to);
+        }
+        if (ends.get(dp + cap) == from) {
+            ends.put(dp + cap, to);
+        }
+        dataPointers.put(to, dp);
+        capacities.put(to, capacities.get(from));
+        counts.put(to, counts.get(from));
+        checksums.put(to, checksums.get(from));
+        keyOffsets.put(to, keyOffsets.get(from));
+        keyHashes.put(to, keyHashes.get(from));
+        file(to);
+    }
+    /**
+     * Resolves pointers at the start or on the last byte of a record; returns null for
+     * pointers inside a record.
+     */
+    public RecordHeader recordAt(long targetFp) {
+        int slot = starts.get(targetFp);
+        if (slot == NONE) {
+            slot = ends.get(targetFp + 1);
+        }
+        return slot == NONE ? null : header(slot);
+    }
+    public AllocationPolicy getPolicy() {
+        return policy;
+    }
+    public void setPolicy(AllocationPolicy policy) {
+        this.policy = policy;
+    }
+    /**
+     * Returns a copy of the keys, taken when the enumeration is created.
+     */
+    public Enumeration keys() {
+        List<String> keys = new ArrayList<String>(size);
+        for (int slot = 0; slot < size; slot++) {
+            keys.add(keyAt(slot));
+        }
+        return Collections.enumeration(keys);
+    }
+    public void clear() {
+        size = 0;
+        arenaUsed = 0;
+        arenaGarbage = 0;
+        Arrays.fill(freeHeads, NONE);
+        starts = new LongIntHashMap(16);
+        ends = new LongIntHashMap(16);
+        table = intColumn(null, 16);
+        tableMask = 15;
+    }
+}
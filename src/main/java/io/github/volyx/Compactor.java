@@ -0,0 +1,99 @@
+package io.github.volyx;
+
+import java.io.IOException;
+
+/**
+ * Compacts a file in the background, moving at most a given number of bytes per second so
+ * that it can run alongside the normal use of the file. Stop the compactor before closing
+ * the file.
+ */
+public class Compactor {
+    // Length of one round of compaction.
+    private static final long TICK_MILLIS = 100;
+    // Pause after a pass which found nothing to compact.
+    private static final long IDLE_MILLIS = 1000;
+
+    private final BaseRecordsFile recordsFile;
+    private final long bytesPerTick;
+    private volatile IOException error;
+    private volatile long bytesMoved;
+    private boolean stopped;
+    private Thread thread;
+
+    public Compactor(BaseRecordsFile recordsFile, long bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("Bad rate: " + bytesPerSecond);
+        }
+        this.recordsFile = recordsFile;
+        this.bytesPerTick = Math.max(1, bytesPerSecond * TICK_MILLIS / 1000);
+    }
+    /**
+     * Starts the compaction thread.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("Compactor already started");
+        }
+        thread = new Thread("records-file-compactor") {
+            public void run() {
+                runCompaction();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /**
+     * Stops the compaction thread and waits for it to finish the record it is moving. The
+     * thread is not interrupted, since an interrupt would close the file's channel.
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+            t = thread;
+        }
+        if (t != null) {
+            t.join();
+        }
+    }
+    /**
+     * Returns the total number of bytes moved so far.
+     */
+    public long getBytesMoved() {
+        return bytesMoved;
+    }
+    /**
+     * Returns the error which stopped the compactor, or null.
+     */
+    public IOException getError() {
+        return error;
+    }
+    private void runCompaction() {
+        try {
+            long pause = 0;
+            while (pause(pause)) {
+                long start = System.currentTimeMillis();
+                long moved = recordsFile.compact(bytesPerTick);
+                bytesMoved += moved;
+                pause = moved < bytesPerTick ? IDLE_MILLIS : TICK_MILLIS - (System.currentTimeMillis() - start);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+    /**
+     * Waits for the given time, or until the compactor is stopped. Returns false if it is stopped.
+     */
+    private synchronized boolean pause(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (!stopped && left > 0) {
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return !stopped;
+    }
+}
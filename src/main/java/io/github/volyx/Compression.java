@@ -0,0 +1,19 @@
+package io.github.volyx;
+
+/**
+ * Selects how record data is compressed before it is written to the file.
+ */
+public enum Compression {
+    /**
+     * Stores record data as written.
+     */
+    NONE,
+    /**
+     * The LZ4 block format: fast to compress and very fast to decompress, with a moderate ratio.
+     */
+    LZ4,
+    /**
+     * Deflate through java.util.zip: a better ratio at a higher CPU cost.
+     */
+    DEFLATE
+}
@@ -0,0 +1,15 @@
+package io.github.volyx;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the data of a record does not match the checksum stored with it, because the
+ * data was damaged on disk or a write of it was torn.
+ */
+public class CorruptRecordException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CorruptRecordException(String message) {
+        super(message);
+    }
+}
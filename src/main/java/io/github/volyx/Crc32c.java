@@ -0,0 +1,108 @@
+package io.github.volyx;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums of record data. On Java 9 and later java.util.zip.CRC32C is
+ * used, which the JVM computes with the CPU's CRC32 instructions; on Java 8 this class
+ * computes it with slicing-by-8 tables.
+ */
+final class Crc32c implements Checksum {
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[][] TABLES = new int[8][256];
+    private static final Constructor<? extends Checksum> INTRINSIC;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            TABLES[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int t = 1; t < 8; t++) {
+                TABLES[t][n] = (TABLES[t - 1][n] >>> 8) ^ TABLES[0][TABLES[t - 1][n] & 0xff];
+            }
+        }
+        Constructor<? extends Checksum> intrinsic;
+        try {
+            intrinsic = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (Exception e) {
+            intrinsic = null;
+        }
+        INTRINSIC = intrinsic;
+    }
+
+    private static final ThreadLocal<Checksum> LOCAL = new ThreadLocal<Checksum>() {
+        protected Checksum initialValue() {
+            return newChecksum();
+        }
+    };
+
+    private int crc = ~0;
+
+    /**
+     * Returns a new checksum, for data which arrives in parts.
+     */
+    static Checksum newChecksum() {
+        if (INTRINSIC != null) {
+            try {
+                return INTRINSIC.newInstance();
+            } catch (Exception e) {
+                // fall back to the tables
+            }
+        }
+        return new Crc32c();
+    }
+    static int compute(byte[] b, int off, int len) {
+        Checksum c = LOCAL.get();
+        c.reset();
+        c.update(b, off, len);
+        return (int)c.getValue();
+    }
+    /**
+     * Returns the checksum of the remaining bytes of the buffer, without moving its position.
+     */
+    static int compute(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return compute(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        Checksum c = LOCAL.get();
+        c.reset();
+        ByteBuffer src = buf.duplicate();
+        byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, n);
+            c.update(chunk, 0, n);
+        }
+        return (int)c.getValue();
+    }
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        while (end - off >= 8) {
+            c ^= (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+            c = TABLES[7][c & 0xff] ^ TABLES[6][(c >>> 8) & 0xff] ^ TABLES[5][(c >>> 16) & 0xff] ^ TABLES[4][c >>> 24]
+                    ^ TABLES[3][b[off + 4] & 0xff] ^ TABLES[2][b[off + 5] & 0xff]
+                    ^ TABLES[1][b[off + 6] & 0xff] ^ TABLES[0][b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ TABLES[0][(c ^ b[off++]) & 0xff];
+        }
+        crc = c;
+    }
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+    public void reset() {
+        crc = ~0;
+    }
+}
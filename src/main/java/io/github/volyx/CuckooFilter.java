@@ -0,0 +1,248 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * A cuckoo filter of keys: a set which may answer that it contains a key it does not, but
+ * never the reverse, and from which keys can be removed. Each key is a 16-bit fingerprint in
+ * one of two buckets of four, so a filter takes about 2.4 bytes per key and answers wrongly
+ * for about one key in 8000. A fingerprint which finds no room after MAX_KICKS moves is kept
+ * aside as the victim; once there is a victim the filter is full and add returns false.
+ * Not thread safe.
+ */
+final class CuckooFilter {
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_KICKS = 500;
+    private static final int MAGIC = 0x52464346;
+    // Length of the header written before the buckets.
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 2 + 4;
+
+    private final short[] table;
+    private final int mask;
+    private int size;
+    private short victim;
+    private int victimBucket;
+    private int random = 0x2545f491;
+
+    /**
+     * Creates a filter with room for about capacity keys.
+     */
+    CuckooFilter(int capacity) {
+        // keep the filter below 85% full, where inserts start to fail
+        long buckets = Math.max(1, (long)Math.ceil(capacity / (BUCKET_SIZE * 0.85)));
+        int n = 1;
+        while (n < buckets && n < (1 << 28)) {
+            n <<= 1;
+        }
+        table = new short[n * BUCKET_SIZE];
+        mask = n - 1;
+    }
+    private CuckooFilter(short[] table) {
+        this.table = table;
+        mask = table.length / BUCKET_SIZE - 1;
+    }
+    /**
+     * Returns the number of keys the filter holds.
+     */
+    int size() {
+        return size;
+    }
+    /**
+     * Returns the number of keys the filter holds when its buckets are full.
+     */
+    int capacity() {
+        return table.length;
+    }
+    /**
+     * Adds a key. Returns false, without adding it, if the filter is full.
+     */
+    boolean add(String key) {
+        if (victim != 0) {
+            return false;
+        }
+        long h = hash(key);
+        short fp = fingerprint(h);
+        int i1 = (int)h & mask;
+        int i2 = alternate(i1, fp);
+        if (insert(i1, fp) || insert(i2, fp)) {
+            size++;
+            return true;
+        }
+        int bucket = (h & (1L << 32)) == 0 ? i1 : i2;
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            random ^= random << 13;
+            random ^= random >>> 17;
+            random ^= random << 5;
+            int slot = bucket * BUCKET_SIZE + (random & (BUCKET_SIZE - 1));
+            short evicted = table[slot];
+            table[slot] = fp;
+            fp = evicted;
+            bucket = alternate(bucket, fp);
+            if (insert(bucket, fp)) {
+                size++;
+                return true;
+            }
+        }
+        victim = fp;
+        victimBucket = bucket;
+        size++;
+        return true;
+    }
+    /**
+     * Returns false if the key was certainly not added, or was removed since.
+     */
+    boolean mightContain(String key) {
+        long h = hash(key);
+        short fp = fingerprint(h);
+        int i1 = (int)h & mask;
+        int i2 = alternate(i1, fp);
+        return contains(i1, fp) || contains(i2, fp)
+                || victim == fp && (victimBucket == i1 || victimBucket == i2);
+    }
+    /**
+     * Removes a key. The key must have been added; removing another key may remove the
+     * fingerprint of a key which was.
+     */
+    void remove(String key) {
+        long h = hash(key);
+        short fp = fingerprint(h);
+        int i1 = (int)h & mask;
+        int i2 = alternate(i1, fp);
+        if (victim == fp && (victimBucket == i1 || victimBucket == i2)) {
+            victim = 0;
+            size--;
+            return;
+        }
+        if (delete(i1, fp) || delete(i2, fp)) {
+            size--;
+            // the victim can go back into the table now that there may be room for it
+            if (victim != 0) {
+                short v = victim;
+                if (insert(victimBucket, v) || insert(alternate(victimBucket, v), v)) {
+                    victim = 0;
+                }
+            }
+        }
+    }
+    private boolean insert(int bucket, short fp) {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (table[i] == 0) {
+                table[i] = fp;
+                return true;
+            }
+        }
+        return false;
+    }
+    private boolean contains(int bucket, short fp) {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (table[i] == fp) {
+                return true;
+            }
+        }
+        return false;
+    }
+    private boolean delete(int bucket, short fp) {
+        int start = bucket * BUCKET_SIZE;
+        for (int i = start; i < start + BUCKET_SIZE; i++) {
+            if (table[i] == fp) {
+                table[i] = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+    // The other bucket of a fingerprint, so that either bucket leads to the other.
+    private int alternate(int bucket, short fp) {
+        return (bucket ^ (int)mix(fp & 0xffff)) & mask;
+    }
+    // Fingerprints are never 0, which marks an empty slot.
+    private static short fingerprint(long h) {
+        short fp = (short)(h >>> 48);
+        return fp == 0 ? 1 : fp;
+    }
+    /**
+     * A 64-bit hash of the key which does not change between runs, unlike String.hashCode
+     * on other platforms, since the filter is stored.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    /**
+     * Writes the filter to a file, after a header with the given state of the records file,
+     * which read compares to the records file it is opened for.
+     */
+    void write(File f, long[] state) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + 2 * table.length);
+        buf.putInt(MAGIC);
+        buf.putInt((int)state[0]);
+        buf.putLong(state[1]);
+        buf.putLong(state[2]);
+        buf.putLong(state[3]);
+        buf.putInt(table.length);
+        buf.putInt(size);
+        buf.putShort(victim);
+        buf.putInt(victimBucket);
+        buf.asShortBuffer().put(table);
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(buf.array());
+        } finally {
+            out.close();
+        }
+    }
+    /**
+     * Reads a filter written with the given state of the records file. Returns null if the
+     * file does not exist, is damaged or was written for another state.
+     */
+    static CuckooFilter read(File f, long[] state) throws IOException {
+        long length = f.length();
+        if (length < HEADER_LENGTH || length > HEADER_LENGTH + 2L * (BUCKET_SIZE << 28)) {
+            return null;
+        }
+        byte[] b = new byte[(int)length];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        if (buf.getInt() != MAGIC || buf.getInt() != (int)state[0] || buf.getLong() != state[1]
+                || buf.getLong() != state[2] || buf.getLong() != state[3]) {
+            return null;
+        }
+        int slots = buf.getInt();
+        if (slots < BUCKET_SIZE || Integer.bitCount(slots / BUCKET_SIZE) != 1 || slots % BUCKET_SIZE != 0
+                || length != HEADER_LENGTH + 2L * slots) {
+            return null;
+        }
+        int size = buf.getInt();
+        short victim = buf.getShort();
+        int victimBucket = buf.getInt();
+        CuckooFilter filter = new CuckooFilter(new short[slots]);
+        if (size < 0 || victimBucket < 0 || victimBucket > filter.mask) {
+            return null;
+        }
+        filter.size = size;
+        filter.victim = victim;
+        filter.victimBucket = victimBucket;
+        buf.asShortBuffer().get(filter.table);
+        return filter;
+    }
+}
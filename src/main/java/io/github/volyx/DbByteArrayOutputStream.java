@@ -12,6 +12,26 @@ public class DbByteArrayOutputStream extends ByteArrayOutputStream {
     public DbByteArrayOutputStream(int size) {
         super(size);
     }
+    /**
+     * Wraps the given data without copying it.
+     */
+    DbByteArrayOutputStream(byte[] data) {
+        super(0);
+        super.buf = data;
+        super.count = data.length;
+    }
+    /**
+     * Returns the buffer itself; the data is its first size() bytes.
+     */
+    synchronized byte[] getBuffer() {
+        return super.buf;
+    }
+    /**
+     * Returns the length of the buffer.
+     */
+    public synchronized int capacity() {
+        return super.buf.length;
+    }
     /**
      * Writes the full contents of the buffer a DataOutput stream.
      */
@@ -20,4 +40,10 @@ public class DbByteArrayOutputStream extends ByteArrayOutputStream {
         int l = super.size();
         dstr.write(data, 0, l);
     }
+    /**
+     * Writes the full contents of the buffer to the storage at the given file pointer.
+     */
+    public synchronized void writeTo(Storage storage, long fp) throws IOException {
+        storage.write(fp, super.buf, 0, super.size());
+    }
 }
@@ -0,0 +1,51 @@
+package io.github.volyx;
+
+import java.util.*;
+
+/**
+ * Orders the records by the file pointer of their data, so that the record covering a
+ * given location in the file can be found with a single TreeMap search (O(log n)).
+ */
+class ExtentMap {
+    private final TreeMap<Long, RecordHeader> extents = new TreeMap<Long, RecordHeader>();
+
+    /**
+     * Files the header under its current data pointer. Must be called after every change
+     * to the header's data pointer.
+     */
+    void update(RecordHeader header) {
+        if (header.filedDataPointer == header.dataPointer) {
+            return;
+        }
+        remove(header);
+        extents.put(header.dataPointer, header);
+        header.filedDataPointer = header.dataPointer;
+    }
+    /**
+     * Removes the header from the map. Another header which has since been filed under
+     * the same data pointer is left in place.
+     */
+    void remove(RecordHeader header) {
+        if (header.filedDataPointer < 0) {
+            return;
+        }
+        if (extents.get(header.filedDataPointer) == header) {
+            extents.remove(header.filedDataPointer);
+        }
+        header.filedDataPointer = -1;
+    }
+    /**
+     * Returns the record whose data region contains the target file pointer, or null.
+     */
+    RecordHeader recordAt(long targetFp) {
+        Map.Entry<Long, RecordHeader> e = extents.floorEntry(targetFp);
+        if (e == null) {
+            return null;
+        }
+        RecordHeader h = e.getValue();
+        return targetFp < h.dataPointer + (long)h.dataCapacity ? h : null;
+    }
+    void clear() {
+        extents.clear();
+    }
+}
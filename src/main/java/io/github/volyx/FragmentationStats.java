@@ -0,0 +1,55 @@
+package io.github.volyx;
+
+/**
+ * A snapshot of how much of the data region of a file is taken by record data.
+ */
+public class FragmentationStats {
+    private final int numRecords;
+    private final long dataRegionLength;
+    private final long totalCapacity;
+    private final long liveBytes;
+
+    FragmentationStats(int numRecords, long dataRegionLength, long totalCapacity, long liveBytes) {
+        this.numRecords = numRecords;
+        this.dataRegionLength = dataRegionLength;
+        this.totalCapacity = totalCapacity;
+        this.liveBytes = liveBytes;
+    }
+    public int getNumRecords() {
+        return numRecords;
+    }
+    /**
+     * Returns the number of bytes between the start of the record data and the end of the file.
+     */
+    public long getDataRegionLength() {
+        return dataRegionLength;
+    }
+    /**
+     * Returns the sum of the capacities of all records.
+     */
+    public long getTotalCapacity() {
+        return totalCapacity;
+    }
+    /**
+     * Returns the sum of the data counts of all records.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+    /**
+     * Returns the number of bytes in the data region which do not hold record data.
+     */
+    public long getSlackBytes() {
+        return dataRegionLength - liveBytes;
+    }
+    /**
+     * Returns the fraction of the data region which does not hold record data, from 0 to 1.
+     */
+    public double getFragmentation() {
+        return dataRegionLength == 0 ? 0 : (double)getSlackBytes() / dataRegionLength;
+    }
+    public String toString() {
+        return "FragmentationStats{records=" + numRecords + ", dataRegion=" + dataRegionLength
+                + ", capacity=" + totalCapacity + ", live=" + liveBytes + "}";
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.volyx;
+
+import java.util.*;
+
+/**
+ * Keeps track of the records which have free space at the end of their data area,
+ * keyed by the amount of free space. The capacity reserved for a record's padding is not
+ * free space. Records with the same amount of free space are
+ * chained through their prevFree/nextFree links, so a lookup is a single TreeMap
+ * search (O(log n)) and no objects are created per record.
+ */
+class FreeSpaceIndex {
+    // Maps an amount of free space to the first record of the chain having that much space.
+    private final TreeMap<Integer, RecordHeader> chains = new TreeMap<Integer, RecordHeader>();
+    private volatile AllocationPolicy policy;
+    private final int padding;
+    private final boolean adaptivePadding;
+
+    FreeSpaceIndex(AllocationPolicy policy, int padding, boolean adaptivePadding) {
+        this.policy = policy;
+        this.padding = padding;
+        this.adaptivePadding = adaptivePadding;
+    }
+    AllocationPolicy getPolicy() {
+        return policy;
+    }
+    void setPolicy(AllocationPolicy policy) {
+        this.policy = policy;
+    }
+    /**
+     * Files the header under its current free space. Must be called after every change
+     * to the header's data count or capacity.
+     */
+    void update(RecordHeader header) {
+        int free = header.getSpareSpace(padding, adaptivePadding);
+        if (free == header.filedFreeSpace) {
+            return;
+        }
+        remove(header);
+        if (free > 0) {
+            RecordHeader head = chains.get(free);
+            if (head != null) {
+                head.prevFree = header;
+                header.nextFree = head;
+            }
+            chains.put(free, header);
+            header.filedFreeSpace = free;
+        }
+    }
+    /**
+     * Removes the header from the index.
+     */
+    void remove(RecordHeader header) {
+        if (header.filedFreeSpace == 0) {
+            return;
+        }
+        if (header.prevFree != null) {
+            header.prevFree.nextFree = header.nextFree;
+        } else if (header.nextFree != null) {
+            chains.put(header.filedFreeSpace, header.nextFree);
+        } else {
+            chains.remove(header.filedFreeSpace);
+        }
+        if (header.nextFree != null) {
+            header.nextFree.prevFree = header.prevFree;
+        }
+        header.prevFree = null;
+        header.nextFree = null;
+        header.filedFreeSpace = 0;
+    }
+    /**
+     * Returns a record with at least dataLength bytes of free space, chosen according to
+     * the allocation policy, or null if there is none.
+     */
+    RecordHeader find(int dataLength) {
+        Map.Entry<Integer, RecordHeader> e = null;
+        if (policy == AllocationPolicy.FIRST_FIT) {
+            int sizeClass = Integer.highestOneBit(dataLength);
+            if (sizeClass < dataLength && sizeClass < (1 << 30)) {
+                sizeClass <<= 1;
+            }
+            e = chains.ceilingEntry(sizeClass);
+        }
+        if (e == null) {
+            e = chains.ceilingEntry(dataLength);
+        }
+        return e == null ? null : e.getValue();
+    }
+    void clear() {
+        chains.clear();
+    }
+}
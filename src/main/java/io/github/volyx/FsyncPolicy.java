@@ -0,0 +1,21 @@
+package io.github.volyx;
+
+/**
+ * Controls when the write-ahead log is forced to disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * A mutation returns only after its log record has been forced to disk. Concurrent
+     * mutations share one force (group commit).
+     */
+    EVERY_COMMIT,
+    /**
+     * The log is forced by a background thread at a fixed interval. A power failure may lose
+     * the mutations of the last interval, but never leaves a partially applied one.
+     */
+    INTERVAL,
+    /**
+     * The log is never forced, except at checkpoints. Protects against process crashes only.
+     */
+    NEVER
+}
@@ -0,0 +1,67 @@
+package io.github.volyx;
+
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record index made of heap objects: a ConcurrentHashMap from key to a shared RecordHeader,
+ * a FreeSpaceIndex and an ExtentMap. The map may be queried without locking.
+ */
+class HeapRecordIndex implements RecordIndex {
+    private final ConcurrentHashMap<String, RecordHeader> memIndex;
+    private final FreeSpaceIndex freeSpace;
+    private final ExtentMap extents = new ExtentMap();
+
+    HeapRecordIndex(int initialSize, AllocationPolicy policy, int padding, boolean adaptivePadding) {
+        memIndex = new ConcurrentHashMap<String, RecordHeader>(Math.max(initialSize, 16));
+        freeSpace = new FreeSpaceIndex(policy, padding, adaptivePadding);
+    }
+    public int size() {
+        return memIndex.size();
+    }
+    public boolean containsKey(String key) {
+        return memIndex.containsKey(key);
+    }
+    public RecordHeader get(String key) {
+        return memIndex.get(key);
+    }
+    public void put(String key, RecordHeader header) {
+        memIndex.put(key, header);
+        update(header);
+    }
+    public void update(RecordHeader header) {
+        freeSpace.update(header);
+        extents.update(header);
+    }
+    public RecordHeader remove(String key) {
+        RecordHeader deleted = memIndex.remove(key);
+        if (deleted != null) {
+            freeSpace.remove(deleted);
+            extents.remove(deleted);
+        }
+        return deleted;
+    }
+    public RecordHeader recordAt(long targetFp) {
+        return extents.recordAt(targetFp);
+    }
+    public RecordHeader findFreeSpace(int dataLength) {
+        return freeSpace.find(dataLength);
+    }
+    public AllocationPolicy getPolicy() {
+        return freeSpace.getPolicy();
+    }
+    public void setPolicy(AllocationPolicy policy) {
+        freeSpace.setPolicy(policy);
+    }
+    /**
+     * Returns a weakly consistent enumeration which does not block writers.
+     */
+    public Enumeration keys() {
+        return memIndex.keys();
+    }
+    public void clear() {
+        memIndex.clear();
+        freeSpace.clear();
+        extents.clear();
+    }
+}
@@ -0,0 +1,17 @@
+package io.github.volyx;
+
+/**
+ * Selects how RecordsFile holds its in-memory index.
+ */
+public enum IndexMode {
+    /**
+     * A ConcurrentHashMap from key to RecordHeader, with TreeMap based free space and extent
+     * indexes. Several heap objects per record.
+     */
+    HEAP,
+    /**
+     * Open-addressing tables of primitive columns kept off-heap, with the keys stored as
+     * their UTF-8 bytes. No heap objects per record; key lookups do not allocate.
+     */
+    COMPACT
+}
@@ -0,0 +1,31 @@
+package io.github.volyx;
+
+import java.io.*;
+
+/**
+ * Writes objects with an ObjectOutputStream per record, so the stream header is written once
+ * per record.
+ */
+public class JavaSerializationCodec implements RecordCodec {
+    public Encoder newEncoder(OutputStream out) throws IOException {
+        return encoder(new ObjectOutputStream(out));
+    }
+    public Decoder newDecoder(InputStream in) throws IOException {
+        return decoder(new ObjectInputStream(in));
+    }
+    static Encoder encoder(final ObjectOutputStream objOut) {
+        return new Encoder() {
+            public void writeObject(Object o) throws IOException {
+                objOut.writeObject(o);
+                objOut.flush();
+            }
+        };
+    }
+    static Decoder decoder(final ObjectInputStream objIn) {
+        return new Decoder() {
+            public Object readObject() throws IOException, ClassNotFoundException {
+                return objIn.readObject();
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package io.github.volyx;
+
+/**
+ * A snapshot of the latencies of one kind of operation. Percentiles are upper bounds of
+ * power-of-two buckets, so they are within a factor of two of the exact value.
+ */
+public class LatencyStats {
+    private final long count;
+    private final long totalNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+
+    LatencyStats(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+    public long getCount() {
+        return count;
+    }
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+    public String toString() {
+        return "count=" + count + " mean=" + getMeanNanos() + "ns p50=" + p50Nanos + "ns p99=" + p99Nanos
+                + "ns max=" + maxNanos + "ns";
+    }
+}
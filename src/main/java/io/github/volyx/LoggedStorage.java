@@ -0,0 +1,295 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Storage which makes each mutation atomic and durable through a write-ahead log. The writes
+ * of the current mutation are held in memory until it commits; its changes are then appended
+ * to the log as one redo record. They are applied to the data storage only once that record
+ * is on disk, or right after it has been written when the fsync policy is NEVER. Committed
+ * changes which are not yet applied are kept in memory as well, and reads see them.
+ * <p>
+ * Commits, and the application of committed changes, must happen under the write lock of the
+ * records file.
+ */
+class LoggedStorage implements Storage {
+    // Committed changes are applied inline once this many bytes are waiting.
+    private static final long MAX_PENDING_BYTES = 64L << 20;
+    private final Storage data;
+    private final WriteAheadLog wal;
+    private final FsyncPolicy policy;
+    private final long checkpointSize;
+    private final Lock writeLock;
+    // Changes of the mutation in progress.
+    private final WriteOverlay txn = new WriteOverlay();
+    // Committed changes which have not been applied to the data storage yet.
+    private final WriteOverlay pending = new WriteOverlay();
+    // LSN of the last commit merged into pending.
+    private long pendingLsn;
+    private ScheduledExecutorService flusher;
+    private volatile IOException flushError;
+    // Set once the flusher is stopped, so that a flush waiting for the write lock gives up.
+    private volatile boolean closed;
+
+    LoggedStorage(Storage data, WriteAheadLog wal, RecordsFileOptions options, Lock writeLock) {
+        this.data = data;
+        this.wal = wal;
+        this.policy = options.getFsyncPolicy();
+        this.checkpointSize = options.getCheckpointSize();
+        this.writeLock = writeLock;
+        if (policy == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "records-file-log-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long interval = options.getFsyncIntervalMillis();
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        flushError = e;
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+    /**
+     * Logs the changes of the current mutation. Returns the LSN the caller has to wait for
+     * with awaitDurable once it has released the write lock, or -1 if there is nothing to
+     * wait for.
+     */
+    long commit() throws IOException {
+        IOException e = flushError;
+        if (e != null) {
+            throw new IOException("Write-ahead log could not be flushed", e);
+        }
+        if (txn.isEmpty()) {
+            return -1;
+        }
+        long lsn = wal.append(txn);
+        if (policy == FsyncPolicy.NEVER) {
+            txn.applyTo(data);
+        } else {
+            pending.merge(txn);
+            pendingLsn = lsn;
+        }
+        txn.clear();
+        if (pending.bytes() > MAX_PENDING_BYTES) {
+            wal.sync(lsn);
+            applyPending();
+        }
+        checkpoint();
+        return policy == FsyncPolicy.EVERY_COMMIT ? lsn : -1;
+    }
+    /**
+     * Waits until the log is on disk up to the given LSN, then applies the committed changes
+     * if all of them are on disk. Must be called without holding the write lock.
+     */
+    void awaitDurable(long lsn) throws IOException {
+        wal.sync(lsn);
+        writeLock.lock();
+        try {
+            if (!pending.isEmpty() && wal.isDurable(pendingLsn)) {
+                applyPending();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /**
+     * Run by the flusher: forces the log and applies the committed changes. Waits for the
+     * write lock in short steps, so that it stops waiting once the storage is closing,
+     * possibly by a thread which holds the lock.
+     */
+    private void flush() throws IOException {
+        wal.sync(wal.getAppendedLsn());
+        try {
+            while (!writeLock.tryLock(10, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            if (!closed && !pending.isEmpty() && wal.isDurable(pendingLsn)) {
+                applyPending();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /**
+     * Stops the flusher and waits for a flush in progress. Called by the records file before
+     * it takes the write lock to close, so that the flush is not left waiting for the lock.
+     */
+    void stopFlusher() {
+        closed = true;
+        if (flusher != null) {
+            // not shutdownNow: interrupting a force would close the log's channel
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    private void applyPending() throws IOException {
+        pending.applyTo(data);
+        pending.clear();
+        checkpoint();
+    }
+    /**
+     * Empties the log once it has grown past the checkpoint size and all of it is applied.
+     */
+    private void checkpoint() throws IOException {
+        if (pending.isEmpty() && wal.size() >= checkpointSize) {
+            data.sync();
+            wal.reset();
+        }
+    }
+    public long length() throws IOException {
+        if (txn.getLength() >= 0) {
+            return txn.getLength();
+        }
+        if (pending.getLength() >= 0) {
+            return pending.getLength();
+        }
+        return data.length();
+    }
+    /**
+     * Returns the length up to which the data storage holds current bytes, apart from the
+     * ranges in the overlays.
+     */
+    private long dataLimit() throws IOException {
+        long limit = data.length();
+        if (pending.getMinLength() >= 0) {
+            limit = Math.min(limit, pending.getMinLength());
+        }
+        if (txn.getMinLength() >= 0) {
+            limit = Math.min(limit, txn.getMinLength());
+        }
+        return limit;
+    }
+    private boolean isClean(long fp, long len) throws IOException {
+        return fp + len <= dataLimit() && !pending.overlaps(fp, len) && !txn.overlaps(fp, len);
+    }
+    public void setLength(long length) throws IOException {
+        txn.setLength(length, length());
+    }
+    public void read(long fp, byte[] b, int off, int len) throws IOException {
+        if (fp < 0 || fp + len > length()) {
+            throw new EOFException("Read beyond end of file: " + fp + "+" + len);
+        }
+        int n = (int)Math.max(0, Math.min(len, dataLimit() - fp));
+        if (n > 0) {
+            data.read(fp, b, off, n);
+        }
+        Arrays.fill(b, off + n, off + len, (byte)0);
+        pending.patch(fp, b, off, len, txn.getMinLength() >= 0 ? txn.getMinLength() : Long.MAX_VALUE);
+        txn.patch(fp, b, off, len, Long.MAX_VALUE);
+    }
+    public void read(long fp, ByteBuffer dst) throws IOException {
+        if (isClean(fp, dst.remaining())) {
+            data.read(fp, dst);
+        } else {
+            byte[] b = new byte[dst.remaining()];
+            read(fp, b, 0, b.length);
+            dst.put(b);
+        }
+    }
+    public ByteBuffer slice(long fp, int len) throws IOException {
+        return isClean(fp, len) ? data.slice(fp, len) : null;
+    }
+    public void transferTo(long fp, long count, WritableByteChannel target) throws IOException {
+        if (isClean(fp, count)) {
+            data.transferTo(fp, count, target);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(count, 1 << 16));
+        while (count > 0) {
+            buf.clear();
+            buf.limit((int)Math.min(count, buf.capacity()));
+            read(fp, buf.array(), 0, buf.limit());
+            while (buf.hasRemaining()) {
+                if (target.write(buf) <= 0) {
+                    throw new IOException("Target channel accepted no bytes at " + fp);
+                }
+            }
+            fp += buf.limit();
+            count -= buf.limit();
+        }
+    }
+    public void write(long fp, byte[] b, int off, int len) throws IOException {
+        long length = length();
+        if (fp + len > length) {
+            txn.setLength(fp + len, length);
+        }
+        txn.write(fp, b, off, len);
+    }
+    public int readInt(long fp) throws IOException {
+        byte[] b = new byte[4];
+        read(fp, b, 0, 4);
+        return Bytes.getInt(b, 0);
+    }
+    public void writeInt(long fp, int v) throws IOException {
+        byte[] b = new byte[4];
+        Bytes.putInt(b, 0, v);
+        write(fp, b, 0, 4);
+    }
+    public long readLong(long fp) throws IOException {
+        byte[] b = new byte[8];
+        read(fp, b, 0, 8);
+        return Bytes.getLong(b, 0);
+    }
+    public void writeLong(long fp, long v) throws IOException {
+        byte[] b = new byte[8];
+        Bytes.putLong(b, 0, v);
+        write(fp, b, 0, 8);
+    }
+    /**
+     * Forces the log to disk, applies every committed change and forces the data to disk.
+     */
+    public void sync() throws IOException {
+        writeLock.lock();
+        try {
+            wal.sync(wal.getAppendedLsn());
+            if (!pending.isEmpty()) {
+                applyPending();
+            }
+            data.sync();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /**
+     * Applies every committed change, empties the log and closes both files.
+     */
+    public void close() throws IOException {
+        stopFlusher();
+        writeLock.lock();
+        try {
+            sync();
+            wal.reset();
+        } finally {
+            writeLock.unlock();
+            try {
+                wal.close();
+            } finally {
+                data.close();
+            }
+        }
+    }
+}
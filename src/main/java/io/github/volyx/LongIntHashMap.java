@@ -0,0 +1,122 @@
+package io.github.volyx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Open-addressing hash map from long to int with linear probing, kept off-heap. Removal
+ * shifts later entries back instead of leaving tombstones.
+ */
+final class LongIntHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private LongBuffer keys;
+    private IntBuffer values;
+    private int mask;
+    private int size;
+
+    LongIntHashMap(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+    static int tableSize(int expectedSize) {
+        int n = 16;
+        while (n < expectedSize * 2L && n < (1 << 30)) {
+            n <<= 1;
+        }
+        return n;
+    }
+    private void allocate(int tableSize) {
+        keys = ByteBuffer.allocateDirect(tableSize * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        values = ByteBuffer.allocateDirect(tableSize * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        for (int i = 0; i < tableSize; i++) {
+            keys.put(i, EMPTY);
+        }
+        mask = tableSize - 1;
+        size = 0;
+    }
+    private int home(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+    /**
+     * Returns the value of the key, or -1.
+     */
+    int get(long key) {
+        for (int i = home(key); ; i = (i + 1) & mask) {
+            long k = keys.get(i);
+            if (k == key) {
+                return values.get(i);
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+        }
+    }
+    void put(long key, int value) {
+        if ((size + 1) * 2L > mask + 1) {
+            resize();
+        }
+        for (int i = home(key); ; i = (i + 1) & mask) {
+            long k = keys.get(i);
+            if (k == key) {
+                values.put(i, value);
+                return;
+            }
+            if (k == EMPTY) {
+                keys.put(i, key);
+                values.put(i, value);
+                size++;
+                return;
+            }
+        }
+    }
+    /**
+     * Removes the key if it maps to the given value.
+     */
+    void remove(long key, int value) {
+        int i = home(key);
+        while (true) {
+            long k = keys.get(i);
+            if (k == EMPTY) {
+                return;
+            }
+            if (k == key) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        if (values.get(i) != value) {
+            return;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long k = keys.get(j);
+            if (k == EMPTY) {
+                break;
+            }
+            int h = home(k);
+            // leave the entry in place if its home lies cyclically in (i, j]
+            if (i <= j ? (i < h && h <= j) : (i < h || h <= j)) {
+                continue;
+            }
+            keys.put(i, k);
+            values.put(i, values.get(j));
+            i = j;
+        }
+        keys.put(i, EMPTY);
+        size--;
+    }
+    private void resize() {
+        LongBuffer oldKeys = keys;
+        IntBuffer oldValues = values;
+        allocate((mask + 1) * 2);
+        for (int i = 0; i < oldKeys.capacity(); i++) {
+            long k = oldKeys.get(i);
+            if (k != EMPTY) {
+                put(k, oldValues.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.volyx;
+
+import java.util.*;
+
+/**
+ * A record cache which evicts the least recently used record.
+ */
+class LruRecordCache extends RecordCache {
+    private final LinkedHashMap<String, byte[]> map = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    LruRecordCache(long capacity) {
+        super(capacity);
+    }
+    protected byte[] lookup(String key) {
+        return map.get(key);
+    }
+    protected void add(String key, byte[] data, long weight) {
+        map.put(key, data);
+        size += weight;
+        Iterator<Map.Entry<String, byte[]>> it = map.entrySet().iterator();
+        while (size > capacity) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            size -= weight(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+    protected void remove(String key) {
+        byte[] data = map.remove(key);
+        if (data != null) {
+            size -= weight(key, data);
+        }
+    }
+    protected void clearEntries() {
+        map.clear();
+    }
+    protected int entries() {
+        return map.size();
+    }
+}
@@ -0,0 +1,284 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Storage which maps the file into memory in fixed size segments, so that reads and writes
+ * are plain memory accesses. The mapping is extended ahead of the file length in large steps
+ * as the file grows; the file is truncated back to its length when the storage is closed.
+ * While the file is longer than its length, its last TRAILER_LENGTH bytes hold the length,
+ * so that a file which was not closed is opened with its length rather than with the zero
+ * filled tail. The trailer is only looked for when the caller knows, from the contents of the
+ * file, that it was left open by this class.
+ */
+public class MappedStorage implements Storage {
+    /**
+     * Default size of one mapped segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    // Smallest step by which the mapping is extended.
+    private static final long MIN_GROWTH = 1 << 20;
+    // Marker and length written at the end of a file which is longer than its length.
+    private static final long TRAILER_MAGIC = 0x4d53544f524c454eL;
+    static final int TRAILER_LENGTH = 16;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int segmentShift;
+    private final long segmentMask;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    // Number of bytes covered by the segments, which is also the physical file length.
+    private long mappedLength;
+    // Logical length of the file.
+    private long length;
+
+    /**
+     * Opens and maps the file. The accessFlags parameter can be "r" or "rw" -- as defined in
+     * RandomAccessFile. The segment size must be a power of two.
+     */
+    public MappedStorage(File f, String accessFlags, int segmentSize) throws IOException {
+        this(f, accessFlags, segmentSize, false);
+    }
+    /**
+     * Opens and maps the file, taking its length from its trailer if trailer is set and the
+     * file has one. A file opened for writing is truncated to that length.
+     */
+    MappedStorage(File f, String accessFlags, int segmentSize, boolean trailer) throws IOException {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size is not a power of two: " + segmentSize);
+        }
+        segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        segmentMask = segmentSize - 1;
+        file = new RandomAccessFile(f, accessFlags);
+        channel = file.getChannel();
+        writable = accessFlags.indexOf('w') >= 0;
+        try {
+            long size = channel.size();
+            length = trailer ? trailerLength(channel) : size;
+            if (writable && length < size) {
+                channel.truncate(length);
+                size = length;
+            }
+            map(size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    public MappedStorage(File f, String accessFlags) throws IOException {
+        this(f, accessFlags, DEFAULT_SEGMENT_SIZE);
+    }
+    /**
+     * Maps the first newMappedLength bytes of the file, growing the file if needed. Segments
+     * whose size does not change are kept.
+     */
+    private void map(long newMappedLength) throws IOException {
+        if (writable && newMappedLength > channel.size()) {
+            file.setLength(newMappedLength);
+        }
+        long segmentSize = segmentMask + 1;
+        int count = (int)((newMappedLength + segmentMask) >>> segmentShift);
+        MappedByteBuffer[] s = Arrays.copyOf(segments, count);
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < count; i++) {
+            long start = (long)i << segmentShift;
+            long size = Math.min(segmentSize, newMappedLength - start);
+            if (s[i] == null || s[i].capacity() != size) {
+                s[i] = channel.map(mode, start, size);
+            }
+        }
+        segments = s;
+        mappedLength = newMappedLength;
+    }
+    /**
+     * Returns the length of the file: the length stored in its trailer if it has one, else
+     * its size. A trailer is only looked for when the size is a multiple of the growth step,
+     * as the mapping is always extended to one. The tail of a file not written by this class
+     * may look like a trailer, so callers only use this for files known to be left by it.
+     */
+    static long trailerLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < MIN_GROWTH || size % MIN_GROWTH != 0) {
+            return size;
+        }
+        ByteBuffer b = ByteBuffer.allocate(TRAILER_LENGTH);
+        while (b.hasRemaining()) {
+            if (channel.read(b, size - TRAILER_LENGTH + b.position()) < 0) {
+                return size;
+            }
+        }
+        long magic = b.getLong(0);
+        long stored = b.getLong(8);
+        if (magic != TRAILER_MAGIC || stored < 0 || stored > size - TRAILER_LENGTH) {
+            return size;
+        }
+        return stored;
+    }
+    public long length() {
+        return length;
+    }
+    public void setLength(long newLength) throws IOException {
+        if (!writable) {
+            throw new IOException("Storage is read only");
+        }
+        if (newLength + TRAILER_LENGTH > mappedLength) {
+            long growth = Math.max(MIN_GROWTH, Math.min(mappedLength, segmentMask + 1));
+            long target = Math.max(newLength + TRAILER_LENGTH, mappedLength + growth);
+            map((target + MIN_GROWTH - 1) / MIN_GROWTH * MIN_GROWTH);
+        }
+        length = newLength;
+        writeTrailer();
+    }
+    // Stores the length at the end of the mapping, which is the end of the file.
+    private void writeTrailer() throws IOException {
+        byte[] b = new byte[TRAILER_LENGTH];
+        Bytes.putLong(b, 0, TRAILER_MAGIC);
+        Bytes.putLong(b, 8, length);
+        long fp = mappedLength - TRAILER_LENGTH;
+        int off = 0;
+        while (off < b.length) {
+            ByteBuffer seg = segments[(int)(fp >>> segmentShift)].duplicate();
+            int pos = (int)(fp & segmentMask);
+            int n = Math.min(b.length - off, seg.capacity() - pos);
+            seg.position(pos);
+            seg.put(b, off, n);
+            fp += n;
+            off += n;
+        }
+    }
+    private void checkBounds(long fp, long len) throws IOException {
+        if (fp < 0 || fp + len > length) {
+            throw new EOFException("Access beyond end of file: " + fp + "+" + len);
+        }
+    }
+    public void read(long fp, byte[] b, int off, int len) throws IOException {
+        checkBounds(fp, len);
+        while (len > 0) {
+            ByteBuffer seg = segments[(int)(fp >>> segmentShift)].duplicate();
+            int pos = (int)(fp & segmentMask);
+            int n = Math.min(len, seg.capacity() - pos);
+            seg.position(pos);
+            seg.get(b, off, n);
+            fp += n;
+            off += n;
+            len -= n;
+        }
+    }
+    public void read(long fp, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        checkBounds(fp, len);
+        while (len > 0) {
+            ByteBuffer seg = segments[(int)(fp >>> segmentShift)].duplicate();
+            int pos = (int)(fp & segmentMask);
+            int n = Math.min(len, seg.capacity() - pos);
+            seg.limit(pos + n);
+            seg.position(pos);
+            dst.put(seg);
+            fp += n;
+            len -= n;
+        }
+    }
+    /**
+     * Returns a read-only view of the mapped bytes, or null if they straddle two segments.
+     */
+    public ByteBuffer slice(long fp, int len) throws IOException {
+        checkBounds(fp, len);
+        ByteBuffer seg = segments[(int)(fp >>> segmentShift)].asReadOnlyBuffer();
+        int pos = (int)(fp & segmentMask);
+        if (pos + len > seg.capacity()) {
+            return null;
+        }
+        seg.limit(pos + len);
+        seg.position(pos);
+        return seg.slice();
+    }
+    public void transferTo(long fp, long count, WritableByteChannel target) throws IOException {
+        checkBounds(fp, count);
+        RandomAccessStorage.transfer(channel, fp, count, target);
+    }
+    public void write(long fp, byte[] b, int off, int len) throws IOException {
+        checkBounds(fp, len);
+        while (len > 0) {
+            ByteBuffer seg = segments[(int)(fp >>> segmentShift)].duplicate();
+            int pos = (int)(fp & segmentMask);
+            int n = Math.min(len, seg.capacity() - pos);
+            seg.position(pos);
+            seg.put(b, off, n);
+            fp += n;
+            off += n;
+            len -= n;
+        }
+    }
+    public void sync() throws IOException {
+        for (MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+        channel.force(true);
+    }
+    public int readInt(long fp) throws IOException {
+        checkBounds(fp, 4);
+        int pos = (int)(fp & segmentMask);
+        MappedByteBuffer seg = segments[(int)(fp >>> segmentShift)];
+        if (pos + 4 <= seg.capacity()) {
+            return seg.getInt(pos);
+        }
+        byte[] b = new byte[4];
+        read(fp, b, 0, 4);
+        return Bytes.getInt(b, 0);
+    }
+    public void writeInt(long fp, int v) throws IOException {
+        checkBounds(fp, 4);
+        int pos = (int)(fp & segmentMask);
+        MappedByteBuffer seg = segments[(int)(fp >>> segmentShift)];
+        if (pos + 4 <= seg.capacity()) {
+            seg.putInt(pos, v);
+        } else {
+            byte[] b = new byte[4];
+            Bytes.putInt(b, 0, v);
+            write(fp, b, 0, 4);
+        }
+    }
+    public long readLong(long fp) throws IOException {
+        checkBounds(fp, 8);
+        int pos = (int)(fp & segmentMask);
+        MappedByteBuffer seg = segments[(int)(fp >>> segmentShift)];
+        if (pos + 8 <= seg.capacity()) {
+            return seg.getLong(pos);
+        }
+        byte[] b = new byte[8];
+        read(fp, b, 0, 8);
+        return Bytes.getLong(b, 0);
+    }
+    public void writeLong(long fp, long v) throws IOException {
+        checkBounds(fp, 8);
+        int pos = (int)(fp & segmentMask);
+        MappedByteBuffer seg = segments[(int)(fp >>> segmentShift)];
+        if (pos + 8 <= seg.capacity()) {
+            seg.putLong(pos, v);
+        } else {
+            byte[] b = new byte[8];
+            Bytes.putLong(b, 0, v);
+            write(fp, b, 0, 8);
+        }
+    }
+    /**
+     * Releases the mapping and truncates the file to its length. Some platforms refuse to
+     * truncate a file which is still mapped; the exception is thrown after the file is
+     * closed, and the file keeps its trailer, so that it is still opened with its length.
+     */
+    public void close() throws IOException {
+        segments = null;
+        try {
+            if (writable && channel.size() > length) {
+                channel.truncate(length);
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.volyx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Counts the bytes read and written and the syncs of another storage.
+ */
+class MeteredStorage implements Storage {
+    private final Storage storage;
+    private final RecordsFileMetrics metrics;
+
+    MeteredStorage(Storage storage, RecordsFileMetrics metrics) throws IOException {
+        this.storage = storage;
+        this.metrics = metrics;
+        metrics.fileLength = storage.length();
+    }
+    public long length() throws IOException {
+        return storage.length();
+    }
+    public void setLength(long length) throws IOException {
+        storage.setLength(length);
+        metrics.fileLength = length;
+    }
+    public void read(long fp, byte[] b, int off, int len) throws IOException {
+        storage.read(fp, b, off, len);
+        metrics.bytesRead.add(len);
+    }
+    public void write(long fp, byte[] b, int off, int len) throws IOException {
+        storage.write(fp, b, off, len);
+        metrics.bytesWritten.add(len);
+        if (fp + len > metrics.fileLength) {
+            metrics.fileLength = fp + len;
+        }
+    }
+    public void read(long fp, ByteBuffer dst) throws IOException {
+        int len = dst.remaining();
+        storage.read(fp, dst);
+        metrics.bytesRead.add(len);
+    }
+    public ByteBuffer slice(long fp, int len) throws IOException {
+        ByteBuffer slice = storage.slice(fp, len);
+        if (slice != null) {
+            metrics.bytesRead.add(len);
+        }
+        return slice;
+    }
+    public void transferTo(long fp, long count, WritableByteChannel target) throws IOException {
+        storage.transferTo(fp, count, target);
+        metrics.bytesRead.add(count);
+    }
+    public void sync() throws IOException {
+        storage.sync();
+        metrics.fsyncs.increment();
+    }
+    public int readInt(long fp) throws IOException {
+        int v = storage.readInt(fp);
+        metrics.bytesRead.add(4);
+        return v;
+    }
+    public void writeInt(long fp, int v) throws IOException {
+        storage.writeInt(fp, v);
+        metrics.bytesWritten.add(4);
+    }
+    public long readLong(long fp) throws IOException {
+        long v = storage.readLong(fp);
+        metrics.bytesRead.add(8);
+        return v;
+    }
+    public void writeLong(long fp, long v) throws IOException {
+        storage.writeLong(fp, v);
+        metrics.bytesWritten.add(8);
+    }
+    public void close() throws IOException {
+        storage.close();
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage on top of a RandomAccessFile. Reads are positional reads on the file's channel, so
+ * they do not move the file pointer and can run concurrently. Writes are a seek followed by a
+ * write system call and must not run concurrently with any other access.
+ */
+public class RandomAccessStorage implements Storage {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Length of a file left longer than its length by MappedStorage, or -1.
+    private long trailerLength = -1;
+
+    /**
+     * Opens the file. The accessFlags parameter can be "r" or "rw" -- as defined in RandomAccessFile.
+     */
+    public RandomAccessStorage(File f, String accessFlags) throws IOException {
+        this(f, accessFlags, false);
+    }
+    /**
+     * Opens the file. If trailer is set, a file which MappedStorage did not truncate to its
+     * length is truncated now, or, if it is opened read only, reported with its length.
+     */
+    RandomAccessStorage(File f, String accessFlags, boolean trailer) throws IOException {
+        file = new RandomAccessFile(f, accessFlags);
+        channel = file.getChannel();
+        if (!trailer) {
+            return;
+        }
+        try {
+            long length = MappedStorage.trailerLength(channel);
+            if (length < channel.size()) {
+                if (accessFlags.indexOf('w') >= 0) {
+                    channel.truncate(length);
+                } else {
+                    trailerLength = length;
+                }
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+    public long length() throws IOException {
+        return trailerLength >= 0 ? trailerLength : file.length();
+    }
+    public void setLength(long length) throws IOException {
+        file.setLength(length);
+    }
+    public void read(long fp, byte[] b, int off, int len) throws IOException {
+        read(fp, ByteBuffer.wrap(b, off, len));
+    }
+    public void read(long fp, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, fp);
+            if (n < 0) {
+                throw new EOFException("Read beyond end of file: " + fp);
+            }
+            fp += n;
+        }
+    }
+    /**
+     * Always returns null, since the file is not mapped.
+     */
+    public ByteBuffer slice(long fp, int len) {
+        return null;
+    }
+    public void transferTo(long fp, long count, WritableByteChannel target) throws IOException {
+        transfer(channel, fp, count, target);
+    }
+    /**
+     * Transfers count bytes from the channel, looping until transferTo has moved all of them.
+     * Throws if a transfer moves nothing, as a non-blocking target with a full buffer does,
+     * rather than spinning until the target drains.
+     */
+    static void transfer(FileChannel channel, long fp, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long n = channel.transferTo(fp, count, target);
+            if (n <= 0) {
+                if (fp >= channel.size()) {
+                    throw new EOFException("Transfer beyond end of file: " + fp);
+                }
+                throw new IOException("Target channel accepted no bytes at " + fp);
+            }
+            fp += n;
+            count -= n;
+        }
+    }
+    public void write(long fp, byte[] b, int off, int len) throws IOException {
+        file.seek(fp);
+        file.write(b, off, len);
+    }
+    public void sync() throws IOException {
+        channel.force(true);
+    }
+    public int readInt(long fp) throws IOException {
+        byte[] b = new byte[4];
+        read(fp, b, 0, 4);
+        return Bytes.getInt(b, 0);
+    }
+    public void writeInt(long fp, int v) throws IOException {
+        file.seek(fp);
+        file.writeInt(v);
+    }
+    public long readLong(long fp) throws IOException {
+        byte[] b = new byte[8];
+        read(fp, b, 0, 8);
+        return Bytes.getLong(b, 0);
+    }
+    public void writeLong(long fp, long v) throws IOException {
+        file.seek(fp);
+        file.writeLong(v);
+    }
+    public void close() throws IOException {
+        file.close();
+    }
+}
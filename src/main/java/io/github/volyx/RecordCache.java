@@ -0,0 +1,74 @@
+package io.github.volyx;
+
+/**
+ * A cache of record data in front of the file, bounded by the bytes its entries are charged
+ * for. The methods are synchronized, since readers share the cache under the read lock.
+ * Cached arrays must not be changed by callers.
+ */
+abstract class RecordCache {
+    // Bytes charged for an entry besides its data and key.
+    static final int ENTRY_OVERHEAD = 64;
+
+    protected final long capacity;
+    protected long size;
+    protected long evictions;
+    private long hits;
+    private long misses;
+
+    protected RecordCache(long capacity) {
+        this.capacity = capacity;
+    }
+    static RecordCache create(long capacity, CachePolicy policy) {
+        if (policy == CachePolicy.TINY_LFU) {
+            return new TinyLfuRecordCache(capacity);
+        }
+        return new LruRecordCache(capacity);
+    }
+    static long weight(String key, byte[] data) {
+        return data.length + 2L * key.length() + ENTRY_OVERHEAD;
+    }
+    /**
+     * Returns the cached data of the record, or null.
+     */
+    synchronized byte[] get(String key) {
+        byte[] data = lookup(key);
+        if (data == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return data;
+    }
+    /**
+     * Caches the data of a record which was just read, evicting others to make room.
+     * Records larger than the whole cache are not cached.
+     */
+    synchronized void put(String key, byte[] data) {
+        long weight = weight(key, data);
+        if (weight <= capacity) {
+            remove(key);
+            add(key, data, weight);
+        }
+    }
+    /**
+     * Drops a record which was updated or deleted.
+     */
+    synchronized void invalidate(String key) {
+        remove(key);
+    }
+    synchronized void clear() {
+        clearEntries();
+        size = 0;
+    }
+    synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, entries(), size, capacity);
+    }
+    protected abstract byte[] lookup(String key);
+    /**
+     * Adds a record which is not cached, and evicts records until size is within capacity.
+     */
+    protected abstract void add(String key, byte[] data, long weight);
+    protected abstract void remove(String key);
+    protected abstract void clearEntries();
+    protected abstract int entries();
+}
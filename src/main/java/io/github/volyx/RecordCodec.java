@@ -0,0 +1,34 @@
+package io.github.volyx;
+
+import java.io.*;
+
+/**
+ * Turns objects into record data and back. RecordWriter.writeObject and
+ * RecordReader.readObject go through a codec; each record gets its own encoder or decoder,
+ * so several objects can be written to and read from one record. Codecs are shared between
+ * threads, encoders and decoders are not.
+ */
+public interface RecordCodec {
+    /**
+     * Java serialization through ObjectOutputStream, the format RecordWriter has always written.
+     */
+    RecordCodec JAVA_SERIALIZATION = new JavaSerializationCodec();
+    /**
+     * A compact tagged binary format for primitive wrappers, strings and byte arrays.
+     */
+    RecordCodec BINARY = new BinaryCodec();
+
+    Encoder newEncoder(OutputStream out) throws IOException;
+    Decoder newDecoder(InputStream in) throws IOException;
+
+    interface Encoder {
+        /**
+         * Writes an object to the record data. The data must be complete when this returns.
+         */
+        void writeObject(Object o) throws IOException;
+    }
+
+    interface Decoder {
+        Object readObject() throws IOException, ClassNotFoundException;
+    }
+}
@@ -0,0 +1,239 @@
+package io.github.volyx;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses record data. A compressed record starts with the method (1 byte) and the
+ * uncompressed length (4 bytes), followed by the compressed block. Each thread keeps its
+ * buffers, hash table and Deflater/Inflater, so compressing does not allocate beyond the
+ * result.
+ */
+final class RecordCompressor {
+    private static final int LZ4_METHOD = 1;
+    private static final int DEFLATE_METHOD = 2;
+    private static final int PREFIX_LENGTH = 5;
+    // LZ4 block format limits: the last 5 bytes are literals, the last match starts 12 bytes
+    // before the end.
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    private static final ThreadLocal<RecordCompressor> LOCAL = new ThreadLocal<RecordCompressor>() {
+        protected RecordCompressor initialValue() {
+            return new RecordCompressor();
+        }
+    };
+
+    private byte[] buffer = new byte[1024];
+    private final int[] table = new int[1 << HASH_LOG];
+    private Deflater deflater;
+    private Inflater inflater;
+
+    private RecordCompressor() {
+    }
+    /**
+     * Returns this thread's scratch buffer, at least length bytes long.
+     */
+    static byte[] scratch(int length) {
+        RecordCompressor c = LOCAL.get();
+        if (c.buffer.length < length) {
+            c.buffer = new byte[Math.max(length, 2 * c.buffer.length)];
+        }
+        return c.buffer;
+    }
+    /**
+     * Compresses the data with the given method. Returns null if that does not save at least
+     * an eighth of the length.
+     */
+    static byte[] compress(Compression method, byte[] data, int off, int len) {
+        RecordCompressor c = LOCAL.get();
+        int limit = len - len / 8;
+        byte[] out = scratch(PREFIX_LENGTH + len + len / 255 + 16);
+        int n;
+        if (method == Compression.LZ4) {
+            out[0] = LZ4_METHOD;
+            n = c.lz4Compress(data, off, len, out, PREFIX_LENGTH);
+        } else if (method == Compression.DEFLATE) {
+            out[0] = DEFLATE_METHOD;
+            n = c.deflate(data, off, len, out, PREFIX_LENGTH, limit);
+        } else {
+            return null;
+        }
+        if (n < 0 || PREFIX_LENGTH + n > limit) {
+            return null;
+        }
+        Bytes.putInt(out, 1, len);
+        byte[] result = new byte[PREFIX_LENGTH + n];
+        System.arraycopy(out, 0, result, 0, result.length);
+        return result;
+    }
+    /**
+     * Returns the uncompressed data of a compressed record.
+     */
+    static byte[] decompress(byte[] data, int off, int len) throws IOException {
+        if (len < PREFIX_LENGTH) {
+            throw new IOException("Corrupt compressed record");
+        }
+        int rawLength = Bytes.getInt(data, off + 1);
+        if (rawLength < 0) {
+            throw new IOException("Corrupt compressed record");
+        }
+        byte[] raw = new byte[rawLength];
+        if (data[off] == LZ4_METHOD) {
+            lz4Decompress(data, off + PREFIX_LENGTH, len - PREFIX_LENGTH, raw);
+        } else if (data[off] == DEFLATE_METHOD) {
+            LOCAL.get().inflate(data, off + PREFIX_LENGTH, len - PREFIX_LENGTH, raw);
+        } else {
+            throw new IOException("Unknown compression method " + data[off]);
+        }
+        return raw;
+    }
+    private int lz4Compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        Arrays.fill(table, 0);
+        int end = srcOff + srcLen;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip < mfLimit) {
+            int sequence = Bytes.getInt(src, ip);
+            int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < srcOff || ip - ref > MAX_OFFSET || Bytes.getInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(src, anchor, end - anchor, dst, op, 0, 0);
+        return op - dstOff;
+    }
+    // Writes a token, literals and, unless matchLength is 0, a match.
+    private static int writeSequence(byte[] src, int literalsOff, int literals, byte[] dst, int op, int offset, int matchLength) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        dst[op++] = (byte)((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalsOff, dst, op, literals);
+        op += literals;
+        if (matchLength != 0) {
+            dst[op++] = (byte)offset;
+            dst[op++] = (byte)(offset >>> 8);
+            op = writeLength(dst, op, matchCode);
+        }
+        return op;
+    }
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte)255;
+                length -= 255;
+            }
+            dst[op++] = (byte)length;
+        }
+        return op;
+    }
+    private static void lz4Decompress(byte[] src, int off, int len, byte[] dst) throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > end || op + literals > dst.length) {
+                    throw new IOException("Corrupt compressed record");
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) {
+                    break;
+                }
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > op || op + matchLength > dst.length) {
+                    throw new IOException("Corrupt compressed record");
+                }
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op + i] = dst[op - offset + i];
+                }
+                op += matchLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt compressed record", e);
+        }
+        if (op != dst.length) {
+            throw new IOException("Corrupt compressed record");
+        }
+    }
+    // Returns the compressed length, or -1 if it would exceed limit.
+    private int deflate(byte[] src, int off, int len, byte[] dst, int dstOff, int limit) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (dstOff + n >= limit) {
+                return -1;
+            }
+            n += deflater.deflate(dst, dstOff + n, limit - dstOff - n);
+        }
+        return n;
+    }
+    private void inflate(byte[] src, int off, int len, byte[] dst) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setInput(src, off, len);
+        try {
+            int n = 0;
+            while (n < dst.length) {
+                int k = inflater.inflate(dst, n, dst.length - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != dst.length) {
+                throw new IOException("Corrupt compressed record");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed record", e);
+        }
+    }
+}
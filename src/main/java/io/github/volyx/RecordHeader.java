@@ -14,10 +14,41 @@ public class RecordHeader {
      * Number of bytes of data that this record can hold (4 bytes).
      */
     protected int dataCapacity;
+    /**
+     * True if the data is compressed by RecordCompressor. Stored in the top bit of the count,
+     * which is never set in files without compressed records.
+     */
+    protected boolean compressed;
+    /**
+     * CRC32C of the dataCount bytes of stored data. Kept after the header in the index of
+     * files with checksums (4 bytes), and 0 in other files.
+     */
+    protected int checksum;
+    // Bits of the stored count which hold dataCount.
+    static final int COUNT_MASK = 0x7fffffff;
+    /**
+     * True if the record has outgrown its capacity with adaptive padding, so that it keeps
+     * room to grow. Stored in the top bit of the capacity, which is never set in files
+     * without adaptive padding.
+     */
+    protected boolean grown;
+    // Bits of the stored capacity which hold dataCapacity.
+    static final int CAPACITY_MASK = 0x7fffffff;
     /**
      * Indicates this header's position in the file index.
      */
     protected int indexPosition;
+    /**
+     * Data pointer under which this header is filed in the ExtentMap (-1 if not filed).
+     */
+    long filedDataPointer = -1;
+    /**
+     * Free space under which this header is filed in the FreeSpaceIndex (0 if not filed),
+     * and the links to the other headers filed under the same amount.
+     */
+    int filedFreeSpace;
+    RecordHeader prevFree;
+    RecordHeader nextFree;
     protected RecordHeader() {
     }
     protected RecordHeader(long dataPointer, int dataCapacity) {
@@ -40,15 +71,115 @@ public class RecordHeader {
     protected int getFreeSpace() {
         return dataCapacity - dataCount;
     }
+    /**
+     * Returns the free space which other records may take: the capacity beyond what is
+     * reserved for this record to grow into.
+     */
+    int getSpareSpace(int padding, boolean adaptivePadding) {
+        return dataCapacity - Math.min(dataCapacity, reservedCapacity(dataCount, padding, adaptivePadding && grown));
+    }
+    /**
+     * Returns the capacity reserved for a record holding dataCount bytes: the data and its
+     * padding percent, and for a record which grew at least room to double, as it is given
+     * room to grow by as much again.
+     */
+    static int reservedCapacity(int dataCount, int padding, boolean grown) {
+        long reserved = dataCount + (long)dataCount * padding / 100;
+        if (grown) {
+            reserved = Math.max(reserved, 2L * dataCount);
+        }
+        return (int)Math.min(reserved, Integer.MAX_VALUE);
+    }
     protected void read(DataInput in) throws IOException {
         dataPointer = in.readLong();
-        dataCapacity = in.readInt();
-        dataCount = in.readInt();
+        setCapacityWord(in.readInt());
+        setCountWord(in.readInt());
     }
     protected void write(DataOutput out) throws IOException {
         out.writeLong(dataPointer);
-        out.writeInt(dataCapacity);
-        out.writeInt(dataCount);
+        out.writeInt(capacityWord());
+        out.writeInt(countWord());
+    }
+    /**
+     * Reads the header at the given file pointer with a single read from the storage.
+     */
+    protected void read(Storage in, long fp) throws IOException {
+        read(in, fp, false);
+    }
+    /**
+     * Reads the header, and the checksum following it if withChecksum is set, with a single
+     * read from the storage.
+     */
+    protected void read(Storage in, long fp, boolean withChecksum) throws IOException {
+        byte[] buf = new byte[length(withChecksum)];
+        in.read(fp, buf, 0, buf.length);
+        read(buf, 0, withChecksum);
+    }
+    /**
+     * Decodes the header from a buffer holding its bytes at the given offset.
+     */
+    protected void read(byte[] buf, int off) {
+        dataPointer = Bytes.getLong(buf, off);
+        setCapacityWord(Bytes.getInt(buf, off + 8));
+        setCountWord(Bytes.getInt(buf, off + 12));
+    }
+    /**
+     * Decodes the header, and the checksum following it if withChecksum is set.
+     */
+    protected void read(byte[] buf, int off, boolean withChecksum) {
+        read(buf, off);
+        if (withChecksum) {
+            checksum = Bytes.getInt(buf, off + BaseRecordsFile.RECORD_HEADER_LENGTH);
+        }
+    }
+    /**
+     * Writes the header at the given file pointer with a single write to the storage.
+     */
+    protected void write(Storage out, long fp) throws IOException {
+        write(out, fp, false);
+    }
+    /**
+     * Writes the header, and the checksum after it if withChecksum is set, with a single
+     * write to the storage.
+     */
+    protected void write(Storage out, long fp, boolean withChecksum) throws IOException {
+        byte[] buf = new byte[length(withChecksum)];
+        write(buf, 0, withChecksum);
+        out.write(fp, buf, 0, buf.length);
+    }
+    /**
+     * Encodes the header, and the checksum after it if withChecksum is set, into a buffer.
+     */
+    protected void write(byte[] buf, int off, boolean withChecksum) {
+        Bytes.putLong(buf, off, dataPointer);
+        Bytes.putInt(buf, off + 8, capacityWord());
+        Bytes.putInt(buf, off + 12, countWord());
+        if (withChecksum) {
+            Bytes.putInt(buf, off + BaseRecordsFile.RECORD_HEADER_LENGTH, checksum);
+        }
+    }
+    private static int length(boolean withChecksum) {
+        return BaseRecordsFile.RECORD_HEADER_LENGTH + (withChecksum ? BaseRecordsFile.CHECKSUM_LENGTH : 0);
+    }
+    /**
+     * Returns dataCount with the compressed flag, as stored in the file.
+     */
+    int countWord() {
+        return compressed ? dataCount | ~COUNT_MASK : dataCount;
+    }
+    void setCountWord(int word) {
+        dataCount = word & COUNT_MASK;
+        compressed = word < 0;
+    }
+    /**
+     * Returns dataCapacity with the grown flag, as stored in the file.
+     */
+    int capacityWord() {
+        return grown ? dataCapacity | ~CAPACITY_MASK : dataCapacity;
+    }
+    void setCapacityWord(int word) {
+        dataCapacity = word & CAPACITY_MASK;
+        grown = word < 0;
     }
     protected static RecordHeader readHeader(DataInput in) throws IOException {
         RecordHeader r = new RecordHeader();
@@ -56,13 +187,13 @@ public class RecordHeader {
         return r;
     }
     /**
-     * Returns a new record header which occupies the free space of this record.
-     * Shrinks this record size by the size of its free space.
+     * Returns a new record header which occupies the free space of this record beyond the
+     * reserved capacity. Shrinks this record to the reserved capacity.
      */
-    protected RecordHeader split() throws IOException {
-        long newFp = dataPointer + (long)dataCount;
-        RecordHeader newRecord = new RecordHeader(newFp, getFreeSpace());
-        dataCapacity = dataCount;
+    protected RecordHeader split(int reserved) throws IOException {
+        long newFp = dataPointer + (long)reserved;
+        RecordHeader newRecord = new RecordHeader(newFp, dataCapacity - reserved);
+        dataCapacity = reserved;
         return newRecord;
     }
 }
@@ -0,0 +1,42 @@
+package io.github.volyx;
+
+import java.util.Enumeration;
+
+/**
+ * The in-memory index of a RecordsFile: maps keys to record headers, finds the record at a
+ * file location and finds records with free space. Modified only under the write lock.
+ */
+interface RecordIndex {
+    int size();
+    boolean containsKey(String key);
+    /**
+     * Returns the header of the record with the given key, or null. Changes to the returned
+     * header only reach the index through update().
+     */
+    RecordHeader get(String key);
+    /**
+     * Adds a record whose header has already been given its index position.
+     */
+    void put(String key, RecordHeader header);
+    /**
+     * Records a change to the data pointer, capacity or count of a header.
+     */
+    void update(RecordHeader header);
+    /**
+     * Removes a record. The record at the last index position takes over its position, as in
+     * BaseRecordsFile.deleteEntryFromIndex(). Returns the removed header, or null.
+     */
+    RecordHeader remove(String key);
+    /**
+     * Returns the record whose data region contains the target file pointer, or null.
+     */
+    RecordHeader recordAt(long targetFp);
+    /**
+     * Returns a record with at least dataLength bytes of free space, or null.
+     */
+    RecordHeader findFreeSpace(int dataLength);
+    AllocationPolicy getPolicy();
+    void setPolicy(AllocationPolicy policy);
+    Enumeration keys();
+    void clear();
+}
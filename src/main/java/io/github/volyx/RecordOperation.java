@@ -0,0 +1,11 @@
+package io.github.volyx;
+
+/**
+ * The public operations of a records file which are timed when metrics are enabled.
+ */
+public enum RecordOperation {
+    INSERT,
+    READ,
+    UPDATE,
+    DELETE
+}
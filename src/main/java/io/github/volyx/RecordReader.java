@@ -6,10 +6,18 @@ public class RecordReader {
     byte[] data;
     ByteArrayInputStream in;
     ObjectInputStream objIn;
+    RecordCodec codec;
+    RecordCodec.Decoder decoder;
     public RecordReader(String key, byte[] data) {
+        this(key, data, RecordCodec.JAVA_SERIALIZATION);
+    }
+    /**
+     * Creates a reader whose readObject uses the given codec.
+     */
+    public RecordReader(String key, byte[] data, RecordCodec codec) {
         this.key = key;
         this.data = data;
-        in = new ByteArrayInputStream(data);
+        this.codec = codec;
     }
     public String getKey() {
         return key;
@@ -18,18 +26,29 @@ public class RecordReader {
         return data;
     }
     public InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = new ByteArrayInputStream(data);
+        }
         return in;
     }
+    /**
+     * Returns an ObjectInputStream on the data, independent of the codec. Do not mix it with
+     * readObject unless the codec is Java serialization.
+     */
     public ObjectInputStream getObjectInputStream() throws IOException {
         if (objIn == null) {
-            objIn = new ObjectInputStream(in);
+            objIn = new ObjectInputStream(getInputStream());
         }
         return objIn;
     }
     /**
-     * Reads the next object in the record using an ObjectInputStream.
+     * Reads the next object in the record using the codec.
      */
     public Object readObject() throws IOException, OptionalDataException, ClassNotFoundException {
-        return getObjectInputStream().readObject();
+        if (decoder == null) {
+            decoder = codec instanceof JavaSerializationCodec
+                    ? JavaSerializationCodec.decoder(getObjectInputStream()) : codec.newDecoder(getInputStream());
+        }
+        return decoder.readObject();
     }
-}
\ No newline at end of file
+}
@@ -5,16 +5,59 @@ public class RecordWriter {
     String key;
     DbByteArrayOutputStream out;
     ObjectOutputStream objOut;
+    RecordCodec codec;
+    RecordCodec.Encoder encoder;
+    Compression compression;
+    // True if the data has been compressed by RecordCompressor.
+    boolean compressed;
     public RecordWriter(String key) {
+        this(key, RecordCodec.JAVA_SERIALIZATION);
+    }
+    /**
+     * Creates a writer whose writeObject uses the given codec.
+     */
+    public RecordWriter(String key, RecordCodec codec) {
+        this(key, 32, codec);
+    }
+    /**
+     * Creates a writer with a buffer presized for the expected length of the data.
+     */
+    public RecordWriter(String key, int expectedLength, RecordCodec codec) {
+        this.key = key;
+        this.codec = codec;
+        out = new DbByteArrayOutputStream(expectedLength);
+    }
+    /**
+     * Wraps data compressed by RecordCompressor.
+     */
+    RecordWriter(String key, byte[] compressedData, RecordCodec codec) {
         this.key = key;
-        out = new DbByteArrayOutputStream();
+        this.codec = codec;
+        out = new DbByteArrayOutputStream(compressedData);
+        compressed = true;
     }
     public String getKey() {
         return key;
     }
+    public RecordCodec getCodec() {
+        return codec;
+    }
+    public Compression getCompression() {
+        return compression;
+    }
+    /**
+     * Overrides the file's compression for this record. Null, the default, uses the file's.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
     public OutputStream getOutputStream() {
         return out;
     }
+    /**
+     * Returns an ObjectOutputStream on the data, independent of the codec. Do not mix it with
+     * writeObject unless the codec is Java serialization.
+     */
     public ObjectOutputStream getObjectOutputStream() throws IOException {
         if (objOut == null) {
             objOut = new ObjectOutputStream(out);
@@ -22,8 +65,29 @@ public class RecordWriter {
         return objOut;
     }
     public void writeObject(Object o) throws IOException {
-        getObjectOutputStream().writeObject(o);
-        getObjectOutputStream().flush();
+        if (encoder == null) {
+            // Java serialization shares the ObjectOutputStream, as writeObject did before codecs
+            encoder = codec instanceof JavaSerializationCodec
+                    ? JavaSerializationCodec.encoder(getObjectOutputStream()) : codec.newEncoder(out);
+        }
+        encoder.writeObject(o);
+    }
+    /**
+     * Clears the data and gives the writer a new key, keeping the buffer, so that the writer
+     * can be reused once the record it held has been written to the file.
+     */
+    public void reset(String key) {
+        this.key = key;
+        out.reset();
+        objOut = null;
+        encoder = null;
+        compression = null;
+    }
+    /**
+     * Returns the capacity of the buffer.
+     */
+    int getBufferSize() {
+        return out.capacity();
     }
     /**
      * Returns the number of bytes in the data.
@@ -37,4 +101,10 @@ public class RecordWriter {
     public void writeTo(DataOutput str) throws IOException {
         out.writeTo(str);
     }
+    /**
+     *  Writes the data to the storage at the given file pointer without re-allocating the buffer.
+     */
+    public void writeTo(Storage storage, long fp) throws IOException {
+        out.writeTo(storage, fp);
+    }
 }
@@ -0,0 +1,51 @@
+package io.github.volyx;
+
+import java.util.*;
+
+/**
+ * Keeps released RecordWriters so that their buffers are reused by later records instead of
+ * being allocated and grown again. A writer may be released once the insert, update or
+ * batch that wrote it has returned, since the file does not keep the writer's buffer.
+ */
+public class RecordWriterPool {
+    private final RecordCodec codec;
+    private final int initialSize;
+    private final int maxPooled;
+    private final int maxRetainedSize;
+    private final ArrayDeque<RecordWriter> free = new ArrayDeque<RecordWriter>();
+
+    /**
+     * Creates a pool of writers which use the given codec and start with buffers of
+     * initialSize bytes. At most maxPooled writers are kept, and writers whose buffers grew
+     * beyond maxRetainedSize bytes are dropped.
+     */
+    public RecordWriterPool(RecordCodec codec, int initialSize, int maxPooled, int maxRetainedSize) {
+        if (initialSize < 0 || maxPooled < 0 || maxRetainedSize < initialSize) {
+            throw new IllegalArgumentException("Bad pool sizes");
+        }
+        this.codec = codec;
+        this.initialSize = initialSize;
+        this.maxPooled = maxPooled;
+        this.maxRetainedSize = maxRetainedSize;
+    }
+    /**
+     * Returns an empty writer for the given key.
+     */
+    public synchronized RecordWriter acquire(String key) {
+        RecordWriter rw = free.pollFirst();
+        if (rw == null) {
+            return new RecordWriter(key, initialSize, codec);
+        }
+        rw.reset(key);
+        return rw;
+    }
+    /**
+     * Gives a writer back to the pool. The writer must not be used afterwards.
+     */
+    public synchronized void release(RecordWriter rw) {
+        if (free.size() < maxPooled && rw.getCodec() == codec && rw.getBufferSize() <= maxRetainedSize) {
+            rw.reset(null);
+            free.addFirst(rw);
+        }
+    }
+}
@@ -1,13 +1,38 @@
 package io.github.volyx;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class RecordsFile extends BaseRecordsFile {
     /**
-     * Hashtable which holds the in-memory index. For efficiency, the entire index
-     * is cached in memory. The hashtable maps a key of type String to a RecordHeader.
+     * The in-memory index. For efficiency, the entire index is cached in memory. The
+     * index maps a key of type String to a RecordHeader; it is only modified under the
+     * write lock.
      */
-    protected Hashtable memIndex;
+    protected RecordIndex memIndex;
+    /**
+     * Cached record data, or null if the cache is disabled.
+     */
+    protected RecordCache cache;
+    // Number of records a scan reads under one hold of the read lock.
+    private static final int SCAN_CHUNK = 256;
+    // Number of bytes of index entries read and decoded as one unit when a file is opened:
+    // about 64K entries with the default key length, fewer with longer keys.
+    private static final int INDEX_LOAD_CHUNK_BYTES = 5 << 20;
+    // False while the index of an opened file is being loaded in the background.
+    private volatile boolean indexLoaded = true;
+    private volatile boolean closing;
+    private CountDownLatch indexLoadDone;
+    private volatile IOException indexLoadError;
+    private Thread indexLoader;
+    // The database file, and the file its key filter is saved to when it is closed.
+    private final File dbFile;
+    private final File keyFilterFile;
+    private final boolean writable;
+    // Filter of the keys, or null if it is disabled. Guarded by the lock, and only consulted
+    // once keyFilterReady, as it is built while the index is loaded if it was not saved.
+    private CuckooFilter keyFilter;
+    private boolean keyFilterReady;
     /**
      * Creates a new database file.  The initialSize parameter determines the
      * amount of space which is allocated for the index.  The index can grow
@@ -15,66 +40,698 @@ public class RecordsFile extends BaseRecordsFile {
      * efficiency.
      */
     public RecordsFile(String dbPath, int initialSize) throws IOException {
-        super(dbPath, initialSize);
-        memIndex = new Hashtable(initialSize);
+        this(dbPath, initialSize, new RecordsFileOptions());
+    }
+    /**
+     * Creates a new database file using the given options.
+     */
+    public RecordsFile(String dbPath, int initialSize, RecordsFileOptions options) throws IOException {
+        super(dbPath, initialSize, options);
+        memIndex = createIndex(initialSize, options);
+        cache = createCache(options);
+        dbFile = new File(dbPath);
+        keyFilterFile = keyFilterFile(dbPath);
+        writable = true;
+        // a filter left by an earlier file of this name
+        keyFilterFile.delete();
+        if (options.isKeyFilter()) {
+            keyFilter = new CuckooFilter(initialSize);
+            keyFilterReady = true;
+        }
     }
     /**
      * Opens an existing database and initializes the in-memory index.
      */
     public RecordsFile(String dbPath, String accessFlags) throws IOException {
-        super(dbPath, accessFlags);
-        int numRecords = readNumRecordsHeader();
-        memIndex = new Hashtable(numRecords);
-        for (int i = 0; i < numRecords; i++) {
-            String key = readKeyFromIndex(i);
-            RecordHeader header = readRecordHeaderFromIndex(i);
-            header.setIndexPosition(i);
-            memIndex.put(key, header);
+        this(dbPath, accessFlags, new RecordsFileOptions());
+    }
+    /**
+     * Opens an existing database using the given options and initializes the in-memory index.
+     */
+    public RecordsFile(String dbPath, String accessFlags, final RecordsFileOptions options) throws IOException {
+        super(dbPath, accessFlags, options);
+        try {
+            final int numRecords = readNumRecordsHeader();
+            memIndex = createIndex(numRecords, options);
+            cache = createCache(options);
+            dbFile = new File(dbPath);
+            keyFilterFile = keyFilterFile(dbPath);
+            writable = accessFlags.indexOf('w') >= 0;
+            if (options.isKeyFilter()) {
+                keyFilter = readKeyFilter(numRecords);
+                keyFilterReady = keyFilter != null;
+                if (keyFilter == null) {
+                    keyFilter = new CuckooFilter(numRecords);
+                }
+            }
+            if (writable) {
+                // once the file is changed the saved filter is stale; it is saved again on close
+                keyFilterFile.delete();
+            }
+            final boolean buildKeyFilter = keyFilter != null && !keyFilterReady;
+            if (!options.isLazyIndexLoad() || numRecords == 0) {
+                loadIndex(numRecords, options.getIndexLoadThreads(), buildKeyFilter);
+                return;
+            }
+            indexLoaded = false;
+            indexLoadDone = new CountDownLatch(1);
+            indexLoader = new Thread("records-file-index-loader") {
+                public void run() {
+                    try {
+                        loadIndex(numRecords, options.getIndexLoadThreads(), buildKeyFilter);
+                        indexLoaded = true;
+                    } catch (IOException e) {
+                        indexLoadError = e;
+                    } finally {
+                        indexLoadDone.countDown();
+                    }
+                }
+            };
+            indexLoader.setDaemon(true);
+            indexLoader.start();
+        } catch (IOException e) {
+            throw closeAfterFailure(e);
+        } catch (RuntimeException e) {
+            throw closeAfterFailure(e);
         }
     }
     /**
-     * Returns an enumeration of all the keys in the database.
+     * Reads the index region in large sequential chunks, decodes the chunks on several
+     * threads and adds the entries to the in-memory index in index order, one chunk at a
+     * time under the write lock. Also finds the first record in the data region, and adds
+     * the keys to the key filter if buildKeyFilter is set.
      */
-    public synchronized Enumeration enumerateKeys() {
-        return memIndex.keys();
+    private void loadIndex(int numRecords, int threads, boolean buildKeyFilter) throws IOException {
+        int chunkEntries = indexLoadChunk();
+        int chunks = (numRecords + chunkEntries - 1) / chunkEntries;
+        threads = Math.min(threads, chunks);
+        ExecutorService pool = null;
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "records-file-index-decoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        try {
+            long first = getFileLength();
+            LinkedList<Future<IndexChunk>> window = new LinkedList<Future<IndexChunk>>();
+            int submitted = 0;
+            for (int c = 0; c < chunks; c++) {
+                IndexChunk chunk;
+                if (pool == null) {
+                    chunk = readIndexChunk(c, numRecords);
+                } else {
+                    // keep a bounded number of decoded chunks ahead of the one being added
+                    while (submitted < chunks && submitted < c + 2 * threads) {
+                        final int n = submitted++;
+                        final int total = numRecords;
+                        window.add(pool.submit(new Callable<IndexChunk>() {
+                            public IndexChunk call() throws IOException {
+                                return readIndexChunk(n, total);
+                            }
+                        }));
+                    }
+                    chunk = getChunk(window.removeFirst());
+                }
+                lock.writeLock().lock();
+                try {
+                    if (closing) {
+                        return;
+                    }
+                    for (int i = 0; i < chunk.keys.length; i++) {
+                        memIndex.put(chunk.keys[i], chunk.headers[i]);
+                        if (buildKeyFilter) {
+                            addToKeyFilter(chunk.keys[i]);
+                        }
+                        first = Math.min(first, chunk.headers[i].dataPointer);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            firstRecordPtr = first;
+            if (buildKeyFilter) {
+                lock.writeLock().lock();
+                keyFilterReady = true;
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+    // Returns the number of index entries in a chunk.
+    private int indexLoadChunk() {
+        return Math.max(1, INDEX_LOAD_CHUNK_BYTES / indexEntryLength);
+    }
+    private IndexChunk readIndexChunk(int chunk, int numRecords) throws IOException {
+        int position = chunk * indexLoadChunk();
+        int count = Math.min(indexLoadChunk(), numRecords - position);
+        IndexChunk c = new IndexChunk(count);
+        readIndexEntries(position, count, c.keys, c.headers);
+        return c;
+    }
+    private static IndexChunk getChunk(Future<IndexChunk> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the index");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Index could not be loaded", e.getCause());
+        }
+    }
+    /**
+     * Decoded index entries of one chunk.
+     */
+    private static class IndexChunk {
+        final String[] keys;
+        final RecordHeader[] headers;
+        IndexChunk(int count) {
+            keys = new String[count];
+            headers = new RecordHeader[count];
+        }
+    }
+    /**
+     * Returns the file the key filter of a database is saved to.
+     */
+    protected static File keyFilterFile(String dbPath) {
+        return new File(dbPath + ".filter");
+    }
+    /**
+     * Returns the saved key filter if it was saved when the file was last closed, or null.
+     */
+    private CuckooFilter readKeyFilter(int numRecords) {
+        try {
+            return CuckooFilter.read(keyFilterFile, keyFilterState(numRecords, dbFile.lastModified()));
+        } catch (IOException e) {
+            // an unreadable filter is rebuilt
+            return null;
+        }
+    }
+    /**
+     * Returns the state of the file stored with its key filter. The filter is used only with
+     * the file in the same state, so that a filter which was not saved again after the file
+     * was changed, such as by a process which did not keep one, is not used.
+     */
+    private long[] keyFilterState(int numRecords, long lastModified) throws IOException {
+        return new long[] {numRecords, dataStartPtr, getFileLength(), lastModified};
+    }
+    /**
+     * Adds a key which is in the index to the key filter. A full filter is replaced by a
+     * larger one built from the keys of the index.
+     */
+    private void addToKeyFilter(String key) {
+        if (keyFilter.add(key)) {
+            return;
+        }
+        int capacity = memIndex.size();
+        while (true) {
+            capacity *= 2;
+            CuckooFilter filter = new CuckooFilter(capacity);
+            boolean full = false;
+            for (Enumeration e = memIndex.keys(); !full && e.hasMoreElements();) {
+                full = !filter.add((String)e.nextElement());
+            }
+            if (!full) {
+                keyFilter = filter;
+                return;
+            }
+        }
+    }
+    /**
+     * Waits for the background index load if the key is not loaded yet and the key filter
+     * does not rule it out, or if key is null.
+     */
+    protected void awaitIndex(String key) throws IOException {
+        if (indexLoaded) {
+            return;
+        }
+        if (key != null) {
+            lock.readLock().lock();
+            try {
+                if (memIndex.containsKey(key) || keyFilterReady && !keyFilter.mightContain(key)) {
+                    return;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        try {
+            indexLoadDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index");
+        }
+        if (indexLoadError != null) {
+            throw new IOException("Index could not be loaded", indexLoadError);
+        }
+    }
+    /**
+     * Like awaitIndex, for the methods which cannot throw an IOException.
+     */
+    private void awaitIndexUnchecked(String key) {
+        try {
+            awaitIndex(key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+    /**
+     * Returns true once the whole index has been loaded.
+     */
+    public boolean isIndexLoaded() {
+        return indexLoaded;
+    }
+    private static RecordIndex createIndex(int initialSize, RecordsFileOptions options) {
+        RecordIndex index;
+        if (options.getIndexMode() == IndexMode.COMPACT) {
+            index = new CompactRecordIndex(initialSize, options.getAllocationPolicy(),
+                    options.getPadding(), options.isAdaptivePadding());
+        } else {
+            index = new HeapRecordIndex(initialSize, options.getAllocationPolicy(),
+                    options.getPadding(), options.isAdaptivePadding());
+        }
+        return options.isSortedKeys() ? new SortedRecordIndex(index) : index;
+    }
+    private static RecordCache createCache(RecordsFileOptions options) {
+        if (options.getCacheSize() == 0) {
+            return null;
+        }
+        return RecordCache.create(options.getCacheSize(), options.getCachePolicy());
+    }
+    /**
+     * Returns the counters of the record cache, or null if the cache is disabled.
+     */
+    public CacheStats getCacheStats() {
+        return cache == null ? null : cache.getStats();
+    }
+    /**
+     * Returns the policy used to choose free space for new records.
+     */
+    public AllocationPolicy getAllocationPolicy() {
+        return memIndex.getPolicy();
+    }
+    /**
+     * Changes the policy used to choose free space for new records.
+     */
+    public void setAllocationPolicy(AllocationPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Allocation policy is null");
+        }
+        memIndex.setPolicy(policy);
+    }
+    /**
+     * Returns an enumeration of all the keys in the database. With the heap index the
+     * enumeration is weakly consistent; with the compact index it iterates over a copy.
+     * Either way it does not block writers. With sorted keys the keys come in order.
+     */
+    public Enumeration enumerateKeys() {
+        awaitIndexUnchecked(null);
+        lock.readLock().lock();
+        try {
+            return memIndex.keys();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     /**
      * Returns the current number of records in the database.
      */
-    public synchronized int getNumRecords() {
-        return memIndex.size();
+    public int getNumRecords() {
+        awaitIndexUnchecked(null);
+        lock.readLock().lock();
+        try {
+            return memIndex.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    /**
+     * Returns the keys from fromKey, inclusive, to toKey, exclusive, in order. A null bound
+     * leaves that end of the range open. With sorted keys the iterator is weakly consistent
+     * and does not block writers; otherwise the keys are copied and sorted first.
+     */
+    public Iterator<String> scanKeys(String fromKey, String toKey) {
+        return keyRange(fromKey, toKey).iterator();
+    }
+    /**
+     * Returns the keys which start with the given prefix, in order.
+     */
+    public Iterator<String> prefixKeys(String prefix) {
+        return keyRange(prefix, prefixEnd(prefix)).iterator();
+    }
+    /**
+     * Returns the records from fromKey, inclusive, to toKey, exclusive, in key order. The
+     * records are read a chunk at a time, in the order of their file offsets, so that the
+     * reads are mostly sequential; the cache is bypassed. Records deleted during the scan
+     * may be skipped. I/O errors are thrown as IllegalStateExceptions.
+     */
+    public Iterator<RecordReader> scan(String fromKey, String toKey) {
+        return new RecordScan(scanKeys(fromKey, toKey));
+    }
+    /**
+     * Returns the records whose keys start with the given prefix, in key order, as scan does.
+     */
+    public Iterator<RecordReader> prefix(String prefix) {
+        return new RecordScan(prefixKeys(prefix));
+    }
+    private NavigableSet<String> keyRange(String fromKey, String toKey) {
+        awaitIndexUnchecked(null);
+        NavigableSet<String> keys;
+        if (memIndex instanceof SortedRecordIndex) {
+            keys = ((SortedRecordIndex)memIndex).sortedKeys();
+        } else {
+            keys = new TreeSet<String>();
+            lock.readLock().lock();
+            try {
+                for (Enumeration e = memIndex.keys(); e.hasMoreElements();) {
+                    keys.add((String)e.nextElement());
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        if (fromKey != null && toKey != null) {
+            return fromKey.compareTo(toKey) < 0 ? keys.subSet(fromKey, true, toKey, false) : new TreeSet<String>();
+        } else if (fromKey != null) {
+            return keys.tailSet(fromKey, true);
+        } else if (toKey != null) {
+            return keys.headSet(toKey, false);
+        }
+        return keys;
+    }
+    /**
+     * Returns the least string greater than all strings starting with the prefix, or null
+     * if there is none.
+     */
+    private static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char)(c + 1);
+            }
+        }
+        return null;
+    }
+    /**
+     * Reads the records of a sequence of keys, SCAN_CHUNK at a time.
+     */
+    private class RecordScan implements Iterator<RecordReader> {
+        private final Iterator<String> keys;
+        private final ArrayDeque<RecordReader> ready = new ArrayDeque<RecordReader>();
+
+        RecordScan(Iterator<String> keys) {
+            this.keys = keys;
+        }
+        public boolean hasNext() {
+            while (ready.isEmpty() && keys.hasNext()) {
+                List<String> chunk = new ArrayList<String>(SCAN_CHUNK);
+                while (chunk.size() < SCAN_CHUNK && keys.hasNext()) {
+                    chunk.add(keys.next());
+                }
+                try {
+                    readChunk(chunk);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+            return !ready.isEmpty();
+        }
+        public RecordReader next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ready.poll();
+        }
+        private void readChunk(List<String> chunk) throws IOException {
+            for (RecordReader rr : readRecords(chunk, false)) {
+                if (rr != null) {
+                    ready.add(rr);
+                }
+            }
+        }
+    }
+    /**
+     * Reads several records under one hold of the read lock, in the order of their file
+     * offsets, merging the reads of records which are close together in the file. Returns
+     * the records in the order of the keys, with null for keys which do not exist. Each key
+     * is timed as a read which took as long as the whole call, and fails if it does not exist.
+     */
+    public RecordReader[] readRecords(List<String> keys) throws IOException {
+        long start = startOperation();
+        RecordReader[] records = null;
+        try {
+            awaitIndex(null);
+            records = readRecords(keys, true);
+            return records;
+        } finally {
+            for (int i = 0; i < keys.size(); i++) {
+                endOperation(RecordOperation.READ, keys.get(i), start, records == null || records[i] == null);
+            }
+        }
+    }
+    private RecordReader[] readRecords(List<String> keys, boolean cached) throws IOException {
+        RecordReader[] records = new RecordReader[keys.size()];
+        RecordHeader[] headers = new RecordHeader[keys.size()];
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < headers.length; i++) {
+                byte[] data = cached && cache != null ? cache.get(keys.get(i)) : null;
+                if (data != null) {
+                    records[i] = newRecordReader(keys.get(i), data.clone());
+                } else {
+                    headers[i] = memIndex.get(keys.get(i));
+                }
+            }
+            byte[][] data = readRecordsData(headers);
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != null) {
+                    if (cached && cache != null) {
+                        cache.put(keys.get(i), data[i].clone());
+                    }
+                    records[i] = newRecordReader(keys.get(i), data[i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return records;
+    }
+    /**
+     * Opens a snapshot of the file as it is now, for readers which must see a consistent
+     * state while writers go on, such as exports. Opening it copies the index under the
+     * read lock.
+     */
+    public RecordsSnapshot openSnapshot() throws IOException {
+        awaitIndex(null);
+        lock.readLock().lock();
+        try {
+            Map<String, RecordHeader> records = memIndex instanceof SortedRecordIndex
+                    ? new TreeMap<String, RecordHeader>() : new HashMap<String, RecordHeader>(memIndex.size() * 4 / 3 + 1);
+            for (Enumeration e = memIndex.keys(); e.hasMoreElements();) {
+                String key = (String)e.nextElement();
+                RecordHeader h = memIndex.get(key);
+                RecordHeader copy = new RecordHeader();
+                copy.dataPointer = h.dataPointer;
+                copy.dataCount = h.dataCount;
+                copy.dataCapacity = h.dataCapacity;
+                copy.compressed = h.compressed;
+                copy.checksum = h.checksum;
+                records.put(key, copy);
+            }
+            return openSnapshot(records);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     /**
      * Checks if there is a record belonging to the given key.
      */
-    public synchronized boolean recordExists(String key) {
-        return memIndex.containsKey(key);
+    public boolean recordExists(String key) {
+        awaitIndexUnchecked(key);
+        lock.readLock().lock();
+        try {
+            if (keyFilterReady && !keyFilter.mightContain(key)) {
+                if (metrics != null) {
+                    metrics.keyFilterNegatives.increment();
+                }
+                return false;
+            }
+            boolean exists = memIndex.containsKey(key);
+            if (!exists && keyFilterReady && metrics != null) {
+                metrics.keyFilterFalsePositives.increment();
+            }
+            return exists;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
     /**
      * Maps a key to a record header by looking it up in the in-memory index.
      */
     protected RecordHeader keyToRecordHeader(String key) throws IOException {
-        RecordHeader h = (RecordHeader)memIndex.get(key);
+        RecordHeader h = memIndex.get(key);
         if (h==null) {
             throw new IOException("Key not found: " + key);
         }
         return h;
     }
     /**
-     * This method searches the file for free space and then returns a RecordHeader
-     * which uses the space. (O(n) memory accesses)
+     * Reads the record data through the cache, if there is one. Returns a copy of the cached
+     * data, since callers may change the array.
+     */
+    protected byte[] readRecordData(String key) throws IOException {
+        if (cache == null) {
+            return super.readRecordData(key);
+        }
+        byte[] data = cache.get(key);
+        if (data == null) {
+            data = super.readRecordData(key);
+            cache.put(key, data);
+        }
+        return data.clone();
+    }
+    /**
+     * Updates a record and drops it from the cache.
+     */
+    public void updateRecord(RecordWriter rw) throws IOException {
+        long start = startOperation();
+        boolean failed = true;
+        try {
+            RecordWriter compressed = compressRecord(rw);
+            beginMutation();
+            try {
+                if (cache != null) {
+                    cache.invalidate(rw.getKey());
+                }
+                super.updateCompressedRecord(compressed);
+            } finally {
+                endMutation();
+            }
+            failed = false;
+        } finally {
+            endOperation(RecordOperation.UPDATE, rw.getKey(), start, failed);
+        }
+    }
+    /**
+     * Appends to a streamed record and drops it from the cache.
+     */
+    protected void writeRecordChunk(String key, int offset, byte[] b, int off, int len, int checksum) throws IOException {
+        beginMutation();
+        try {
+            if (cache != null) {
+                cache.invalidate(key);
+            }
+            super.writeRecordChunk(key, offset, b, off, len, checksum);
+        } finally {
+            endMutation();
+        }
+    }
+    /**
+     * Deletes a record and drops it from the cache.
+     */
+    public void deleteRecord(String key) throws IOException {
+        long start = startOperation();
+        boolean failed = true;
+        try {
+            beginMutation();
+            try {
+                if (cache != null) {
+                    cache.invalidate(key);
+                }
+                super.deleteRecord(key);
+            } finally {
+                endMutation();
+            }
+            failed = false;
+        } finally {
+            endOperation(RecordOperation.DELETE, key, start, failed);
+        }
+    }
+    /**
+     * Inserts a record, timing it if metrics are enabled.
+     */
+    public void insertRecord(RecordWriter rw) throws IOException {
+        long start = startOperation();
+        boolean failed = true;
+        try {
+            super.insertRecord(rw);
+            failed = false;
+        } finally {
+            endOperation(RecordOperation.INSERT, rw.getKey(), start, failed);
+        }
+    }
+    /**
+     * Reads a record, timing it if metrics are enabled.
+     */
+    public RecordReader readRecord(String key) throws IOException {
+        long start = startOperation();
+        boolean failed = true;
+        try {
+            RecordReader rr = super.readRecord(key);
+            failed = false;
+            return rr;
+        } finally {
+            endOperation(RecordOperation.READ, key, start, failed);
+        }
+    }
+    /**
+     * Writes a batch of records and drops the updated ones from the cache. Each record is
+     * timed as an insert or an update which took as long as the whole batch.
+     */
+    public void writeBatch(Collection<RecordWriter> writers) throws IOException {
+        long start = startOperation();
+        boolean failed = true;
+        List<String> keys = new ArrayList<String>(writers.size());
+        boolean[] updates = new boolean[writers.size()];
+        try {
+            writers = compressRecords(writers);
+            beginMutation();
+            try {
+                for (RecordWriter rw : writers) {
+                    if (start != 0) {
+                        updates[keys.size()] = recordExists(rw.getKey());
+                        keys.add(rw.getKey());
+                    }
+                    if (cache != null) {
+                        cache.invalidate(rw.getKey());
+                    }
+                }
+                super.writeCompressedBatch(writers);
+            } finally {
+                endMutation();
+            }
+            failed = false;
+        } finally {
+            for (int i = 0; i < keys.size(); i++) {
+                endOperation(updates[i] ? RecordOperation.UPDATE : RecordOperation.INSERT, keys.get(i), start, failed);
+            }
+        }
+    }
+    /**
+     * This method looks up free space in the free space index and then returns a RecordHeader
+     * which uses the space. (O(log n) memory accesses)
      */
     protected RecordHeader allocateRecord(String key, int dataLength) throws IOException {
         // search for empty space
         RecordHeader newRecord = null;
-        Enumeration e = memIndex.elements();
-        while (e.hasMoreElements()) {
-            RecordHeader next = (RecordHeader)e.nextElement();
-            int free = next.getFreeSpace();
-            if (dataLength <= next.getFreeSpace()) {
-                newRecord = next.split();
-                writeRecordHeaderToIndex(next);
-                break;
+        RecordHeader next = memIndex.findFreeSpace(dataLength);
+        if (next != null && !isStreaming(next)) {
+            newRecord = next.split(reservedCapacity(next));
+            writeRecordHeaderToIndex(next);
+        }
+        if (metrics != null) {
+            metrics.allocations.increment();
+            if (newRecord != null) {
+                metrics.freeSpaceAllocations.increment();
             }
         }
         if (newRecord == null) {
@@ -88,28 +745,52 @@ public class RecordsFile extends BaseRecordsFile {
     /**
      * Returns the record to which the target file pointer belongs - meaning the specified location
      * in the file is part of the record data of the RecordHeader which is returned.  Returns null if
-     * the location is not part of a record. (O(n) mem accesses)
+     * the location is not part of a record. (O(log n) mem accesses)
      */
     protected RecordHeader getRecordAt(long targetFp) throws IOException {
-        Enumeration e = memIndex.elements();
-        while (e.hasMoreElements()) {
-            RecordHeader next = (RecordHeader) e.nextElement();
-            if (targetFp >= next.dataPointer &&
-                    targetFp < next.dataPointer + (long)next.dataCapacity) {
-                return next;
-            }
+        if (metrics != null) {
+            metrics.recordLookups.increment();
         }
-        return null;
+        return memIndex.recordAt(targetFp);
     }
     /**
      * Closes the database.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+        if (indexLoader != null) {
+            closing = true;
+            try {
+                indexLoader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing");
+            }
+        }
+        stopLogFlusher();
+        lock.writeLock().lock();
         try {
+            long[] state = null;
+            if (keyFilterReady && indexLoaded && writable) {
+                state = keyFilterState(memIndex.size(), 0);
+            }
             super.close();
+            if (state != null) {
+                state[3] = dbFile.lastModified();
+                File tmp = new File(keyFilterFile.getPath() + ".tmp");
+                keyFilter.write(tmp, state);
+                if (!tmp.renameTo(keyFilterFile)) {
+                    tmp.delete();
+                    throw new IOException("Cannot save the key filter to " + keyFilterFile);
+                }
+            }
         } finally {
             memIndex.clear();
-            memIndex = null;
+            keyFilter = null;
+            keyFilterReady = false;
+            if (cache != null) {
+                cache.clear();
+            }
+            lock.writeLock().unlock();
         }
     }
     /**
@@ -119,6 +800,31 @@ public class RecordsFile extends BaseRecordsFile {
     protected void addEntryToIndex(String key, RecordHeader newRecord, int currentNumRecords) throws IOException {
         super.addEntryToIndex(key, newRecord, currentNumRecords);
         memIndex.put(key, newRecord);
+        if (keyFilter != null) {
+            addToKeyFilter(key);
+        }
+    }
+    /**
+     * Adds the new records to the in-memory index and calls the super class to add
+     * the index entries to the file.
+     */
+    protected void addEntriesToIndex(List<String> keys, List<RecordHeader> newRecords, int currentNumRecords) throws IOException {
+        super.addEntriesToIndex(keys, newRecords, currentNumRecords);
+        for (int i = 0; i < keys.size(); i++) {
+            memIndex.put(keys.get(i), newRecords.get(i));
+            // one key at a time, as a filter rebuilt from memIndex must not get keys twice
+            if (keyFilter != null) {
+                addToKeyFilter(keys.get(i));
+            }
+        }
+    }
+    /**
+     * Writes the record header to the file and to the in-memory index, since its data
+     * pointer, count or capacity may have changed.
+     */
+    protected void writeRecordHeaderToIndex(RecordHeader header) throws IOException {
+        super.writeRecordHeaderToIndex(header);
+        memIndex.update(header);
     }
     /**
      * Removes the record from the index. Replaces the target with the entry at the
@@ -126,6 +832,9 @@ public class RecordsFile extends BaseRecordsFile {
      */
     protected void deleteEntryFromIndex(String key, RecordHeader header, int currentNumRecords) throws IOException {
         super.deleteEntryFromIndex(key, header, currentNumRecords);
-        RecordHeader deleted = (RecordHeader)memIndex.remove(key);
+        memIndex.remove(key);
+        if (keyFilter != null) {
+            keyFilter.remove(key);
+        }
     }
 }
\ No newline at end of file
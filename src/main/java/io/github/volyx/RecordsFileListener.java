@@ -0,0 +1,14 @@
+package io.github.volyx;
+
+/**
+ * Receives an event for every timed operation of a records file with metrics enabled. It is
+ * called on the thread which ran the operation, after the locks are released, so it should
+ * return quickly.
+ */
+public interface RecordsFileListener {
+    /**
+     * Called when an operation on the given key has finished after the given number of
+     * nanoseconds, successfully unless failed is set.
+     */
+    void operationCompleted(RecordOperation operation, String key, long nanos, boolean failed);
+}
@@ -0,0 +1,124 @@
+package io.github.volyx;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, latency histograms and gauges of a records file, created when metrics are
+ * enabled in the options. The counters are LongAdders, so that threads reading concurrently
+ * do not contend on them.
+ */
+public class RecordsFileMetrics implements RecordsFileMetricsMXBean {
+    private final BaseRecordsFile recordsFile;
+    private final RecordsFileListener listener;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[RecordOperation.values().length];
+    private final LongAdder failures = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    final LongAdder fsyncs = new LongAdder();
+    final LongAdder allocations = new LongAdder();
+    final LongAdder freeSpaceAllocations = new LongAdder();
+    final LongAdder inPlaceGrowths = new LongAdder();
+    final LongAdder recordLookups = new LongAdder();
+    final LongAdder indexRelocations = new LongAdder();
+    final LongAdder indexRelocatedBytes = new LongAdder();
+    final LongAdder checksumFailures = new LongAdder();
+    final LongAdder keyFilterNegatives = new LongAdder();
+    final LongAdder keyFilterFalsePositives = new LongAdder();
+    // Set by the metered storage whenever the length of the file changes.
+    volatile long fileLength;
+
+    RecordsFileMetrics(BaseRecordsFile recordsFile, RecordsFileListener listener) {
+        this.recordsFile = recordsFile;
+        this.listener = listener;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+    void operationCompleted(RecordOperation operation, String key, long nanos, boolean failed) {
+        latencies[operation.ordinal()].record(nanos);
+        if (failed) {
+            failures.increment();
+        }
+        if (listener != null) {
+            listener.operationCompleted(operation, key, nanos, failed);
+        }
+    }
+    public LatencyStats getLatency(RecordOperation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+    public LatencyStats getInsertLatency() {
+        return getLatency(RecordOperation.INSERT);
+    }
+    public LatencyStats getReadLatency() {
+        return getLatency(RecordOperation.READ);
+    }
+    public LatencyStats getUpdateLatency() {
+        return getLatency(RecordOperation.UPDATE);
+    }
+    public LatencyStats getDeleteLatency() {
+        return getLatency(RecordOperation.DELETE);
+    }
+    public long getFailures() {
+        return failures.sum();
+    }
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    public long getFsyncs() {
+        return fsyncs.sum();
+    }
+    public long getAllocations() {
+        return allocations.sum();
+    }
+    public long getFreeSpaceAllocations() {
+        return freeSpaceAllocations.sum();
+    }
+    public long getInPlaceGrowths() {
+        return inPlaceGrowths.sum();
+    }
+    public long getRecordLookups() {
+        return recordLookups.sum();
+    }
+    public long getIndexRelocations() {
+        return indexRelocations.sum();
+    }
+    public long getIndexRelocatedBytes() {
+        return indexRelocatedBytes.sum();
+    }
+    public long getChecksumFailures() {
+        return checksumFailures.sum();
+    }
+    public long getKeyFilterNegatives() {
+        return keyFilterNegatives.sum();
+    }
+    public long getKeyFilterFalsePositives() {
+        return keyFilterFalsePositives.sum();
+    }
+    public double getKeyFilterFalsePositiveRate() {
+        long falsePositives = keyFilterFalsePositives.sum();
+        long lookups = falsePositives + keyFilterNegatives.sum();
+        return lookups == 0 ? 0 : (double)falsePositives / lookups;
+    }
+    public long getFileLength() {
+        return fileLength;
+    }
+    public long getLiveBytes() {
+        FragmentationStats stats = fragmentationStats();
+        return stats == null ? 0 : stats.getLiveBytes();
+    }
+    public double getFragmentation() {
+        FragmentationStats stats = fragmentationStats();
+        return stats == null ? 0 : stats.getFragmentation();
+    }
+    // Returns null once the file is closed.
+    private FragmentationStats fragmentationStats() {
+        try {
+            return recordsFile.getFragmentationStats();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
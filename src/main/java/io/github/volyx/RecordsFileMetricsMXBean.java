@@ -0,0 +1,70 @@
+package io.github.volyx;
+
+/**
+ * The metrics of a records file as exposed through JMX.
+ */
+public interface RecordsFileMetricsMXBean {
+    LatencyStats getInsertLatency();
+    LatencyStats getReadLatency();
+    LatencyStats getUpdateLatency();
+    LatencyStats getDeleteLatency();
+    /**
+     * Returns the number of operations which threw an exception.
+     */
+    long getFailures();
+    /**
+     * Returns the number of bytes read from the data file, not counting reads served by the
+     * write-ahead log.
+     */
+    long getBytesRead();
+    long getBytesWritten();
+    /**
+     * Returns the number of times the data file was forced to disk.
+     */
+    long getFsyncs();
+    /**
+     * Returns the number of records allocated, and how many of them took the unused capacity
+     * of another record rather than growing the file.
+     */
+    long getAllocations();
+    long getFreeSpaceAllocations();
+    /**
+     * Returns the number of updates which grew a record in place rather than moving it.
+     */
+    long getInPlaceGrowths();
+    /**
+     * Returns the number of lookups of the record at a file position.
+     */
+    long getRecordLookups();
+    /**
+     * Returns the number of records moved to the end of the file to make room for the
+     * index, and the bytes moved with them.
+     */
+    long getIndexRelocations();
+    long getIndexRelocatedBytes();
+    /**
+     * Returns the number of reads which found record data not matching its checksum.
+     */
+    long getChecksumFailures();
+    /**
+     * Returns the number of recordExists lookups of missing keys which the key filter
+     * answered, and the number it could not answer and left to the index.
+     */
+    long getKeyFilterNegatives();
+    long getKeyFilterFalsePositives();
+    /**
+     * Returns the fraction of recordExists lookups of missing keys which the key filter
+     * could not answer.
+     */
+    double getKeyFilterFalsePositiveRate();
+    long getFileLength();
+    /**
+     * Returns the bytes of record data. Walks the whole index, like getFragmentationStats.
+     */
+    long getLiveBytes();
+    /**
+     * Returns the fraction of the data region which does not hold record data. Walks the
+     * whole index, like getFragmentationStats.
+     */
+    double getFragmentation();
+}
@@ -0,0 +1,350 @@
+package io.github.volyx;
+
+import java.io.*;
+
+/**
+ * Settings used when a records file is created or opened. The setters return the
+ * options object so that they can be chained.
+ */
+public class RecordsFileOptions {
+    private AllocationPolicy allocationPolicy = AllocationPolicy.BEST_FIT;
+    private IndexMode indexMode = IndexMode.HEAP;
+    private boolean sortedKeys;
+    private int maxKeyLength = 62;
+    private boolean checksums;
+    private boolean lazyIndexLoad;
+    private boolean keyFilter;
+    private int indexLoadThreads = Runtime.getRuntime().availableProcessors();
+    private RecordCodec codec = RecordCodec.JAVA_SERIALIZATION;
+    private Compression compression = Compression.NONE;
+    private int compressionThreshold = 64;
+    private int padding;
+    private boolean adaptivePadding;
+    private long cacheSize;
+    private CachePolicy cachePolicy = CachePolicy.LRU;
+    private boolean memoryMapped;
+    private int mappedSegmentSize = MappedStorage.DEFAULT_SEGMENT_SIZE;
+    private boolean writeAheadLog;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.EVERY_COMMIT;
+    private long fsyncIntervalMillis = 10;
+    private long checkpointSize = 64L << 20;
+    private boolean metrics;
+    private RecordsFileListener metricsListener;
+    private boolean jmx;
+
+    public AllocationPolicy getAllocationPolicy() {
+        return allocationPolicy;
+    }
+    public RecordsFileOptions setAllocationPolicy(AllocationPolicy allocationPolicy) {
+        if (allocationPolicy == null) {
+            throw new IllegalArgumentException("Allocation policy is null");
+        }
+        this.allocationPolicy = allocationPolicy;
+        return this;
+    }
+    public IndexMode getIndexMode() {
+        return indexMode;
+    }
+    /**
+     * Selects how RecordsFile holds its in-memory index.
+     */
+    public RecordsFileOptions setIndexMode(IndexMode indexMode) {
+        if (indexMode == null) {
+            throw new IllegalArgumentException("Index mode is null");
+        }
+        this.indexMode = indexMode;
+        return this;
+    }
+    public boolean isSortedKeys() {
+        return sortedKeys;
+    }
+    /**
+     * Keeps the keys of the in-memory index in a skip list too, so that RecordsFile
+     * enumerates keys in order and scans ranges and prefixes of keys without looking at
+     * the other keys.
+     */
+    public RecordsFileOptions setSortedKeys(boolean sortedKeys) {
+        this.sortedKeys = sortedKeys;
+        return this;
+    }
+    public int getMaxKeyLength() {
+        return maxKeyLength;
+    }
+    /**
+     * Sets the longest key, in bytes of modified UTF-8, which a new file can hold. Each
+     * index entry takes two bytes more than this plus the 16-byte record header, so short
+     * keys make the index smaller and faster to load and grow. The length is stored in the
+     * file. The default of 62 gives files which older versions of this library can read.
+     */
+    public RecordsFileOptions setMaxKeyLength(int maxKeyLength) {
+        if (maxKeyLength < 1 || maxKeyLength > 65535) {
+            throw new IllegalArgumentException("Bad key length: " + maxKeyLength);
+        }
+        this.maxKeyLength = maxKeyLength;
+        return this;
+    }
+    public boolean isChecksums() {
+        return checksums;
+    }
+    /**
+     * Stores a CRC32C checksum of each record in the index of a new file, and verifies it
+     * whenever the data is read, so that damaged data fails with a CorruptRecordException
+     * rather than being returned. Whether a file has checksums is fixed when it is created;
+     * files with checksums cannot be opened by versions without them.
+     */
+    public RecordsFileOptions setChecksums(boolean checksums) {
+        this.checksums = checksums;
+        return this;
+    }
+    public boolean isLazyIndexLoad() {
+        return lazyIndexLoad;
+    }
+    /**
+     * Loads the index of an existing file in the background, so that the file can be used
+     * right after it is opened. Until loading finishes, lookups of keys which are not loaded
+     * yet, and all mutations, wait for it.
+     */
+    public RecordsFileOptions setLazyIndexLoad(boolean lazyIndexLoad) {
+        this.lazyIndexLoad = lazyIndexLoad;
+        return this;
+    }
+    public boolean isKeyFilter() {
+        return keyFilter;
+    }
+    /**
+     * Keeps a cuckoo filter of the keys, about 2.4 bytes per key, which answers most lookups
+     * of missing keys without the index, including while a lazily loaded index is still
+     * loading. The filter is saved next to the file, in dbPath.filter, when the file is
+     * closed, so that it does not have to be rebuilt when the file is opened again.
+     */
+    public RecordsFileOptions setKeyFilter(boolean keyFilter) {
+        this.keyFilter = keyFilter;
+        return this;
+    }
+    public int getIndexLoadThreads() {
+        return indexLoadThreads;
+    }
+    /**
+     * Sets the number of threads which decode the index of an existing file when it is opened.
+     */
+    public RecordsFileOptions setIndexLoadThreads(int indexLoadThreads) {
+        if (indexLoadThreads < 1) {
+            throw new IllegalArgumentException("Bad number of threads: " + indexLoadThreads);
+        }
+        this.indexLoadThreads = indexLoadThreads;
+        return this;
+    }
+    public RecordCodec getCodec() {
+        return codec;
+    }
+    /**
+     * Sets the codec used by the readers returned from readRecord. Writers are given their
+     * codec when they are created, and should use the same one.
+     */
+    public RecordsFileOptions setCodec(RecordCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec is null");
+        }
+        this.codec = codec;
+        return this;
+    }
+    public Compression getCompression() {
+        return compression;
+    }
+    /**
+     * Sets the compression of records whose writers do not choose one. Records which do not
+     * shrink by at least an eighth are stored uncompressed.
+     */
+    public RecordsFileOptions setCompression(Compression compression) {
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression is null");
+        }
+        this.compression = compression;
+        return this;
+    }
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    /**
+     * Sets the length below which records are never compressed.
+     */
+    public RecordsFileOptions setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Bad compression threshold: " + compressionThreshold);
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+    public int getPadding() {
+        return padding;
+    }
+    /**
+     * Allocates records with unused capacity of the given percentage of their length, so
+     * that records which grow can be updated in place. Zero, the default, allocates records
+     * at their length. Compaction leaves records their padding.
+     */
+    public RecordsFileOptions setPadding(int percent) {
+        if (percent < 0) {
+            throw new IllegalArgumentException("Bad padding: " + percent);
+        }
+        this.padding = percent;
+        return this;
+    }
+    public boolean isAdaptivePadding() {
+        return adaptivePadding;
+    }
+    /**
+     * Gives a record which outgrows its capacity room for growing as much again, so that
+     * the padding of each record follows its own growth.
+     */
+    public RecordsFileOptions setAdaptivePadding(boolean adaptivePadding) {
+        this.adaptivePadding = adaptivePadding;
+        return this;
+    }
+    public long getCacheSize() {
+        return cacheSize;
+    }
+    /**
+     * Caches the data of records read by RecordsFile.readRecord, up to the given number of
+     * bytes. Zero, the default, disables the cache.
+     */
+    public RecordsFileOptions setCacheSize(long cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Bad cache size: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        return this;
+    }
+    public CachePolicy getCachePolicy() {
+        return cachePolicy;
+    }
+    public RecordsFileOptions setCachePolicy(CachePolicy cachePolicy) {
+        if (cachePolicy == null) {
+            throw new IllegalArgumentException("Cache policy is null");
+        }
+        this.cachePolicy = cachePolicy;
+        return this;
+    }
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+    /**
+     * Selects MappedStorage instead of RandomAccessStorage for the database file.
+     */
+    public RecordsFileOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+    public int getMappedSegmentSize() {
+        return mappedSegmentSize;
+    }
+    /**
+     * Sets the size of one mapped segment when the file is memory mapped. Must be a power of two.
+     */
+    public RecordsFileOptions setMappedSegmentSize(int mappedSegmentSize) {
+        if (mappedSegmentSize <= 0 || Integer.bitCount(mappedSegmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size is not a power of two: " + mappedSegmentSize);
+        }
+        this.mappedSegmentSize = mappedSegmentSize;
+        return this;
+    }
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+    /**
+     * Makes every mutation atomic by logging its changes to a write-ahead log, kept next to
+     * the database file with a ".wal" suffix, before they are applied.
+     */
+    public RecordsFileOptions setWriteAheadLog(boolean writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        return this;
+    }
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+    /**
+     * Sets when the write-ahead log is forced to disk.
+     */
+    public RecordsFileOptions setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Fsync policy is null");
+        }
+        this.fsyncPolicy = fsyncPolicy;
+        return this;
+    }
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+    /**
+     * Sets the interval at which the log is forced with FsyncPolicy.INTERVAL.
+     */
+    public RecordsFileOptions setFsyncIntervalMillis(long fsyncIntervalMillis) {
+        if (fsyncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Bad fsync interval: " + fsyncIntervalMillis);
+        }
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        return this;
+    }
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+    /**
+     * Sets the size the write-ahead log may reach before the data file is forced to disk
+     * and the log is emptied.
+     */
+    public RecordsFileOptions setCheckpointSize(long checkpointSize) {
+        if (checkpointSize <= 0) {
+            throw new IllegalArgumentException("Bad checkpoint size: " + checkpointSize);
+        }
+        this.checkpointSize = checkpointSize;
+        return this;
+    }
+    /**
+     * Returns true if metrics are collected, which is the case when they are enabled, or a
+     * listener is set, or JMX is enabled.
+     */
+    public boolean isMetrics() {
+        return metrics || metricsListener != null || jmx;
+    }
+    /**
+     * Collects counters and latencies, available from getMetrics. Off by default, and then
+     * nothing is counted or timed.
+     */
+    public RecordsFileOptions setMetrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+    public RecordsFileListener getMetricsListener() {
+        return metricsListener;
+    }
+    /**
+     * Sets a listener to be told of every insert, read, update and delete, and enables
+     * metrics.
+     */
+    public RecordsFileOptions setMetricsListener(RecordsFileListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+    public boolean isJmx() {
+        return jmx;
+    }
+    /**
+     * Registers the metrics of each open file with the platform MBean server, under
+     * io.github.volyx:type=RecordsFile,path=the absolute path of the file, and enables
+     * metrics.
+     */
+    public RecordsFileOptions setJmx(boolean jmx) {
+        this.jmx = jmx;
+        return this;
+    }
+    /**
+     * Opens the storage selected by these options. If trailer is set, the file may have been
+     * left longer than its length by MappedStorage.
+     */
+    Storage openStorage(File f, String accessFlags, boolean trailer) throws IOException {
+        if (memoryMapped) {
+            return new MappedStorage(f, accessFlags, mappedSegmentSize, trailer);
+        }
+        return new RandomAccessStorage(f, accessFlags, trailer);
+    }
+}
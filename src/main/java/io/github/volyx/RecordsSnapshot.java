@@ -0,0 +1,120 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A consistent, read-only view of a records file at the time the snapshot was opened, which
+ * stays valid while the file is changed. The snapshot holds a copy of the index. The data
+ * of its records stays where it is in the file until a write is about to overwrite or cut
+ * off some of it; the whole record is then first copied to a temporary spill file. Close
+ * snapshots when done with them, since every open snapshot is checked on each write.
+ */
+public class RecordsSnapshot implements Closeable {
+    private final BaseRecordsFile recordsFile;
+    private final Map<String, RecordHeader> records;
+    // Records whose data is still only in the file, by data pointer.
+    private final TreeMap<Long, RecordHeader> extents = new TreeMap<Long, RecordHeader>();
+    // Spill file offsets of the data of records copied before they were overwritten.
+    private final Map<Long, Long> spilled = new HashMap<Long, Long>();
+    private File spillFile;
+    private RandomAccessFile spill;
+    private boolean closed;
+
+    RecordsSnapshot(BaseRecordsFile recordsFile, Map<String, RecordHeader> records) {
+        this.recordsFile = recordsFile;
+        this.records = records;
+        for (RecordHeader h : records.values()) {
+            if (h.dataCount > 0) {
+                extents.put(h.dataPointer, h);
+            }
+        }
+    }
+    public int getNumRecords() {
+        return records.size();
+    }
+    public boolean recordExists(String key) {
+        return records.containsKey(key);
+    }
+    /**
+     * Returns the keys of the snapshot, in order if the file keeps its keys sorted.
+     */
+    public Enumeration enumerateKeys() {
+        return Collections.enumeration(records.keySet());
+    }
+    /**
+     * Reads a record as it was when the snapshot was opened.
+     */
+    public RecordReader readRecord(String key) throws IOException {
+        RecordHeader header = records.get(key);
+        if (header == null) {
+            throw new IOException("Key not found: " + key);
+        }
+        return recordsFile.readSnapshotRecord(this, key, header);
+    }
+    /**
+     * Returns the data of a record of the snapshot. Called with the read lock held.
+     */
+    synchronized byte[] readData(RecordHeader header, Storage file) throws IOException {
+        if (closed) {
+            throw new IOException("Snapshot closed");
+        }
+        byte[] data = new byte[header.dataCount];
+        Long offset = spilled.get(header.dataPointer);
+        if (offset == null) {
+            file.read(header.dataPointer, data, 0, data.length);
+        } else {
+            spill.seek(offset);
+            spill.readFully(data);
+        }
+        return data;
+    }
+    /**
+     * Copies the data of the records of the snapshot which overlap the given range to the
+     * spill file, before the range is written or cut off. Called with the write lock held.
+     */
+    synchronized void beforeWrite(Storage file, long fp, long len) throws IOException {
+        if (closed || extents.isEmpty()) {
+            return;
+        }
+        Map.Entry<Long, RecordHeader> e = extents.floorEntry(fp);
+        if (e != null && e.getKey() + e.getValue().dataCount > fp) {
+            spill(file, e.getValue());
+        }
+        while ((e = extents.ceilingEntry(fp)) != null && e.getKey() < fp + len) {
+            spill(file, e.getValue());
+        }
+    }
+    private void spill(Storage file, RecordHeader header) throws IOException {
+        byte[] data = new byte[header.dataCount];
+        file.read(header.dataPointer, data, 0, data.length);
+        if (spill == null) {
+            spillFile = File.createTempFile("records-snapshot", ".spill");
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        long offset = spill.length();
+        spill.seek(offset);
+        spill.write(data);
+        spilled.put(header.dataPointer, offset);
+        extents.remove(header.dataPointer);
+    }
+    /**
+     * Closes the snapshot and deletes its spill file.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            extents.clear();
+            spilled.clear();
+        }
+        recordsFile.removeSnapshot(this);
+        if (spill != null) {
+            spill.close();
+            spillFile.delete();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.volyx;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The findings of a Scrubber run.
+ */
+public class ScrubReport {
+    private final int recordsChecked;
+    private final long bytesChecked;
+    private final int recordsSkipped;
+    private final List<String> corruptKeys;
+    private final List<String> quarantinedKeys;
+    private final List<String> errors;
+
+    ScrubReport(int recordsChecked, long bytesChecked, int recordsSkipped, List<String> corruptKeys,
+                List<String> quarantinedKeys, List<String> errors) {
+        this.recordsChecked = recordsChecked;
+        this.bytesChecked = bytesChecked;
+        this.recordsSkipped = recordsSkipped;
+        this.corruptKeys = Collections.unmodifiableList(corruptKeys);
+        this.quarantinedKeys = Collections.unmodifiableList(quarantinedKeys);
+        this.errors = Collections.unmodifiableList(errors);
+    }
+    /**
+     * Returns the number of records whose data was read and verified.
+     */
+    public int getRecordsChecked() {
+        return recordsChecked;
+    }
+    public long getBytesChecked() {
+        return bytesChecked;
+    }
+    /**
+     * Returns the number of records not verified because they were written during the run.
+     */
+    public int getRecordsSkipped() {
+        return recordsSkipped;
+    }
+    /**
+     * Returns the keys of the records whose data does not match its checksum, or which do
+     * not decompress.
+     */
+    public List<String> getCorruptKeys() {
+        return corruptKeys;
+    }
+    /**
+     * Returns the keys of the corrupt records which were moved to the quarantine file.
+     */
+    public List<String> getQuarantinedKeys() {
+        return quarantinedKeys;
+    }
+    /**
+     * Returns descriptions of the problems found in the headers and the index: index
+     * entries which do not match the in-memory index, and records outside the data region
+     * or overlapping each other.
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+    public boolean isClean() {
+        return corruptKeys.isEmpty() && errors.isEmpty();
+    }
+    public String toString() {
+        return "ScrubReport[checked=" + recordsChecked + ", bytes=" + bytesChecked + ", skipped=" + recordsSkipped
+                + ", corrupt=" + corruptKeys.size() + ", quarantined=" + quarantinedKeys.size()
+                + ", errors=" + errors.size() + "]";
+    }
+}
@@ -0,0 +1,340 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+/**
+ * Verifies a records file while it stays in use. The scrubber first reads the index region
+ * from the file and compares each entry with the in-memory index, then checks that the
+ * records lie in the data region without overlapping, and finally reads the data of all
+ * records in file order, a large chunk at a time on several threads, checking each record
+ * against its checksum, if the file has checksums, and that compressed records decompress.
+ * <p>
+ * The read lock is held for one chunk at a time, so writers go on in between; records
+ * written after the scrubber copied the index are skipped. Corrupt records can be moved to
+ * a quarantine file: their stored data is appended to it and they are deleted from the
+ * records file. Records with damaged headers are only reported, as deleting them could
+ * damage their neighbours.
+ */
+public class Scrubber {
+    // Bytes read as one unit: index entries, or the data of consecutive records.
+    private static final int SCRUB_CHUNK = 1 << 20;
+    // Most unused bytes between two records which are still read as one.
+    private static final int MAX_SCRUB_GAP = 1 << 16;
+
+    private final RecordsFile recordsFile;
+    private final int threads;
+    private final AtomicInteger recordsChecked = new AtomicInteger();
+    private final AtomicLong bytesChecked = new AtomicLong();
+    private final AtomicInteger recordsSkipped = new AtomicInteger();
+    private final Map<String, RecordHeader> corrupt = new ConcurrentSkipListMap<String, RecordHeader>();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+    public Scrubber(RecordsFile recordsFile, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Bad thread count: " + threads);
+        }
+        this.recordsFile = recordsFile;
+        this.threads = threads;
+    }
+    /**
+     * Verifies the file and returns what was found. If quarantineFile is not null, corrupt
+     * records are appended to it, each as its key (writeUTF), file pointer (long), length
+     * (int), compressed flag (boolean), checksum (int) and stored data, and then deleted.
+     */
+    public ScrubReport scrub(File quarantineFile) throws IOException {
+        recordsFile.awaitIndex(null);
+        recordsChecked.set(0);
+        bytesChecked.set(0);
+        recordsSkipped.set(0);
+        corrupt.clear();
+        errors.clear();
+        checkIndex();
+        List<Entry> entries = checkLayout();
+        checkData(entries);
+        List<String> quarantined = new ArrayList<String>();
+        if (quarantineFile != null && !corrupt.isEmpty()) {
+            quarantine(quarantineFile, quarantined);
+        }
+        return new ScrubReport(recordsChecked.get(), bytesChecked.get(), recordsSkipped.get(),
+                new ArrayList<String>(corrupt.keySet()), quarantined, new ArrayList<String>(errors));
+    }
+    /**
+     * Reads the index region a chunk at a time and compares the entries with the in-memory
+     * index under the same hold of the read lock.
+     */
+    private void checkIndex() throws IOException {
+        int chunk = Math.max(1, SCRUB_CHUNK / recordsFile.indexEntryLength);
+        for (int position = 0; ; position += chunk) {
+            recordsFile.lock.readLock().lock();
+            try {
+                int numRecords = recordsFile.memIndex.size();
+                if (position == 0) {
+                    if (recordsFile.readNumRecordsHeader() != numRecords) {
+                        errors.add("Record count header is " + recordsFile.readNumRecordsHeader() + ", index has " + numRecords);
+                    }
+                    if (recordsFile.readDataStartHeader() != recordsFile.dataStartPtr) {
+                        errors.add("Data start header is " + recordsFile.readDataStartHeader() + ", expected " + recordsFile.dataStartPtr);
+                    }
+                }
+                if (position >= numRecords) {
+                    return;
+                }
+                int count = Math.min(chunk, numRecords - position);
+                String[] keys = new String[count];
+                RecordHeader[] headers = new RecordHeader[count];
+                try {
+                    recordsFile.readIndexEntries(position, count, keys, headers);
+                } catch (IOException e) {
+                    errors.add("Index entries " + position + " to " + (position + count - 1) + ": " + e.getMessage());
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    RecordHeader h = recordsFile.memIndex.get(keys[i]);
+                    if (h == null) {
+                        errors.add("Index entry " + (position + i) + ": unknown key " + keys[i]);
+                    } else if (h.indexPosition != position + i || !sameData(h, headers[i])
+                            || h.dataCapacity != headers[i].dataCapacity || h.grown != headers[i].grown) {
+                        errors.add("Index entry " + (position + i) + ": header of " + keys[i] + " differs from the in-memory index");
+                    }
+                }
+            } finally {
+                recordsFile.lock.readLock().unlock();
+            }
+        }
+    }
+    /**
+     * Copies the in-memory index and checks that the records lie in the data region and do
+     * not overlap. Returns the records which can be read, in file order.
+     */
+    private List<Entry> checkLayout() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        long fileLength;
+        recordsFile.lock.readLock().lock();
+        try {
+            fileLength = recordsFile.getFileLength();
+            for (Enumeration e = recordsFile.memIndex.keys(); e.hasMoreElements();) {
+                String key = (String)e.nextElement();
+                RecordHeader h = recordsFile.memIndex.get(key);
+                if (h != null) {
+                    entries.add(new Entry(key, copy(h)));
+                }
+            }
+        } finally {
+            recordsFile.lock.readLock().unlock();
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.header.dataPointer, b.header.dataPointer);
+            }
+        });
+        List<Entry> readable = new ArrayList<Entry>(entries.size());
+        Entry previous = null;
+        for (Entry e : entries) {
+            RecordHeader h = e.header;
+            if (h.dataCount > h.dataCapacity) {
+                errors.add("Record " + e.key + ": " + h.dataCount + " bytes of data in a capacity of " + h.dataCapacity);
+            }
+            if (h.dataPointer < recordsFile.dataStartPtr || h.dataPointer + h.dataCapacity > fileLength) {
+                errors.add("Record " + e.key + ": outside the data region at " + h.dataPointer);
+                continue;
+            }
+            if (previous != null && h.dataPointer < previous.header.dataPointer + previous.header.dataCapacity) {
+                errors.add("Record " + e.key + ": overlaps record " + previous.key + " at " + h.dataPointer);
+            }
+            if (h.dataCount <= h.dataCapacity) {
+                readable.add(e);
+            }
+            previous = e;
+        }
+        return readable;
+    }
+    /**
+     * Splits the records into runs which are read with one read, and verifies the runs on
+     * the scrubber's threads, in file order.
+     */
+    private void checkData(List<Entry> entries) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "records-file-scrubber");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            int start = 0;
+            while (start < entries.size()) {
+                RecordHeader first = entries.get(start).header;
+                long end = first.dataPointer + first.dataCount;
+                int next = start + 1;
+                while (next < entries.size()) {
+                    RecordHeader h = entries.get(next).header;
+                    long runEnd = Math.max(end, h.dataPointer + h.dataCount);
+                    if (h.dataPointer - end > MAX_SCRUB_GAP || runEnd - first.dataPointer > SCRUB_CHUNK) {
+                        break;
+                    }
+                    end = runEnd;
+                    next++;
+                }
+                final List<Entry> run = entries.subList(start, next);
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        checkRun(run);
+                        return null;
+                    }
+                }));
+                start = next;
+            }
+            for (Future<Void> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while scrubbing");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new IOException("Scrub failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    private void checkRun(List<Entry> run) throws IOException {
+        recordsFile.lock.readLock().lock();
+        try {
+            List<Entry> unchanged = new ArrayList<Entry>(run.size());
+            for (Entry e : run) {
+                RecordHeader current = recordsFile.memIndex.get(e.key);
+                if (current != null && sameData(current, e.header)) {
+                    unchanged.add(e);
+                } else {
+                    recordsSkipped.incrementAndGet();
+                }
+            }
+            if (unchanged.isEmpty()) {
+                return;
+            }
+            RecordHeader first = unchanged.get(0).header;
+            if (unchanged.size() == 1 && first.dataCount > SCRUB_CHUNK && !first.compressed) {
+                checkLargeRecord(unchanged.get(0));
+                return;
+            }
+            long end = first.dataPointer;
+            for (Entry e : unchanged) {
+                end = Math.max(end, e.header.dataPointer + e.header.dataCount);
+            }
+            byte[] buf = new byte[(int)(end - first.dataPointer)];
+            recordsFile.readStored(first.dataPointer, buf, 0, buf.length);
+            for (Entry e : unchanged) {
+                check(e, buf, (int)(e.header.dataPointer - first.dataPointer));
+            }
+        } finally {
+            recordsFile.lock.readLock().unlock();
+        }
+    }
+    private void check(Entry e, byte[] buf, int off) {
+        RecordHeader h = e.header;
+        boolean ok = !recordsFile.checksums || Crc32c.compute(buf, off, h.dataCount) == h.checksum;
+        if (ok && h.compressed) {
+            try {
+                RecordCompressor.decompress(buf, off, h.dataCount);
+            } catch (IOException ex) {
+                ok = false;
+            }
+        }
+        counted(e, ok);
+    }
+    /**
+     * Checks an uncompressed record longer than a chunk a chunk at a time.
+     */
+    private void checkLargeRecord(Entry e) throws IOException {
+        RecordHeader h = e.header;
+        if (!recordsFile.checksums) {
+            counted(e, true);
+            return;
+        }
+        Checksum checksum = Crc32c.newChecksum();
+        byte[] buf = new byte[SCRUB_CHUNK];
+        for (int done = 0; done < h.dataCount; ) {
+            int n = Math.min(buf.length, h.dataCount - done);
+            recordsFile.readStored(h.dataPointer + done, buf, 0, n);
+            checksum.update(buf, 0, n);
+            done += n;
+        }
+        counted(e, (int)checksum.getValue() == h.checksum);
+    }
+    private void counted(Entry e, boolean ok) {
+        recordsChecked.incrementAndGet();
+        bytesChecked.addAndGet(e.header.dataCount);
+        if (!ok) {
+            corrupt.put(e.key, e.header);
+        }
+    }
+    /**
+     * Appends the corrupt records to the quarantine file and deletes them, unless they have
+     * been rewritten since they were checked.
+     */
+    private void quarantine(File quarantineFile, List<String> quarantined) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(quarantineFile, true)));
+        try {
+            for (Map.Entry<String, RecordHeader> e : corrupt.entrySet()) {
+                String key = e.getKey();
+                recordsFile.beginMutation();
+                try {
+                    RecordHeader current = recordsFile.memIndex.get(key);
+                    if (current == null || !sameData(current, e.getValue())) {
+                        continue;
+                    }
+                    byte[] data = recordsFile.readStoredData(current);
+                    out.writeUTF(key);
+                    out.writeLong(current.dataPointer);
+                    out.writeInt(current.dataCount);
+                    out.writeBoolean(current.compressed);
+                    out.writeInt(current.checksum);
+                    out.write(data);
+                    // the record is only deleted once its data is safe in the quarantine file
+                    out.flush();
+                    recordsFile.deleteRecord(key);
+                    quarantined.add(key);
+                } finally {
+                    recordsFile.endMutation();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+    private static boolean sameData(RecordHeader a, RecordHeader b) {
+        return a.dataPointer == b.dataPointer && a.dataCount == b.dataCount
+                && a.compressed == b.compressed && a.checksum == b.checksum;
+    }
+    private static RecordHeader copy(RecordHeader h) {
+        RecordHeader c = new RecordHeader();
+        c.dataPointer = h.dataPointer;
+        c.dataCapacity = h.dataCapacity;
+        c.grown = h.grown;
+        c.dataCount = h.dataCount;
+        c.compressed = h.compressed;
+        c.checksum = h.checksum;
+        c.indexPosition = h.indexPosition;
+        return c;
+    }
+
+    private static class Entry {
+        final String key;
+        final RecordHeader header;
+
+        Entry(String key, RecordHeader header) {
+            this.key = key;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hash-partitions keys over several RecordsFiles, each with its own file and lock, so that
+ * writes to different shards run in parallel. The shard files may be on different disks.
+ * A small manifest file lists the shard files, so that the sharded file is opened by the
+ * path of its manifest alone. Shards in the manifest's directory are listed relative to it,
+ * so that the directory can be moved; other shards are listed by their absolute paths.
+ */
+public class ShardedRecordsFile {
+    // Written at the start of the manifest.
+    private static final int MANIFEST_MAGIC = 0x52465348;
+
+    private final RecordsFile[] shards;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a sharded file whose shards are stored next to the manifest, in dbPath.0,
+     * dbPath.1 and so on. initialSize is the initial index size of each shard.
+     */
+    public ShardedRecordsFile(String dbPath, int shardCount, int initialSize, RecordsFileOptions options) throws IOException {
+        this(dbPath, defaultShardPaths(dbPath, shardCount), initialSize, options);
+    }
+    /**
+     * Creates a sharded file with a shard at each of the given paths. If a shard cannot be
+     * created, the shards created so far are deleted again.
+     */
+    public ShardedRecordsFile(String dbPath, String[] shardPaths, int initialSize, RecordsFileOptions options) throws IOException {
+        if (shardPaths.length < 1) {
+            throw new IllegalArgumentException("No shards");
+        }
+        File manifest = new File(dbPath);
+        if (manifest.exists()) {
+            throw new IOException("Database already exits: " + dbPath);
+        }
+        shards = new RecordsFile[shardPaths.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new RecordsFile(shardPaths[i], initialSize, options);
+            }
+            writeManifest(manifest, shardPaths);
+        } catch (IOException e) {
+            closeShards();
+            for (int i = 0; i < shards.length && shards[i] != null; i++) {
+                new File(shardPaths[i]).delete();
+                BaseRecordsFile.walFile(shardPaths[i]).delete();
+                RecordsFile.keyFilterFile(shardPaths[i]).delete();
+            }
+            manifest.delete();
+            throw e;
+        }
+        executor = newExecutor(shards.length);
+    }
+    /**
+     * Opens the sharded file described by the manifest at dbPath.
+     */
+    public ShardedRecordsFile(String dbPath, String accessFlags, RecordsFileOptions options) throws IOException {
+        String[] shardPaths = readManifest(new File(dbPath));
+        shards = new RecordsFile[shardPaths.length];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new RecordsFile(shardPaths[i], accessFlags, options);
+            }
+        } catch (IOException e) {
+            closeShards();
+            throw e;
+        }
+        executor = newExecutor(shards.length);
+    }
+    private static String[] defaultShardPaths(String dbPath, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Bad shard count: " + shardCount);
+        }
+        String[] paths = new String[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            paths[i] = dbPath + "." + i;
+        }
+        return paths;
+    }
+    private static void writeManifest(File manifest, String[] shardPaths) throws IOException {
+        java.nio.file.Path dir = manifest.getAbsoluteFile().toPath().normalize().getParent();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(manifest)));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(shardPaths.length);
+            for (String path : shardPaths) {
+                java.nio.file.Path shard = new File(path).getAbsoluteFile().toPath().normalize();
+                out.writeUTF(shard.startsWith(dir) ? dir.relativize(shard).toString() : shard.toString());
+            }
+        } finally {
+            out.close();
+        }
+    }
+    private static String[] readManifest(File manifest) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Not a sharded records file: " + manifest);
+            }
+            File dir = manifest.getAbsoluteFile().getParentFile();
+            String[] shardPaths = new String[in.readInt()];
+            for (int i = 0; i < shardPaths.length; i++) {
+                File shard = new File(in.readUTF());
+                shardPaths[i] = shard.isAbsolute() ? shard.getPath() : new File(dir, shard.getPath()).getPath();
+            }
+            return shardPaths;
+        } finally {
+            in.close();
+        }
+    }
+    private static ExecutorService newExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sharded-records-file");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    public int getShardCount() {
+        return shards.length;
+    }
+    /**
+     * Returns the shard which holds the given key.
+     */
+    public RecordsFile getShard(String key) {
+        return shards[shardIndex(key)];
+    }
+    int shardIndex(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+    public void insertRecord(RecordWriter rw) throws IOException {
+        getShard(rw.getKey()).insertRecord(rw);
+    }
+    public void updateRecord(RecordWriter rw) throws IOException {
+        getShard(rw.getKey()).updateRecord(rw);
+    }
+    public void deleteRecord(String key) throws IOException {
+        getShard(key).deleteRecord(key);
+    }
+    public RecordReader readRecord(String key) throws IOException {
+        return getShard(key).readRecord(key);
+    }
+    public int readRecordInto(String key, ByteBuffer dst) throws IOException {
+        return getShard(key).readRecordInto(key, dst);
+    }
+    public ByteBuffer readRecordView(String key) throws IOException {
+        return getShard(key).readRecordView(key);
+    }
+    public long transferRecordTo(String key, WritableByteChannel target) throws IOException {
+        return getShard(key).transferRecordTo(key, target);
+    }
+    public boolean recordExists(String key) {
+        return getShard(key).recordExists(key);
+    }
+    /**
+     * Splits the batch by shard and writes the parts in parallel, each as one writeBatch.
+     * Each part is applied as a whole, but if a shard fails the parts of the other shards
+     * may have been written.
+     */
+    public void writeBatch(Collection<RecordWriter> writers) throws IOException {
+        final List<List<RecordWriter>> parts = new ArrayList<List<RecordWriter>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<RecordWriter>());
+        }
+        for (RecordWriter rw : writers) {
+            parts.get(shardIndex(rw.getKey())).add(rw);
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < shards.length; i++) {
+            final RecordsFile shard = shards[i];
+            final List<RecordWriter> part = parts.get(i);
+            if (!part.isEmpty()) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        shard.writeBatch(part);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(tasks);
+    }
+    /**
+     * Returns the total number of records in all shards.
+     */
+    public int getNumRecords() {
+        int n = 0;
+        for (RecordsFile shard : shards) {
+            n += shard.getNumRecords();
+        }
+        return n;
+    }
+    /**
+     * Returns the keys of all shards, one shard after the other.
+     */
+    public Enumeration enumerateKeys() {
+        final Enumeration[] parts = new Enumeration[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            parts[i] = shards[i].enumerateKeys();
+        }
+        return new Enumeration() {
+            int shard;
+            public boolean hasMoreElements() {
+                while (shard < parts.length && !parts[shard].hasMoreElements()) {
+                    shard++;
+                }
+                return shard < parts.length;
+            }
+            public Object nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                return parts[shard].nextElement();
+            }
+        };
+    }
+    /**
+     * Returns the keys of one shard, so that the shards can be enumerated by separate threads.
+     */
+    public Enumeration enumerateKeys(int shard) {
+        return shards[shard].enumerateKeys();
+    }
+    /**
+     * Closes all shards.
+     */
+    public void close() throws IOException {
+        executor.shutdown();
+        IOException error = closeShards();
+        if (error != null) {
+            throw error;
+        }
+    }
+    private IOException closeShards() {
+        IOException error = null;
+        for (RecordsFile shard : shards) {
+            if (shard == null) {
+                continue;
+            }
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        return error;
+    }
+    private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing a batch");
+        }
+        IOException error = null;
+        for (Future<Void> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing a batch");
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException
+                            ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.volyx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets the open snapshots of a file save the data of their records before a write or
+ * truncation changes it. Without open snapshots it only delegates.
+ */
+class SnapshotStorage implements Storage {
+    private final Storage storage;
+    private final List<RecordsSnapshot> snapshots = new CopyOnWriteArrayList<RecordsSnapshot>();
+
+    SnapshotStorage(Storage storage) {
+        this.storage = storage;
+    }
+    void add(RecordsSnapshot snapshot) {
+        snapshots.add(snapshot);
+    }
+    void remove(RecordsSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+    List<RecordsSnapshot> getSnapshots() {
+        return snapshots;
+    }
+    private void beforeWrite(long fp, long len) throws IOException {
+        for (RecordsSnapshot snapshot : snapshots) {
+            snapshot.beforeWrite(storage, fp, len);
+        }
+    }
+    public long length() throws IOException {
+        return storage.length();
+    }
+    public void setLength(long length) throws IOException {
+        if (!snapshots.isEmpty()) {
+            long current = storage.length();
+            if (length < current) {
+                beforeWrite(length, current - length);
+            }
+        }
+        storage.setLength(length);
+    }
+    public void read(long fp, byte[] b, int off, int len) throws IOException {
+        storage.read(fp, b, off, len);
+    }
+    public void write(long fp, byte[] b, int off, int len) throws IOException {
+        beforeWrite(fp, len);
+        storage.write(fp, b, off, len);
+    }
+    public void read(long fp, ByteBuffer dst) throws IOException {
+        storage.read(fp, dst);
+    }
+    public ByteBuffer slice(long fp, int len) throws IOException {
+        return storage.slice(fp, len);
+    }
+    public void transferTo(long fp, long count, WritableByteChannel target) throws IOException {
+        storage.transferTo(fp, count, target);
+    }
+    public void sync() throws IOException {
+        storage.sync();
+    }
+    public int readInt(long fp) throws IOException {
+        return storage.readInt(fp);
+    }
+    public void writeInt(long fp, int v) throws IOException {
+        beforeWrite(fp, 4);
+        storage.writeInt(fp, v);
+    }
+    public long readLong(long fp) throws IOException {
+        return storage.readLong(fp);
+    }
+    public void writeLong(long fp, long v) throws IOException {
+        beforeWrite(fp, 8);
+        storage.writeLong(fp, v);
+    }
+    public void close() throws IOException {
+        storage.close();
+    }
+}
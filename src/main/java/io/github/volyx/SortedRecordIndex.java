@@ -0,0 +1,66 @@
+package io.github.volyx;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Wraps a RecordIndex and keeps its keys in a skip list as well, so that keys can be
+ * enumerated in order and ranges of keys found without looking at all keys. The skip list
+ * is rebuilt as the index is loaded.
+ */
+class SortedRecordIndex implements RecordIndex {
+    private final RecordIndex index;
+    private final ConcurrentSkipListSet<String> sortedKeys = new ConcurrentSkipListSet<String>();
+
+    SortedRecordIndex(RecordIndex index) {
+        this.index = index;
+    }
+    /**
+     * Returns the keys in order. Iterators over the set and its views are weakly consistent.
+     */
+    NavigableSet<String> sortedKeys() {
+        return sortedKeys;
+    }
+    public int size() {
+        return index.size();
+    }
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+    public RecordHeader get(String key) {
+        return index.get(key);
+    }
+    public void put(String key, RecordHeader header) {
+        index.put(key, header);
+        sortedKeys.add(key);
+    }
+    public void update(RecordHeader header) {
+        index.update(header);
+    }
+    public RecordHeader remove(String key) {
+        RecordHeader removed = index.remove(key);
+        if (removed != null) {
+            sortedKeys.remove(key);
+        }
+        return removed;
+    }
+    public RecordHeader recordAt(long targetFp) {
+        return index.recordAt(targetFp);
+    }
+    public RecordHeader findFreeSpace(int dataLength) {
+        return index.findFreeSpace(dataLength);
+    }
+    public AllocationPolicy getPolicy() {
+        return index.getPolicy();
+    }
+    public void setPolicy(AllocationPolicy policy) {
+        index.setPolicy(policy);
+    }
+    public Enumeration keys() {
+        return Collections.enumeration(sortedKeys);
+    }
+    public void clear() {
+        index.clear();
+        sortedKeys.clear();
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Positional access to the bytes of a database file. All multi-byte values are big-endian,
+ * as written by DataOutput. Reads may run concurrently with each other; a write or a length
+ * change must not run concurrently with any other access.
+ */
+public interface Storage extends Closeable {
+    /**
+     * Returns the length of the file.
+     */
+    long length() throws IOException;
+    /**
+     * Grows or truncates the file.
+     */
+    void setLength(long length) throws IOException;
+    /**
+     * Reads exactly len bytes starting at the given file pointer.
+     */
+    void read(long fp, byte[] b, int off, int len) throws IOException;
+    /**
+     * Writes len bytes starting at the given file pointer.
+     */
+    void write(long fp, byte[] b, int off, int len) throws IOException;
+    /**
+     * Reads exactly dst.remaining() bytes starting at the given file pointer into the buffer.
+     */
+    void read(long fp, ByteBuffer dst) throws IOException;
+    /**
+     * Returns a read-only view of len bytes starting at the given file pointer, or null if
+     * the storage cannot provide one without copying.
+     */
+    ByteBuffer slice(long fp, int len) throws IOException;
+    /**
+     * Transfers count bytes starting at the given file pointer to the target channel,
+     * letting the operating system copy the data where it can. The target should be in
+     * blocking mode; a transfer which moves no bytes fails.
+     */
+    void transferTo(long fp, long count, WritableByteChannel target) throws IOException;
+    /**
+     * Forces all written data and the file length to disk.
+     */
+    void sync() throws IOException;
+    int readInt(long fp) throws IOException;
+    void writeInt(long fp, int v) throws IOException;
+    long readLong(long fp) throws IOException;
+    void writeLong(long fp, long v) throws IOException;
+}
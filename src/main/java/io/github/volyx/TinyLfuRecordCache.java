@@ -0,0 +1,209 @@
+package io.github.volyx;
+
+import java.util.*;
+
+/**
+ * A record cache with W-TinyLFU eviction. New records enter an LRU window of 1% of the
+ * capacity. Records leaving the window compete with the least recently used record of the
+ * main area, and the one read more often recently, by a count-min sketch, stays. The main
+ * area is a segmented LRU: records read again while on probation move to the protected
+ * segment, which holds 80% of the main area.
+ */
+class TinyLfuRecordCache extends RecordCache {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final Map<String, Node> map = new HashMap<String, Node>();
+    // Sentinels of the circular lists of the three regions, least recently used first.
+    private final Node[] regions = new Node[] {new Node(), new Node(), new Node()};
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final long protectedCapacity;
+    private long windowSize;
+    private long mainSize;
+    private long protectedSize;
+    private final FrequencySketch sketch;
+
+    TinyLfuRecordCache(long capacity) {
+        super(capacity);
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = capacity - windowCapacity;
+        protectedCapacity = mainCapacity * 8 / 10;
+        sketch = new FrequencySketch(capacity);
+    }
+    protected byte[] lookup(String key) {
+        sketch.increment(key);
+        Node node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        if (node.region == PROBATION) {
+            node.region = PROTECTED;
+            protectedSize += node.weight;
+            while (protectedSize > protectedCapacity && regions[PROTECTED].next != regions[PROTECTED]) {
+                Node demoted = regions[PROTECTED].next;
+                unlink(demoted);
+                protectedSize -= demoted.weight;
+                demoted.region = PROBATION;
+                link(demoted);
+            }
+        }
+        link(node);
+        return node.data;
+    }
+    protected void add(String key, byte[] data, long weight) {
+        Node node = new Node();
+        node.key = key;
+        node.data = data;
+        node.weight = weight;
+        node.region = WINDOW;
+        map.put(key, node);
+        link(node);
+        size += weight;
+        windowSize += weight;
+        while (windowSize > windowCapacity) {
+            Node candidate = regions[WINDOW].next;
+            unlink(candidate);
+            windowSize -= candidate.weight;
+            admit(candidate);
+        }
+    }
+    /**
+     * Moves a record from the window into the main area, if it is read more often than the
+     * records it would displace.
+     */
+    private void admit(Node candidate) {
+        int frequency = sketch.frequency(candidate.key);
+        while (mainSize + candidate.weight > mainCapacity) {
+            Node victim = regions[PROBATION].next;
+            if (victim == regions[PROBATION]) {
+                victim = regions[PROTECTED].next;
+            }
+            if (victim == regions[PROTECTED] || frequency <= sketch.frequency(victim.key)) {
+                // the main area is empty, or the candidate loses
+                evict(candidate);
+                return;
+            }
+            unlink(victim);
+            mainSize -= victim.weight;
+            if (victim.region == PROTECTED) {
+                protectedSize -= victim.weight;
+            }
+            evict(victim);
+        }
+        candidate.region = PROBATION;
+        link(candidate);
+        mainSize += candidate.weight;
+    }
+    private void evict(Node node) {
+        map.remove(node.key);
+        size -= node.weight;
+        evictions++;
+    }
+    protected void remove(String key) {
+        Node node = map.remove(key);
+        if (node == null) {
+            return;
+        }
+        unlink(node);
+        size -= node.weight;
+        if (node.region == WINDOW) {
+            windowSize -= node.weight;
+        } else {
+            mainSize -= node.weight;
+            if (node.region == PROTECTED) {
+                protectedSize -= node.weight;
+            }
+        }
+    }
+    protected void clearEntries() {
+        map.clear();
+        for (Node sentinel : regions) {
+            sentinel.next = sentinel;
+            sentinel.prev = sentinel;
+        }
+        windowSize = 0;
+        mainSize = 0;
+        protectedSize = 0;
+    }
+    protected int entries() {
+        return map.size();
+    }
+    private void link(Node node) {
+        Node sentinel = regions[node.region];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static class Node {
+        String key;
+        byte[] data;
+        long weight;
+        int region = WINDOW;
+        Node prev = this;
+        Node next = this;
+    }
+
+    /**
+     * Approximate access counts of recently read keys, in 4-bit counters which are halved
+     * after a sample of accesses so that old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long capacity) {
+            int width = 64;
+            while (width < (1 << 22) && width < capacity / 256) {
+                width <<= 1;
+            }
+            counters = new byte[width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, counters[index(hash, i)]);
+            }
+            return frequency;
+        }
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int)h & mask;
+        }
+    }
+}
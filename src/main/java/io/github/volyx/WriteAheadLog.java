@@ -0,0 +1,161 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Redo log of the changes made by each mutation. A log record is the length and CRC32 of its
+ * body followed by the body, a serialized WriteOverlay. Log sequence numbers (LSNs) are byte
+ * offsets into the log that keep growing across checkpoints.
+ */
+class WriteAheadLog implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // LSN of the first byte of the log file.
+    private long baseLsn;
+    // LSN just past the last appended record.
+    private long appendedLsn;
+    // LSN up to which the log is known to be on disk.
+    private long durableLsn;
+    // True while a thread is forcing the log to disk for a group of commits.
+    private boolean syncing;
+
+    /**
+     * Opens the log file, which must have been recovered first.
+     */
+    WriteAheadLog(File f) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        channel.truncate(0);
+    }
+    /**
+     * Appends the changes of one mutation to the log and returns the LSN of the end of its
+     * record. The record is written to the file but not forced to disk.
+     */
+    synchronized long append(WriteOverlay changes) throws IOException {
+        DbByteArrayOutputStream out = new DbByteArrayOutputStream((int)Math.min(changes.bytes() + 64, Integer.MAX_VALUE));
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeLong(0);
+        changes.writeTo(dout);
+        byte[] record = out.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        Bytes.putInt(record, 0, record.length - 8);
+        Bytes.putInt(record, 4, (int)crc.getValue());
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        long fp = appendedLsn - baseLsn;
+        while (buf.hasRemaining()) {
+            fp += channel.write(buf, fp);
+        }
+        appendedLsn += record.length;
+        return appendedLsn;
+    }
+    synchronized long getAppendedLsn() {
+        return appendedLsn;
+    }
+    synchronized boolean isDurable(long lsn) {
+        return durableLsn >= lsn;
+    }
+    /**
+     * Returns the number of bytes in the log file.
+     */
+    synchronized long size() {
+        return appendedLsn - baseLsn;
+    }
+    /**
+     * Waits until the log is on disk up to the given LSN. If no other thread is forcing the
+     * log, this thread forces it on behalf of every record appended so far; otherwise it waits
+     * for that force to finish, so concurrent commits share one force.
+     */
+    void sync(long lsn) throws IOException {
+        long target;
+        synchronized (this) {
+            while (true) {
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                if (!syncing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log");
+                }
+            }
+            syncing = true;
+            target = appendedLsn;
+        }
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (forced && target > durableLsn) {
+                    durableLsn = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+    /**
+     * Empties the log. Must only be called once every record has been applied to the data
+     * file and the data file has been forced to disk.
+     */
+    synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        baseLsn = appendedLsn;
+        durableLsn = appendedLsn;
+    }
+    public void close() throws IOException {
+        file.close();
+    }
+    /**
+     * Replays every complete record of the log file onto the data storage, forces the data to
+     * disk and empties the log. A torn or corrupt record ends the replay, since it can only be
+     * the last one, written by a mutation which never completed.
+     */
+    static void recover(File f, Storage data) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        long remaining = f.length();
+        int replayed = 0;
+        try {
+            while (remaining >= 8) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                remaining -= 8;
+                if (length < 0 || length > remaining) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                remaining -= length;
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, length);
+                if ((int)crc.getValue() != checksum) {
+                    break;
+                }
+                WriteOverlay.readFrom(new DataInputStream(new ByteArrayInputStream(body))).applyTo(data);
+                replayed++;
+            }
+        } finally {
+            in.close();
+        }
+        if (replayed > 0) {
+            data.sync();
+        }
+        RandomAccessFile log = new RandomAccessFile(f, "rw");
+        try {
+            log.setLength(0);
+            log.getChannel().force(true);
+        } finally {
+            log.close();
+        }
+    }
+}
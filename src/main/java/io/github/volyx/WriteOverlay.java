@@ -0,0 +1,172 @@
+package io.github.volyx;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes and length changes which have not yet been applied to a storage. Written ranges are
+ * kept in a TreeMap by file pointer; a write replaces the bytes of any earlier write it
+ * overlaps.
+ */
+class WriteOverlay {
+    // Non-overlapping written ranges, keyed by their first file pointer.
+    private final TreeMap<Long, byte[]> ranges = new TreeMap<Long, byte[]>();
+    // Smallest length the file was truncated to, or -1 if it was never truncated.
+    private long minLength = -1;
+    // Length of the file after all changes, or -1 if it was not changed.
+    private long length = -1;
+    private long bytes;
+
+    boolean isEmpty() {
+        return ranges.isEmpty() && length < 0;
+    }
+    long getMinLength() {
+        return minLength;
+    }
+    long getLength() {
+        return length;
+    }
+    /**
+     * Returns the number of bytes held.
+     */
+    long bytes() {
+        return bytes;
+    }
+    void setLength(long newLength, long currentLength) {
+        if (newLength < currentLength) {
+            truncate(newLength);
+        }
+        length = newLength;
+    }
+    private void truncate(long newLength) {
+        Map.Entry<Long, byte[]> e = ranges.lowerEntry(newLength);
+        if (e != null && e.getKey() + e.getValue().length > newLength) {
+            byte[] kept = Arrays.copyOf(e.getValue(), (int)(newLength - e.getKey()));
+            bytes -= e.getValue().length - kept.length;
+            ranges.put(e.getKey(), kept);
+        }
+        SortedMap<Long, byte[]> tail = ranges.tailMap(newLength);
+        for (byte[] b : tail.values()) {
+            bytes -= b.length;
+        }
+        tail.clear();
+        if (minLength < 0 || newLength < minLength) {
+            minLength = newLength;
+        }
+    }
+    void write(long fp, byte[] b, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        long end = fp + len;
+        long start = fp;
+        Map.Entry<Long, byte[]> first = ranges.lowerEntry(fp);
+        if (first != null && first.getKey() + first.getValue().length > fp) {
+            start = first.getKey();
+        }
+        SortedMap<Long, byte[]> overlapping = ranges.subMap(start, end);
+        if (!overlapping.isEmpty()) {
+            Map.Entry<Long, byte[]> last = ranges.lowerEntry(end);
+            end = Math.max(end, last.getKey() + last.getValue().length);
+        }
+        byte[] merged = new byte[(int)(end - start)];
+        for (Map.Entry<Long, byte[]> e : overlapping.entrySet()) {
+            System.arraycopy(e.getValue(), 0, merged, (int)(e.getKey() - start), e.getValue().length);
+            bytes -= e.getValue().length;
+        }
+        overlapping.clear();
+        System.arraycopy(b, off, merged, (int)(fp - start), len);
+        ranges.put(start, merged);
+        bytes += merged.length;
+    }
+    /**
+     * Returns true if any written range overlaps the given range.
+     */
+    boolean overlaps(long fp, long len) {
+        Map.Entry<Long, byte[]> e = ranges.lowerEntry(fp + len);
+        return e != null && e.getKey() + e.getValue().length > fp;
+    }
+    /**
+     * Copies the written bytes which fall in the given range over the buffer. Bytes at or
+     * beyond the limit are ignored.
+     */
+    void patch(long fp, byte[] b, int off, int len, long limit) {
+        long end = Math.min(fp + len, limit);
+        if (end <= fp) {
+            return;
+        }
+        Long start = ranges.floorKey(fp);
+        if (start == null) {
+            start = fp;
+        }
+        for (Map.Entry<Long, byte[]> e : ranges.subMap(start, end).entrySet()) {
+            long from = Math.max(fp, e.getKey());
+            long to = Math.min(end, e.getKey() + e.getValue().length);
+            if (from < to) {
+                System.arraycopy(e.getValue(), (int)(from - e.getKey()), b, off + (int)(from - fp), (int)(to - from));
+            }
+        }
+    }
+    /**
+     * Adds the changes of a later overlay on top of the changes of this one.
+     */
+    void merge(WriteOverlay later) {
+        if (later.minLength >= 0) {
+            truncate(later.minLength);
+        }
+        if (later.length >= 0) {
+            length = later.length;
+        }
+        for (Map.Entry<Long, byte[]> e : later.ranges.entrySet()) {
+            write(e.getKey(), e.getValue(), 0, e.getValue().length);
+        }
+    }
+    /**
+     * Applies the changes to the storage: truncation first, then the final length, then the
+     * written ranges.
+     */
+    void applyTo(Storage storage) throws IOException {
+        if (minLength >= 0 && minLength < storage.length()) {
+            storage.setLength(minLength);
+        }
+        if (length >= 0 && length != storage.length()) {
+            storage.setLength(length);
+        }
+        for (Map.Entry<Long, byte[]> e : ranges.entrySet()) {
+            storage.write(e.getKey(), e.getValue(), 0, e.getValue().length);
+        }
+    }
+    /**
+     * Serializes the changes as a redo record body.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(minLength);
+        out.writeLong(length);
+        out.writeInt(ranges.size());
+        for (Map.Entry<Long, byte[]> e : ranges.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeInt(e.getValue().length);
+            out.write(e.getValue());
+        }
+    }
+    static WriteOverlay readFrom(DataInput in) throws IOException {
+        WriteOverlay o = new WriteOverlay();
+        o.minLength = in.readLong();
+        o.length = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            long fp = in.readLong();
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            o.ranges.put(fp, b);
+            o.bytes += b.length;
+        }
+        return o;
+    }
+    void clear() {
+        ranges.clear();
+        minLength = -1;
+        length = -1;
+        bytes = 0;
+    }
+}
@@ -3,13 +3,36 @@ package io.github.volyx;
 
 import org.junit.Assert;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Date;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 public class RecordsFileTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void test1() throws IOException, ClassNotFoundException {
         BaseRecordsFile recordsFile = new RecordsFile("testDatabase.jdb", 64);
@@ -24,4 +47,1453 @@ public class RecordsFileTest {
         Assert.assertEquals(date, d);
         System.out.println("last access was at: " + d.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void randomOperationsBestFit() throws IOException {
+        randomOperations(new RecordsFileOptions().setAllocationPolicy(AllocationPolicy.BEST_FIT));
+    }
+
+    @Test
+    public void randomOperationsFirstFit() throws IOException {
+        randomOperations(new RecordsFileOptions().setAllocationPolicy(AllocationPolicy.FIRST_FIT));
+    }
+
+    @Test
+    public void randomOperationsCompactIndex() throws IOException {
+        randomOperations(new RecordsFileOptions().setIndexMode(IndexMode.COMPACT));
+        folder.delete();
+        folder.create();
+        randomOperations(new RecordsFileOptions().setIndexMode(IndexMode.COMPACT)
+                .setAllocationPolicy(AllocationPolicy.FIRST_FIT));
+    }
+
+    @Test
+    public void randomOperationsPadded() throws IOException {
+        randomOperations(new RecordsFileOptions().setPadding(25).setAdaptivePadding(true));
+        folder.delete();
+        folder.create();
+        randomOperations(new RecordsFileOptions().setAdaptivePadding(true).setIndexMode(IndexMode.COMPACT)
+                .setChecksums(true));
+    }
+
+    @Test
+    public void randomOperationsMemoryMapped() throws IOException {
+        // small segments so that records and headers straddle segment boundaries
+        randomOperations(new RecordsFileOptions().setMemoryMapped(true).setMappedSegmentSize(4096));
+    }
+
+    @Test
+    public void randomOperationsWithLog() throws IOException {
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            randomOperations(new RecordsFileOptions().setWriteAheadLog(true).setFsyncPolicy(policy)
+                    .setFsyncIntervalMillis(1).setCheckpointSize(1 << 16));
+            folder.delete();
+            folder.create();
+        }
+    }
+
+    @Test
+    public void closeDuringLogFlush() throws Exception {
+        String path = new File(folder.getRoot(), "flush.jdb").getPath();
+        RecordsFileOptions options = new RecordsFileOptions().setWriteAheadLog(true)
+                .setFsyncPolicy(FsyncPolicy.INTERVAL).setFsyncIntervalMillis(1);
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        recordsFile.insertRecord(filledRecord("a", 10, (byte)1));
+        // hold the write lock until a flush waits for it, then close, which takes the lock
+        // again: the flush must give up rather than hold up the close
+        recordsFile.lock.writeLock().lock();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!recordsFile.lock.hasQueuedThreads()) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            long start = System.currentTimeMillis();
+            recordsFile.close();
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            recordsFile.lock.writeLock().unlock();
+        }
+        recordsFile = new RecordsFile(path, "r");
+        Assert.assertArrayEquals(filledData(10, (byte)1), recordsFile.readRecord("a").getData());
+        recordsFile.close();
+
+        // a read only open does not create or empty the log
+        Assert.assertTrue(new File(path + ".wal").delete());
+        recordsFile = new RecordsFile(path, "r", options);
+        Assert.assertArrayEquals(filledData(10, (byte)1), recordsFile.readRecord("a").getData());
+        recordsFile.close();
+        Assert.assertFalse(new File(path + ".wal").exists());
+    }
+
+    @Test
+    public void failedOpenClosesLog() throws Exception {
+        String path = new File(folder.getRoot(), "badformat.jdb").getPath();
+        new RecordsFile(path, 4).close();
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        raf.seek(12);
+        raf.writeInt(9 << 24 | 66);
+        raf.close();
+        Set<Thread> before = flusherThreads();
+        try {
+            new RecordsFile(path, "rw", new RecordsFileOptions().setWriteAheadLog(true)
+                    .setFsyncPolicy(FsyncPolicy.INTERVAL));
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported file format"));
+        }
+        Set<Thread> started = flusherThreads();
+        started.removeAll(before);
+        for (Thread t : started) {
+            t.join(5000);
+            Assert.assertFalse(t.isAlive());
+        }
+    }
+
+    private static Set<Thread> flusherThreads() {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("records-file-log-flusher")) {
+                threads.add(t);
+            }
+        }
+        return threads;
+    }
+
+    @Test
+    public void recoverFromLog() throws IOException {
+        String path = new File(folder.getRoot(), "crash.jdb").getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        // with a long interval, committed changes stay in the log and in memory only
+        RecordsFileOptions options = new RecordsFileOptions().setWriteAheadLog(true)
+                .setFsyncPolicy(FsyncPolicy.INTERVAL).setFsyncIntervalMillis(3600000);
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        for (int i = 0; i < 50; i++) {
+            RecordWriter rw = filledRecord("key" + i, 1 + i, (byte)i);
+            recordsFile.insertRecord(rw);
+            expected.put(rw.getKey(), ((DbByteArrayOutputStream)rw.getOutputStream()).toByteArray());
+        }
+        recordsFile.deleteRecord("key0");
+        expected.remove("key0");
+        // simulate a crash: the file is abandoned without being closed, and a torn record
+        // is left at the end of the log
+        java.io.RandomAccessFile wal = new java.io.RandomAccessFile(path + ".wal", "rw");
+        wal.seek(wal.length());
+        wal.writeInt(1000);
+        wal.writeInt(0);
+        wal.write(new byte[10]);
+        wal.close();
+
+        recordsFile = new RecordsFile(path, "rw");
+        assertContents(expected, recordsFile);
+        Assert.assertEquals(0, new File(path + ".wal").length());
+        recordsFile.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringUpdates() throws Exception {
+        String path = new File(folder.getRoot(), "concurrent.jdb").getPath();
+        final RecordsFile recordsFile = new RecordsFile(path, 16);
+        for (int i = 0; i < 100; i++) {
+            recordsFile.insertRecord(filledRecord("key" + i, 10, (byte)i));
+        }
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < 20000; n++) {
+                            int i = n % 100;
+                            byte[] data = recordsFile.readRecord("key" + i).getData();
+                            for (byte b : data) {
+                                Assert.assertEquals((byte)i, b);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        Random random = new Random(7);
+        for (int n = 0; n < 2000; n++) {
+            int i = random.nextInt(100);
+            recordsFile.updateRecord(filledRecord("key" + i, 1 + random.nextInt(200), (byte)i));
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        recordsFile.close();
+        Assert.assertEquals(Collections.emptyList(), failures);
+    }
+
+    @Test
+    public void zeroCopyReads() throws IOException {
+        zeroCopyReads(new RecordsFileOptions());
+        zeroCopyReads(new RecordsFileOptions().setMemoryMapped(true));
+    }
+
+    private void zeroCopyReads(RecordsFileOptions options) throws IOException {
+        File f = folder.newFile();
+        f.delete();
+        RecordsFile recordsFile = new RecordsFile(f.getPath(), 4, options);
+        recordsFile.insertRecord(filledRecord("a", 100, (byte)1));
+        recordsFile.insertRecord(filledRecord("b", 5000, (byte)2));
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(6000);
+        dst.put((byte)9);
+        Assert.assertEquals(5000, recordsFile.readRecordInto("b", dst));
+        Assert.assertEquals(5001, dst.position());
+        Assert.assertEquals((byte)2, dst.get(5000));
+
+        ByteBuffer view = recordsFile.readRecordView("a");
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(100, view.remaining());
+        Assert.assertEquals((byte)1, view.get(99));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(5000, recordsFile.transferRecordTo("b", Channels.newChannel(out)));
+        Assert.assertArrayEquals(recordsFile.readRecord("b").getData(), out.toByteArray());
+
+        // a non-blocking target would make the transfer spin while holding the read lock
+        java.nio.channels.Pipe pipe = java.nio.channels.Pipe.open();
+        pipe.sink().configureBlocking(false);
+        try {
+            recordsFile.transferRecordTo("b", pipe.sink());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        pipe.sink().close();
+        pipe.source().close();
+        recordsFile.close();
+    }
+
+    @Test
+    public void memoryMappedFileNotClosed() throws IOException {
+        File f = new File(folder.getRoot(), "mapped.jdb");
+        RecordsFileOptions options = new RecordsFileOptions().setMemoryMapped(true);
+        RecordsFile recordsFile = new RecordsFile(f.getPath(), 4, options);
+        recordsFile.insertRecord(filledRecord("a", 100, (byte)1));
+        recordsFile.insertRecord(filledRecord("b", 200, (byte)2));
+        long length = recordsFile.getFileLength();
+        // copies of the file while it is open are what a crash leaves: the file still has
+        // its zero filled tail
+        File crashed = new File(folder.getRoot(), "crashed.jdb");
+        File readOnly = new File(folder.getRoot(), "readonly.jdb");
+        java.nio.file.Files.copy(f.toPath(), crashed.toPath());
+        java.nio.file.Files.copy(f.toPath(), readOnly.toPath());
+        recordsFile.close();
+        Assert.assertEquals(length, f.length());
+        Assert.assertTrue(crashed.length() > length);
+
+        recordsFile = new RecordsFile(crashed.getPath(), "rw", options);
+        Assert.assertEquals(length, recordsFile.getFileLength());
+        Assert.assertEquals(2, recordsFile.getFragmentationStats().getNumRecords());
+        Assert.assertEquals(length, crashed.length());
+        recordsFile.insertRecord(filledRecord("c", 50, (byte)3));
+        Assert.assertEquals((byte)2, recordsFile.readRecord("b").getData()[199]);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(readOnly.getPath(), "r");
+        Assert.assertEquals(length, recordsFile.getFileLength());
+        Assert.assertEquals(2, recordsFile.getFragmentationStats().getNumRecords());
+        Assert.assertEquals((byte)1, recordsFile.readRecord("a").getData()[99]);
+        recordsFile.close();
+    }
+
+    @Test
+    public void trailerOnlyTrustedInMappedFiles() throws IOException {
+        File f = new File(folder.getRoot(), "tail.jdb");
+        RecordsFile recordsFile = new RecordsFile(f.getPath(), 4);
+        // a record which ends the file at 1 MiB with bytes that look like a mapped trailer
+        byte[] data = new byte[(int)((1 << 20) - recordsFile.getFileLength())];
+        ByteBuffer.wrap(data, data.length - 16, 16).putLong(0x4d53544f524c454eL).putLong(100);
+        RecordWriter rw = new RecordWriter("tail");
+        rw.getOutputStream().write(data);
+        recordsFile.insertRecord(rw);
+        Assert.assertEquals(1 << 20, recordsFile.getFileLength());
+        recordsFile.close();
+
+        for (boolean mapped : new boolean[] {false, true}) {
+            RecordsFileOptions options = new RecordsFileOptions().setMemoryMapped(mapped);
+            recordsFile = new RecordsFile(f.getPath(), "rw", options);
+            Assert.assertEquals(1 << 20, recordsFile.getFileLength());
+            Assert.assertArrayEquals(data, recordsFile.readRecord("tail").getData());
+            recordsFile.close();
+            Assert.assertEquals(1 << 20, f.length());
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            raf.seek(12);
+            // a closed file does not keep the mapped flag
+            Assert.assertEquals((2 << 24) | 64, raf.readInt());
+            raf.close();
+        }
+    }
+
+    @Test
+    public void writeBatch() throws IOException {
+        String path = new File(folder.getRoot(), "batch.jdb").getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        RecordsFile recordsFile = new RecordsFile(path, 2);
+        recordsFile.insertRecord(filledRecord("a", 10, (byte)1));
+        recordsFile.insertRecord(filledRecord("b", 10, (byte)2));
+
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        batch.add(filledRecord("a", 5, (byte)3));     // fits in place
+        batch.add(filledRecord("b", 50, (byte)4));    // has to move
+        for (int i = 0; i < 500; i++) {
+            batch.add(filledRecord("new" + i, 1 + i % 37, (byte)i));
+        }
+        recordsFile.writeBatch(batch);
+        for (RecordWriter rw : batch) {
+            expected.put(rw.getKey(), ((DbByteArrayOutputStream)rw.getOutputStream()).toByteArray());
+        }
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw");
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+    }
+
+    static RecordWriter filledRecord(String key, int length, byte value) throws IOException {
+        RecordWriter rw = new RecordWriter(key);
+        rw.getOutputStream().write(filledData(length, value));
+        return rw;
+    }
+
+    /**
+     * Reopens a file whose index spans several load chunks, with parallel decoding and with
+     * the index loaded in the background.
+     */
+    @Test
+    public void parallelAndLazyIndexLoad() throws IOException {
+        String path = new File(folder.getRoot(), "load.jdb").getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        RecordsFile recordsFile = new RecordsFile(path, 64);
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        for (int i = 0; i < 70000; i++) {
+            batch.add(filledRecord((i % 3 == 0 ? "\u00e9l\u00e8ve" : "key") + i, 1 + i % 7, (byte)i));
+        }
+        recordsFile.writeBatch(batch);
+        for (RecordWriter rw : batch) {
+            expected.put(rw.getKey(), ((DbByteArrayOutputStream)rw.getOutputStream()).toByteArray());
+        }
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw", new RecordsFileOptions().setIndexLoadThreads(4));
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw", new RecordsFileOptions().setLazyIndexLoad(true));
+        RecordWriter rw = filledRecord("late", 3, (byte)9);
+        recordsFile.insertRecord(rw);
+        Assert.assertTrue(recordsFile.isIndexLoaded());
+        expected.put("late", ((DbByteArrayOutputStream)rw.getOutputStream()).toByteArray());
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "r", new RecordsFileOptions().setLazyIndexLoad(true).setIndexMode(IndexMode.COMPACT));
+        Assert.assertArrayEquals(expected.get("key1"), recordsFile.readRecord("key1").getData());
+        recordsFile.close();
+    }
+
+    @Test
+    public void codecs() throws Exception {
+        String path = new File(folder.getRoot(), "codec.jdb").getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 8, new RecordsFileOptions().setCodec(RecordCodec.BINARY));
+        Object[] values = {null, true, (byte)-3, (short)1000, 'x', -1, 123456789, Long.MIN_VALUE, 1.5f, -2.25,
+                "", "caf\u00e9 \ud83d\ude00", new byte[] {1, 2, 3}};
+        RecordWriterPool pool = new RecordWriterPool(RecordCodec.BINARY, 16, 2, 1024);
+        RecordWriter rw = pool.acquire("values");
+        for (Object value : values) {
+            rw.writeObject(value);
+        }
+        recordsFile.insertRecord(rw);
+        pool.release(rw);
+
+        RecordWriter reused = pool.acquire("number");
+        Assert.assertSame(rw, reused);
+        Assert.assertEquals(0, reused.getDataLength());
+        reused.writeObject(42L);
+        recordsFile.insertRecord(reused);
+        Assert.assertEquals(2, recordsFile.readRecord("number").getData().length);
+
+        RecordReader rr = recordsFile.readRecord("values");
+        for (Object value : values) {
+            if (value instanceof byte[]) {
+                Assert.assertArrayEquals((byte[])value, (byte[])rr.readObject());
+            } else {
+                Assert.assertEquals(value, rr.readObject());
+            }
+        }
+        try {
+            new RecordWriter("date", RecordCodec.BINARY).writeObject(new Date());
+            Assert.fail();
+        } catch (NotSerializableException expected) {
+        }
+        recordsFile.close();
+
+        // java serialization is still the default, and can be mixed with the object stream
+        RecordWriter java = new RecordWriter("java");
+        java.writeObject("a");
+        java.getObjectOutputStream().writeObject("b");
+        java.getObjectOutputStream().flush();
+        RecordReader javaReader = new RecordReader("java", java.out.toByteArray());
+        Assert.assertEquals("a", javaReader.getObjectInputStream().readObject());
+        Assert.assertEquals("b", javaReader.readObject());
+    }
+
+    @Test
+    public void compressorRoundTrip() throws IOException {
+        Random random = new Random(3);
+        for (Compression method : new Compression[] {Compression.LZ4, Compression.DEFLATE}) {
+            for (int len = 0; len < 3000; len += 1 + len / 4) {
+                byte[] data = compressibleData(random, len);
+                byte[] packed = RecordCompressor.compress(method, data, 0, len);
+                if (packed != null) {
+                    Assert.assertTrue(packed.length < len);
+                    Assert.assertArrayEquals(data, RecordCompressor.decompress(packed, 0, packed.length));
+                }
+            }
+            byte[] zeros = new byte[100000];
+            byte[] packed = RecordCompressor.compress(method, zeros, 0, zeros.length);
+            Assert.assertArrayEquals(zeros, RecordCompressor.decompress(packed, 0, packed.length));
+            byte[] noise = new byte[1000];
+            random.nextBytes(noise);
+            Assert.assertNull(RecordCompressor.compress(method, noise, 0, noise.length));
+        }
+    }
+
+    @Test
+    public void compression() throws Exception {
+        for (IndexMode mode : IndexMode.values()) {
+            String path = new File(folder.getRoot(), mode + ".jdb").getPath();
+            RecordsFileOptions options = new RecordsFileOptions().setIndexMode(mode).setCompression(Compression.LZ4);
+            Map<String, byte[]> expected = new HashMap<String, byte[]>();
+            Random random = new Random(5);
+            RecordsFile recordsFile = new RecordsFile(path, 4, options);
+            for (int i = 0; i < 300; i++) {
+                String key = "key" + random.nextInt(60);
+                byte[] data = compressibleData(random, 1 + random.nextInt(2000));
+                RecordWriter rw = new RecordWriter(key);
+                rw.getOutputStream().write(data);
+                if (i % 5 == 0) {
+                    rw.setCompression(Compression.DEFLATE);
+                }
+                if (!expected.containsKey(key)) {
+                    recordsFile.insertRecord(rw);
+                } else if (random.nextInt(4) == 0) {
+                    recordsFile.deleteRecord(key);
+                    expected.remove(key);
+                    continue;
+                } else {
+                    recordsFile.updateRecord(rw);
+                }
+                expected.put(key, data);
+            }
+            RecordWriter small = filledRecord("small", 20, (byte)0);
+            recordsFile.insertRecord(small);
+            expected.put("small", filledData(20, (byte)0));
+            Assert.assertFalse(recordsFile.keyToRecordHeader("small").compressed);
+            RecordWriter big = filledRecord("big", 5000, (byte)1);
+            recordsFile.insertRecord(big);
+            expected.put("big", filledData(5000, (byte)1));
+            Assert.assertTrue(recordsFile.keyToRecordHeader("big").compressed);
+            Assert.assertTrue(recordsFile.keyToRecordHeader("big").dataCount < 100);
+
+            ByteBuffer into = ByteBuffer.allocate(6000);
+            Assert.assertEquals(5000, recordsFile.readRecordInto("big", into));
+            Assert.assertEquals(5000, recordsFile.readRecordView("big").remaining());
+            ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+            Assert.assertEquals(5000, recordsFile.transferRecordTo("big", Channels.newChannel(transferred)));
+            Assert.assertArrayEquals(expected.get("big"), transferred.toByteArray());
+
+            assertContents(expected, recordsFile);
+            recordsFile.compact(Long.MAX_VALUE);
+            assertContents(expected, recordsFile);
+            recordsFile.close();
+
+            recordsFile = new RecordsFile(path, "rw", options);
+            assertContents(expected, recordsFile);
+            Assert.assertTrue(recordsFile.keyToRecordHeader("big").compressed);
+            recordsFile.close();
+        }
+    }
+
+    // Random words from a small vocabulary, which compress a few times.
+    private static byte[] compressibleData(Random random, int length) {
+        String[] words = {"alpha ", "beta ", "gamma ", "delta ", "epsilon ", "zeta ", "eta ", "theta "};
+        byte[] data = new byte[length];
+        int n = 0;
+        while (n < length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            int k = Math.min(word.length, length - n);
+            System.arraycopy(word, 0, data, n, k);
+            n += k;
+        }
+        return data;
+    }
+
+    @Test
+    public void incompressibleRecordsCompressedOnce() throws IOException {
+        String path = new File(folder.getRoot(), "once.jdb").getPath();
+        final int[] calls = new int[1];
+        RecordsFile recordsFile = new RecordsFile(path, 4, new RecordsFileOptions().setCompression(Compression.LZ4)) {
+            protected RecordWriter compressRecord(RecordWriter rw) {
+                calls[0]++;
+                return super.compressRecord(rw);
+            }
+        };
+        Random random = new Random(9);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        RecordWriter rw = new RecordWriter("a");
+        rw.getOutputStream().write(data);
+        recordsFile.insertRecord(rw);
+        Assert.assertEquals(1, calls[0]);
+        recordsFile.updateRecord(rw);
+        Assert.assertEquals(2, calls[0]);
+        RecordWriter b = new RecordWriter("b");
+        b.getOutputStream().write(data);
+        recordsFile.writeBatch(Arrays.asList(rw, b));
+        Assert.assertEquals(4, calls[0]);
+        Assert.assertArrayEquals(data, recordsFile.readRecord("b").getData());
+        recordsFile.close();
+    }
+
+    @Test
+    public void randomOperationsWithCache() throws IOException {
+        for (CachePolicy policy : CachePolicy.values()) {
+            randomOperations(new RecordsFileOptions().setCacheSize(8 << 10).setCachePolicy(policy));
+            new File(folder.getRoot(), "random.jdb").delete();
+        }
+    }
+
+    @Test
+    public void recordCache() throws IOException {
+        for (CachePolicy policy : CachePolicy.values()) {
+            String path = new File(folder.getRoot(), policy + ".jdb").getPath();
+            RecordsFile recordsFile = new RecordsFile(path, 64,
+                    new RecordsFileOptions().setCacheSize(20000).setCachePolicy(policy));
+            for (int i = 0; i < 1000; i++) {
+                recordsFile.insertRecord(filledRecord("key" + i, 100, (byte)i));
+            }
+            byte[] data = recordsFile.readRecord("key1").getData();
+            data[0] = 42;
+            Assert.assertEquals(1, recordsFile.readRecord("key1").getData()[0]);
+            Assert.assertEquals(1, recordsFile.getCacheStats().getHits());
+            Assert.assertEquals(1, recordsFile.getCacheStats().getMisses());
+
+            recordsFile.updateRecord(filledRecord("key1", 10, (byte)7));
+            Assert.assertArrayEquals(filledData(10, (byte)7), recordsFile.readRecord("key1").getData());
+            recordsFile.updateRecord(filledRecord("key1", 500, (byte)8));
+            Assert.assertArrayEquals(filledData(500, (byte)8), recordsFile.readRecord("key1").getData());
+            recordsFile.deleteRecord("key1");
+            Assert.assertFalse(recordsFile.recordExists("key1"));
+
+            // a hot key, read between reads of every other key once
+            for (int i = 2; i < 1000; i++) {
+                recordsFile.readRecord("key0");
+                recordsFile.readRecord("key" + i);
+            }
+            CacheStats stats = recordsFile.getCacheStats();
+            Assert.assertTrue(stats.toString(), stats.getEvictions() > 0);
+            Assert.assertTrue(stats.toString(), stats.getSize() <= 20000);
+            Assert.assertTrue(stats.toString(), stats.getHits() >= 997);
+            recordsFile.close();
+        }
+    }
+
+    static byte[] filledData(int length, byte value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, value);
+        return data;
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        compaction(new RecordsFileOptions(), "heap.jdb");
+        compaction(new RecordsFileOptions().setIndexMode(IndexMode.COMPACT), "compact.jdb");
+        compaction(new RecordsFileOptions().setWriteAheadLog(true), "logged.jdb");
+    }
+
+    private void compaction(RecordsFileOptions options, String name) throws Exception {
+        String path = new File(folder.getRoot(), name).getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        RecordsFile recordsFile = new RecordsFile(path, 400, options);
+        churn(recordsFile, expected, new Random(7));
+        FragmentationStats before = recordsFile.getFragmentationStats();
+        Assert.assertTrue(before.toString(), before.getSlackBytes() > 0);
+        Assert.assertEquals(expected.size(), before.getNumRecords());
+
+        Assert.assertTrue(recordsFile.compact(Long.MAX_VALUE) > 0);
+        FragmentationStats after = recordsFile.getFragmentationStats();
+        Assert.assertEquals(after.toString(), 0, after.getSlackBytes());
+        Assert.assertEquals(before.getLiveBytes(), after.getLiveBytes());
+        assertContents(expected, recordsFile);
+
+        churn(recordsFile, expected, new Random(8));
+        Compactor compactor = new Compactor(recordsFile, 1 << 20);
+        compactor.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (recordsFile.getFragmentationStats().getSlackBytes() > 0 && System.currentTimeMillis() < deadline) {
+            assertContents(expected, recordsFile);
+            Thread.sleep(10);
+        }
+        compactor.stop();
+        Assert.assertNull(compactor.getError());
+        Assert.assertEquals(0, recordsFile.getFragmentationStats().getSlackBytes());
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw", options);
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+    }
+
+    @Test
+    public void deleteFirstAndGrowIndexWithoutMoving() throws IOException {
+        String path = new File(folder.getRoot(), "head.jdb").getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        RecordsFile recordsFile = new RecordsFile(path, 3);
+        recordsFile.insertRecord(filledRecord("first", 1000, (byte)1));
+        recordsFile.insertRecord(filledRecord("second", 10, (byte)2));
+        recordsFile.insertRecord(filledRecord("third", 10, (byte)3));
+        expected.put("second", recordsFile.readRecord("second").getData());
+        expected.put("third", recordsFile.readRecord("third").getData());
+        long second = recordsFile.keyToRecordHeader("second").dataPointer;
+        long length = recordsFile.getFileLength();
+
+        recordsFile.deleteRecord("first");
+        Assert.assertEquals(second, recordsFile.keyToRecordHeader("second").dataPointer);
+        // the 1000 bytes freed ahead of "second" hold 12 more index entries
+        for (int i = 0; i < 12; i++) {
+            RecordWriter rw = filledRecord("new" + i, 5, (byte)i);
+            recordsFile.insertRecord(rw);
+            expected.put(rw.getKey(), recordsFile.readRecord(rw.getKey()).getData());
+        }
+        Assert.assertEquals(second, recordsFile.keyToRecordHeader("second").dataPointer);
+        Assert.assertEquals(length + 12 * 5, recordsFile.getFileLength());
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw");
+        assertContents(expected, recordsFile);
+        recordsFile.insertRecord(filledRecord("grow", 5, (byte)9));
+        expected.put("grow", recordsFile.readRecord("grow").getData());
+        recordsFile.deleteRecord("third");
+        expected.remove("third");
+        recordsFile.compact(Long.MAX_VALUE);
+        Assert.assertEquals(0, recordsFile.getFragmentationStats().getSlackBytes());
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw");
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+    }
+
+    private static void churn(RecordsFile recordsFile, Map<String, byte[]> expected, Random random) throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + random.nextInt(300);
+            byte[] data = new byte[1 + random.nextInt(500)];
+            random.nextBytes(data);
+            RecordWriter rw = new RecordWriter(key);
+            rw.getOutputStream().write(data);
+            if (!expected.containsKey(key)) {
+                recordsFile.insertRecord(rw);
+                expected.put(key, data);
+            } else if (random.nextInt(2) == 0) {
+                recordsFile.deleteRecord(key);
+                expected.remove(key);
+            } else {
+                recordsFile.updateRecord(rw);
+                expected.put(key, data);
+            }
+        }
+    }
+
+    @Test
+    public void shardedRecordsFile() throws Exception {
+        String path = new File(folder.getRoot(), "sharded.jdb").getPath();
+        RecordsFileOptions options = new RecordsFileOptions();
+        final ShardedRecordsFile sharded = new ShardedRecordsFile(path, 4, 16, options);
+        Thread[] writers = new Thread[4];
+        final IOException[] errors = new IOException[writers.length];
+        for (int t = 0; t < writers.length; t++) {
+            final int n = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 250; i++) {
+                            sharded.insertRecord(filledRecord("t" + n + "-" + i, 1 + i % 50, (byte)i));
+                        }
+                    } catch (IOException e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (int t = 0; t < writers.length; t++) {
+            writers[t].join();
+            Assert.assertNull(errors[t]);
+        }
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(filledRecord("t0-" + i, 60, (byte)-1));
+            batch.add(filledRecord("batch" + i, 5, (byte)i));
+        }
+        sharded.writeBatch(batch);
+        sharded.deleteRecord("t1-0");
+        Assert.assertEquals(1099, sharded.getNumRecords());
+        for (int s = 0; s < sharded.getShardCount(); s++) {
+            Assert.assertTrue(sharded.enumerateKeys(s).hasMoreElements());
+        }
+        sharded.close();
+
+        ShardedRecordsFile reopened = new ShardedRecordsFile(path, "r", options);
+        Assert.assertEquals(4, reopened.getShardCount());
+        Set<String> keys = new HashSet<String>();
+        for (Enumeration e = reopened.enumerateKeys(); e.hasMoreElements();) {
+            String key = (String)e.nextElement();
+            Assert.assertSame(reopened.getShard(key), reopened.getShard(key));
+            Assert.assertTrue(reopened.getShard(key).recordExists(key));
+            keys.add(key);
+        }
+        Assert.assertEquals(1099, keys.size());
+        Assert.assertFalse(reopened.recordExists("t1-0"));
+        Assert.assertArrayEquals(filledData(60, (byte)-1), reopened.readRecord("t0-7").getData());
+        Assert.assertArrayEquals(filledData(8, (byte)7), reopened.readRecord("t3-7").getData());
+        Assert.assertArrayEquals(filledData(5, (byte)9), reopened.readRecord("batch9").getData());
+        reopened.close();
+    }
+
+    @Test
+    public void shardPathsInManifest() throws Exception {
+        File dir = folder.newFolder("shards");
+        File other = folder.newFolder("other");
+        String path = new File(dir, "sharded.jdb").getPath();
+        String[] shardPaths = {path + ".a", new File(other, "b").getPath()};
+        ShardedRecordsFile sharded = new ShardedRecordsFile(path, shardPaths, 4, new RecordsFileOptions());
+        for (int i = 0; i < 20; i++) {
+            sharded.insertRecord(filledRecord("k" + i, 10, (byte)i));
+        }
+        sharded.close();
+        // the shard next to the manifest is found after the directory is moved
+        File moved = new File(folder.getRoot(), "moved");
+        Assert.assertTrue(dir.renameTo(moved));
+        sharded = new ShardedRecordsFile(new File(moved, "sharded.jdb").getPath(), "r", new RecordsFileOptions());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertArrayEquals(filledData(10, (byte)i), sharded.readRecord("k" + i).getData());
+        }
+        sharded.close();
+
+        // a failed create leaves neither shards nor manifest behind, and can be retried
+        File taken = new File(other, "taken");
+        Assert.assertTrue(taken.createNewFile());
+        String retried = new File(other, "retried.jdb").getPath();
+        try {
+            new ShardedRecordsFile(retried, new String[] {retried + ".0", taken.getPath()}, 4, new RecordsFileOptions());
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(new File(retried + ".0").exists());
+        Assert.assertFalse(new File(retried).exists());
+        Assert.assertTrue(taken.exists());
+        new ShardedRecordsFile(retried, new String[] {retried + ".0", retried + ".1"}, 4, new RecordsFileOptions()).close();
+    }
+
+    @Test
+    public void sortedKeyScans() throws Exception {
+        sortedKeyScans(new RecordsFileOptions().setSortedKeys(true), "sorted-heap.jdb");
+        sortedKeyScans(new RecordsFileOptions().setSortedKeys(true).setIndexMode(IndexMode.COMPACT), "sorted-compact.jdb");
+        sortedKeyScans(new RecordsFileOptions(), "unsorted.jdb");
+    }
+
+    private void sortedKeyScans(RecordsFileOptions options, String name) throws IOException {
+        String path = new File(folder.getRoot(), name).getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        for (int user = 9; user >= 0; user--) {
+            for (int order = 0; order < 30; order++) {
+                recordsFile.insertRecord(filledRecord("user/" + user + "/order/" + (100 + order), 1 + order, (byte)user));
+            }
+        }
+        recordsFile.insertRecord(filledRecord("user0", 3, (byte)0));
+        recordsFile.deleteRecord("user/3/order/105");
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw", options);
+        List<String> keys = new ArrayList<String>();
+        for (Iterator<String> it = recordsFile.prefixKeys("user/3/"); it.hasNext();) {
+            keys.add(it.next());
+        }
+        Assert.assertEquals(29, keys.size());
+        Assert.assertEquals("user/3/order/100", keys.get(0));
+        Assert.assertEquals("user/3/order/106", keys.get(5));
+        Assert.assertEquals("user/3/order/129", keys.get(28));
+        int n = 0;
+        String last = "";
+        for (Iterator<RecordReader> it = recordsFile.prefix("user/"); it.hasNext();) {
+            RecordReader rr = it.next();
+            Assert.assertTrue(rr.getKey().compareTo(last) > 0);
+            int user = rr.getKey().charAt(5) - '0';
+            int order = Integer.parseInt(rr.getKey().substring(rr.getKey().lastIndexOf('/') + 1)) - 100;
+            Assert.assertArrayEquals(filledData(1 + order, (byte)user), rr.getData());
+            last = rr.getKey();
+            n++;
+        }
+        Assert.assertEquals(299, n);
+        Iterator<RecordReader> range = recordsFile.scan("user/2/order/128", "user/4/order/101");
+        Assert.assertEquals("user/2/order/128", range.next().getKey());
+        n = 1;
+        while (range.hasNext()) {
+            last = range.next().getKey();
+            n++;
+        }
+        Assert.assertEquals("user/4/order/100", last);
+        Assert.assertEquals(2 + 29 + 1, n);
+        Assert.assertFalse(recordsFile.scan("b", "a").hasNext());
+        Assert.assertEquals("user0", recordsFile.scanKeys("user0", null).next());
+        if (options.isSortedKeys()) {
+            String previous = "";
+            for (Enumeration e = recordsFile.enumerateKeys(); e.hasMoreElements();) {
+                String key = (String)e.nextElement();
+                Assert.assertTrue(key.compareTo(previous) > 0);
+                previous = key;
+            }
+        }
+        recordsFile.close();
+    }
+
+    @Test
+    public void asyncRecordsFile() throws Exception {
+        String path = new File(folder.getRoot(), "async.jdb").getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 4, new RecordsFileOptions().setCompression(Compression.LZ4));
+        AsyncRecordsFile async = new AsyncRecordsFile(recordsFile, 2, 1000);
+        List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < 300; i++) {
+            writes.add(async.insertRecordAsync(filledRecord("key" + i, 1 + i * 3, (byte)i)));
+        }
+        writes.add(async.updateRecordAsync(filledRecord("key7", 2, (byte)-7)));
+        writes.add(async.deleteRecordAsync("key8"));
+        for (CompletableFuture<Void> f : writes) {
+            f.get();
+        }
+        List<CompletableFuture<RecordReader>> reads = new ArrayList<CompletableFuture<RecordReader>>();
+        for (int i = 0; i < 900; i++) {
+            reads.add(async.readRecordAsync("key" + (i % 300)));
+        }
+        for (int i = 0; i < 900; i++) {
+            int k = i % 300;
+            if (k == 8) {
+                try {
+                    reads.get(i).get();
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IOException);
+                }
+            } else {
+                byte[] expected = k == 7 ? filledData(2, (byte)-7) : filledData(1 + k * 3, (byte)k);
+                Assert.assertArrayEquals(expected, reads.get(i).get().getData());
+            }
+        }
+        async.close();
+        Assert.assertEquals(0, async.getPendingCount());
+
+        // with the write thread stuck on the lock, operations beyond the limit are rejected
+        async = new AsyncRecordsFile(recordsFile, 1, 2);
+        recordsFile.lock.readLock().lock();
+        CompletableFuture<Void> first = async.deleteRecordAsync("key1");
+        CompletableFuture<Void> second = async.deleteRecordAsync("key2");
+        CompletableFuture<Void> third = async.deleteRecordAsync("key3");
+        try {
+            third.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        recordsFile.lock.readLock().unlock();
+        first.get();
+        second.get();
+        async.close();
+        Assert.assertEquals(297, recordsFile.getNumRecords());
+        Assert.assertTrue(recordsFile.recordExists("key3"));
+        recordsFile.close();
+    }
+
+    @Test
+    public void streamedRecords() throws Exception {
+        String path = new File(folder.getRoot(), "stream.jdb").getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 4, new RecordsFileOptions().setCacheSize(1 << 20));
+        recordsFile.insertRecord(filledRecord("before", 10, (byte)1));
+        int length = 3 << 20;
+        OutputStream out = recordsFile.insertRecordStream("blob", length + 1000);
+        Random random = new Random(7);
+        byte[] expected = new byte[length];
+        random.nextBytes(expected);
+        out.write(expected, 0, length / 2);
+        out.flush();
+        Assert.assertEquals(length / 2, recordsFile.readRecord("blob").getData().length);
+        // the reserved capacity survives compaction and index growth
+        recordsFile.compact(Long.MAX_VALUE);
+        for (int i = 0; i < 20; i++) {
+            recordsFile.insertRecord(filledRecord("after" + i, 10, (byte)i));
+        }
+        for (int i = length / 2; i < length; i += 1000) {
+            out.write(expected, i, Math.min(1000, length - i));
+        }
+        out.close();
+        long fileLength = recordsFile.getFileLength();
+        try {
+            OutputStream tooLong = recordsFile.insertRecordStream("small", 4);
+            tooLong.write(new byte[5]);
+            tooLong.close();
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        // the failed write deleted the record and freed its space
+        Assert.assertFalse(recordsFile.recordExists("small"));
+        Assert.assertEquals(fileLength, recordsFile.getFileLength());
+        recordsFile.insertRecord(filledRecord("small", 4, (byte)1));
+        recordsFile.deleteRecord("small");
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "r");
+        Assert.assertArrayEquals(expected, recordsFile.readRecord("blob").getData());
+        InputStream in = recordsFile.readRecordStream("blob");
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            copy.write(buf, 0, n);
+        }
+        in.close();
+        Assert.assertArrayEquals(expected, copy.toByteArray());
+        ReadableByteChannel channel = recordsFile.readRecordChannel("blob");
+        ByteBuffer dst = ByteBuffer.allocate(length);
+        while (dst.hasRemaining() && channel.read(dst) > 0) {
+        }
+        Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        Assert.assertArrayEquals(expected, dst.array());
+        Assert.assertArrayEquals(filledData(10, (byte)1), recordsFile.readRecord("before").getData());
+        Assert.assertArrayEquals(filledData(10, (byte)19), recordsFile.readRecord("after19").getData());
+        recordsFile.close();
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        File file = new File(folder.getRoot(), "metrics.jdb");
+        final List<String> events = new ArrayList<String>();
+        RecordsFileOptions options = new RecordsFileOptions().setJmx(true).setMetricsListener(new RecordsFileListener() {
+            public void operationCompleted(RecordOperation operation, String key, long nanos, boolean failed) {
+                events.add(operation + " " + key + (failed ? " failed" : ""));
+            }
+        });
+        RecordsFile recordsFile = new RecordsFile(file.getPath(), 2, options);
+        for (int i = 0; i < 5; i++) {
+            recordsFile.insertRecord(filledRecord("key" + i, 100, (byte)i));
+        }
+        recordsFile.readRecord("key1");
+        recordsFile.updateRecord(filledRecord("key2", 500, (byte)2));
+        recordsFile.deleteRecord("key3");
+        try {
+            recordsFile.readRecord("missing");
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        // coalesced reads, as made by AsyncRecordsFile, and batches are counted per key
+        recordsFile.readRecords(Arrays.asList("key0", "key3"));
+        recordsFile.writeBatch(Arrays.asList(filledRecord("key4", 100, (byte)4), filledRecord("key5", 100, (byte)5)));
+        Assert.assertEquals(Arrays.asList("INSERT key0", "INSERT key1", "INSERT key2", "INSERT key3", "INSERT key4",
+                "READ key1", "UPDATE key2", "DELETE key3", "READ missing failed", "READ key0", "READ key3 failed",
+                "UPDATE key4", "INSERT key5"), events);
+
+        RecordsFileMetrics metrics = recordsFile.getMetrics();
+        Assert.assertEquals(6, metrics.getInsertLatency().getCount());
+        Assert.assertEquals(4, metrics.getReadLatency().getCount());
+        Assert.assertEquals(2, metrics.getUpdateLatency().getCount());
+        Assert.assertEquals(1, metrics.getDeleteLatency().getCount());
+        Assert.assertTrue(metrics.getInsertLatency().getP99Nanos() <= 2 * metrics.getInsertLatency().getMaxNanos());
+        Assert.assertEquals(2, metrics.getFailures());
+        Assert.assertEquals(6, metrics.getAllocations());
+        Assert.assertTrue(metrics.getIndexRelocations() > 0);
+        Assert.assertTrue(metrics.getBytesWritten() >= 1000);
+        Assert.assertTrue(metrics.getBytesRead() >= 100);
+        Assert.assertEquals(new File(file.getPath()).length(), metrics.getFileLength());
+        Assert.assertEquals(900, metrics.getLiveBytes());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("io.github.volyx:type=RecordsFile,path=" + ObjectName.quote(file.getAbsolutePath()));
+        Assert.assertEquals(6L, ((CompositeData)server.getAttribute(name, "InsertLatency")).get("count"));
+        Assert.assertEquals(900L, server.getAttribute(name, "LiveBytes"));
+        recordsFile.close();
+        Assert.assertFalse(server.isRegistered(name));
+        recordsFile = new RecordsFile(file.getPath(), "r");
+        Assert.assertNull(recordsFile.getMetrics());
+        recordsFile.close();
+    }
+
+    @Test
+    public void keyLengths() throws Exception {
+        File shortKeys = new File(folder.getRoot(), "short-keys.jdb");
+        RecordsFile recordsFile = new RecordsFile(shortKeys.getPath(), 100, new RecordsFileOptions().setMaxKeyLength(8));
+        Assert.assertEquals(16 + 100 * (2 + 8 + 16), shortKeys.length());
+        for (int i = 0; i < 300; i++) {
+            recordsFile.insertRecord(filledRecord("k" + i, 10, (byte)i));
+        }
+        try {
+            recordsFile.insertRecord(filledRecord("123456789", 10, (byte)0));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        recordsFile.close();
+        recordsFile = new RecordsFile(shortKeys.getPath(), "r");
+        Assert.assertEquals(8, recordsFile.getMaxKeyLength());
+        Assert.assertEquals(300, recordsFile.getNumRecords());
+        Assert.assertArrayEquals(filledData(10, (byte)299), recordsFile.readRecord("k299").getData());
+        recordsFile.close();
+
+        String longKey = new String(filledData(500, (byte)'x'), "US-ASCII");
+        File longKeys = new File(folder.getRoot(), "long-keys.jdb");
+        recordsFile = new RecordsFile(longKeys.getPath(), 4, new RecordsFileOptions().setMaxKeyLength(1000));
+        recordsFile.insertRecord(filledRecord(longKey, 10, (byte)1));
+        recordsFile.insertRecord(filledRecord("short", 10, (byte)2));
+        recordsFile.deleteRecord(longKey);
+        recordsFile.insertRecord(filledRecord(longKey + "y", 10, (byte)3));
+        recordsFile.close();
+        recordsFile = new RecordsFile(longKeys.getPath(), "r", new RecordsFileOptions().setIndexMode(IndexMode.COMPACT));
+        Assert.assertArrayEquals(filledData(10, (byte)3), recordsFile.readRecord(longKey + "y").getData());
+        Assert.assertArrayEquals(filledData(10, (byte)2), recordsFile.readRecord("short").getData());
+        recordsFile.close();
+
+        // files written before the format header have zeros in its place
+        File legacy = new File(folder.getRoot(), "legacy.jdb");
+        recordsFile = new RecordsFile(legacy.getPath(), 4);
+        recordsFile.insertRecord(filledRecord("key", 10, (byte)4));
+        recordsFile.close();
+        RandomAccessFile raf = new RandomAccessFile(legacy, "rw");
+        raf.seek(12);
+        Assert.assertEquals((2 << 24) | 64, raf.readInt());
+        raf.seek(12);
+        raf.writeInt(0);
+        raf.close();
+        recordsFile = new RecordsFile(legacy.getPath(), "r");
+        Assert.assertEquals(62, recordsFile.getMaxKeyLength());
+        Assert.assertArrayEquals(filledData(10, (byte)4), recordsFile.readRecord("key").getData());
+        recordsFile.close();
+
+        raf = new RandomAccessFile(legacy, "rw");
+        raf.seek(12);
+        raf.writeInt((9 << 24) | 64);
+        raf.close();
+        try {
+            new RecordsFile(legacy.getPath(), "r");
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void snapshots() throws Exception {
+        snapshots(new RecordsFileOptions(), "snapshot.jdb");
+        snapshots(new RecordsFileOptions().setWriteAheadLog(true).setIndexMode(IndexMode.COMPACT)
+                .setCompression(Compression.DEFLATE).setCompressionThreshold(16), "snapshot-logged.jdb");
+    }
+
+    private void snapshots(RecordsFileOptions options, String name) throws IOException {
+        String path = new File(folder.getRoot(), name).getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        Random random = new Random(11);
+        churn(recordsFile, expected, random);
+        Map<String, byte[]> frozen = new HashMap<String, byte[]>(expected);
+        RecordsSnapshot snapshot = recordsFile.openSnapshot();
+        RecordsSnapshot empty = null;
+        for (int round = 0; round < 3; round++) {
+            churn(recordsFile, expected, random);
+            recordsFile.compact(Long.MAX_VALUE);
+            for (int i = 0; i < 50; i++) {
+                recordsFile.insertRecord(filledRecord("round" + round + "-" + i, 1 + i, (byte)i));
+            }
+            if (round == 1) {
+                empty = recordsFile.openSnapshot();
+                for (Enumeration e = recordsFile.enumerateKeys(); e.hasMoreElements();) {
+                    recordsFile.deleteRecord((String)e.nextElement());
+                }
+                expected.clear();
+            }
+        }
+        Assert.assertEquals(frozen.size(), snapshot.getNumRecords());
+        int n = 0;
+        for (Enumeration e = snapshot.enumerateKeys(); e.hasMoreElements(); n++) {
+            String key = (String)e.nextElement();
+            Assert.assertArrayEquals(frozen.get(key), snapshot.readRecord(key).getData());
+        }
+        Assert.assertEquals(frozen.size(), n);
+        Assert.assertFalse(snapshot.recordExists("round0-0"));
+        Assert.assertTrue(empty.recordExists("round0-0"));
+        Assert.assertArrayEquals(filledData(7, (byte)6), empty.readRecord("round1-6").getData());
+        snapshot.close();
+        try {
+            snapshot.readRecord(frozen.keySet().iterator().next());
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        recordsFile.close();
+        try {
+            empty.readRecord("round0-0");
+            Assert.fail();
+        } catch (IOException e) {
+            // closed with the file
+        }
+    }
+
+    @Test
+    public void keyFilter() throws Exception {
+        CuckooFilter filter = new CuckooFilter(1000);
+        int added = 0;
+        while (filter.add("key" + added)) {
+            added++;
+        }
+        Assert.assertTrue(added > 1000);
+        for (int i = 0; i < added; i++) {
+            Assert.assertTrue(filter.mightContain("key" + i));
+        }
+        for (int i = 0; i < added; i += 2) {
+            filter.remove("key" + i);
+        }
+        for (int i = 1; i < added; i += 2) {
+            Assert.assertTrue(filter.mightContain("key" + i));
+        }
+        Assert.assertEquals(added / 2, filter.size());
+
+        String path = new File(folder.getRoot(), "filter.jdb").getPath();
+        File filterFile = new File(path + ".filter");
+        RecordsFileOptions options = new RecordsFileOptions().setKeyFilter(true).setMetrics(true);
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        for (int i = 0; i < 3000; i++) {
+            recordsFile.insertRecord(filledRecord("key" + i, 8, (byte)i));
+        }
+        for (int i = 0; i < 3000; i += 3) {
+            recordsFile.deleteRecord("key" + i);
+        }
+        recordsFile.close();
+        Assert.assertTrue(filterFile.exists());
+
+        options.setLazyIndexLoad(true).setIndexLoadThreads(2);
+        recordsFile = new RecordsFile(path, "rw", options);
+        Assert.assertFalse(filterFile.exists());
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals(i % 3 != 0, recordsFile.recordExists("key" + i));
+            Assert.assertFalse(recordsFile.recordExists("missing" + i));
+        }
+        RecordsFileMetrics metrics = recordsFile.getMetrics();
+        Assert.assertEquals(4000, metrics.getKeyFilterNegatives() + metrics.getKeyFilterFalsePositives());
+        Assert.assertTrue(metrics.getKeyFilterFalsePositiveRate() < 0.01);
+        // a batch which fills the filter half way adds each key once, so that deleting the
+        // keys removes them from the filter again
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        for (int i = 0; i < 20000; i++) {
+            batch.add(filledRecord("batch" + i, 1, (byte)i));
+        }
+        recordsFile.writeBatch(batch);
+        for (int i = 0; i < 20000; i++) {
+            recordsFile.deleteRecord("batch" + i);
+        }
+        long falsePositives = metrics.getKeyFilterFalsePositives();
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertFalse(recordsFile.recordExists("batch" + i));
+        }
+        Assert.assertTrue(metrics.getKeyFilterFalsePositives() - falsePositives < 50);
+        recordsFile.insertRecord(filledRecord("key0", 8, (byte)0));
+        recordsFile.deleteRecord("key1");
+        recordsFile.close();
+
+        // a file changed without the filter does not use the saved one
+        recordsFile = new RecordsFile(path, "r", options);
+        Assert.assertTrue(recordsFile.recordExists("key0"));
+        recordsFile.close();
+        Assert.assertTrue(filterFile.exists());
+        recordsFile = new RecordsFile(path, "rw", new RecordsFileOptions());
+        recordsFile.deleteRecord("key0");
+        recordsFile.close();
+        Assert.assertFalse(filterFile.exists());
+        recordsFile = new RecordsFile(path, "rw", options);
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals(i % 3 != 0 && i != 1, recordsFile.recordExists("key" + i));
+        }
+        try {
+            recordsFile.readRecord("key1");
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        recordsFile.close();
+    }
+
+    @Test
+    public void checksums() throws Exception {
+        randomOperations(new RecordsFileOptions().setChecksums(true).setIndexMode(IndexMode.COMPACT));
+
+        String path = new File(folder.getRoot(), "checksums.jdb").getPath();
+        RecordsFileOptions options = new RecordsFileOptions().setChecksums(true).setMetrics(true)
+                .setCompression(Compression.LZ4).setCompressionThreshold(16);
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        Random random = new Random(5);
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[1 + random.nextInt(200)];
+            random.nextBytes(data);
+            if (i % 4 == 0) {
+                Arrays.fill(data, (byte)i);
+            }
+            RecordWriter rw = new RecordWriter("key" + i);
+            rw.getOutputStream().write(data);
+            if (i % 2 == 0) {
+                recordsFile.insertRecord(rw);
+            } else {
+                batch.add(rw);
+            }
+            expected.put("key" + i, data);
+        }
+        recordsFile.writeBatch(batch);
+        recordsFile.updateRecord(filledRecord("key3", 2, (byte)3));
+        expected.put("key3", filledData(2, (byte)3));
+        byte[] blob = new byte[(1 << 20) + 12345];
+        random.nextBytes(blob);
+        OutputStream out = recordsFile.insertRecordStream("blob", blob.length);
+        out.write(blob);
+        out.close();
+        expected.put("blob", blob);
+        recordsFile.deleteRecord("key0");
+        expected.remove("key0");
+        recordsFile.compact(Long.MAX_VALUE);
+        assertContents(expected, recordsFile);
+        long target = recordsFile.memIndex.get("key7").dataPointer;
+        recordsFile.close();
+
+        // damage one record on disk
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        raf.seek(target + 1);
+        int b = raf.read();
+        raf.seek(target + 1);
+        raf.write(b ^ 0x10);
+        raf.close();
+
+        recordsFile = new RecordsFile(path, "rw", options);
+        Assert.assertTrue(recordsFile.hasChecksums());
+        try {
+            recordsFile.readRecord("key7");
+            Assert.fail();
+        } catch (CorruptRecordException e) {
+            // expected
+        }
+        try {
+            recordsFile.readRecordInto("key7", ByteBuffer.allocate(300));
+            Assert.fail();
+        } catch (CorruptRecordException e) {
+            // expected
+        }
+        try {
+            InputStream in = recordsFile.readRecordStream("key7");
+            while (in.read() >= 0) {
+                // drain
+            }
+            Assert.fail();
+        } catch (CorruptRecordException e) {
+            // expected
+        }
+        Assert.assertEquals(3, recordsFile.getMetrics().getChecksumFailures());
+        Assert.assertArrayEquals(blob, recordsFile.readRecord("blob").getData());
+
+        Scrubber scrubber = new Scrubber(recordsFile, 3);
+        ScrubReport report = scrubber.scrub(null);
+        Assert.assertEquals(Collections.singletonList("key7"), report.getCorruptKeys());
+        Assert.assertTrue(report.getErrors().isEmpty());
+        Assert.assertEquals(expected.size(), report.getRecordsChecked());
+        File quarantine = new File(folder.getRoot(), "checksums.quarantine");
+        report = scrubber.scrub(quarantine);
+        Assert.assertEquals(Collections.singletonList("key7"), report.getQuarantinedKeys());
+        Assert.assertFalse(recordsFile.recordExists("key7"));
+        expected.remove("key7");
+        DataInputStream in = new DataInputStream(new FileInputStream(quarantine));
+        Assert.assertEquals("key7", in.readUTF());
+        in.close();
+        report = scrubber.scrub(quarantine);
+        Assert.assertTrue(report.toString(), report.isClean());
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        // files without checksums are scrubbed for their layout only
+        path = new File(folder.getRoot(), "plain.jdb").getPath();
+        recordsFile = new RecordsFile(path, 4);
+        for (int i = 0; i < 50; i++) {
+            recordsFile.insertRecord(filledRecord("key" + i, 10 + i, (byte)i));
+        }
+        report = new Scrubber(recordsFile, 1).scrub(null);
+        Assert.assertTrue(report.isClean());
+        Assert.assertEquals(50, report.getRecordsChecked());
+        Assert.assertFalse(recordsFile.hasChecksums());
+        recordsFile.close();
+    }
+
+    @Test
+    public void padding() throws Exception {
+        String path = new File(folder.getRoot(), "padding.jdb").getPath();
+        RecordsFile recordsFile = new RecordsFile(path, 16, new RecordsFileOptions().setPadding(50).setMetrics(true));
+        for (int i = 0; i < 4; i++) {
+            recordsFile.insertRecord(filledRecord("key" + i, 100, (byte)i));
+            Assert.assertEquals(150, recordsFile.memIndex.get("key" + i).dataCapacity);
+        }
+        RecordsFileMetrics metrics = recordsFile.getMetrics();
+        long pointer = recordsFile.memIndex.get("key1").dataPointer;
+        recordsFile.updateRecord(filledRecord("key0", 140, (byte)10));
+        Assert.assertEquals(0, metrics.getInPlaceGrowths());
+        // outgrows its capacity: it moves, with its padding, rather than take the padding of key1
+        recordsFile.updateRecord(filledRecord("key0", 170, (byte)10));
+        Assert.assertEquals(0, metrics.getInPlaceGrowths());
+        Assert.assertEquals(5, metrics.getAllocations());
+        Assert.assertEquals(255, recordsFile.memIndex.get("key0").dataCapacity);
+        Assert.assertEquals(pointer, recordsFile.memIndex.get("key1").dataPointer);
+        Assert.assertEquals(150, recordsFile.memIndex.get("key1").dataCapacity);
+        Assert.assertArrayEquals(filledData(100, (byte)1), recordsFile.readRecord("key1").getData());
+        // the last record grows with the file
+        long fileLength = recordsFile.getFileLength();
+        recordsFile.updateRecord(filledRecord("key0", 400, (byte)13));
+        Assert.assertEquals(1, metrics.getInPlaceGrowths());
+        Assert.assertEquals(600, recordsFile.memIndex.get("key0").dataCapacity);
+        Assert.assertEquals(fileLength + 345, recordsFile.getFileLength());
+        recordsFile.updateRecord(filledRecord("key1", 1000, (byte)11));
+        Assert.assertEquals(6, metrics.getAllocations());
+        Assert.assertEquals(1500, recordsFile.memIndex.get("key1").dataCapacity);
+        List<RecordWriter> batch = new ArrayList<RecordWriter>();
+        batch.add(filledRecord("batch0", 10, (byte)20));
+        batch.add(filledRecord("batch1", 20, (byte)21));
+        recordsFile.writeBatch(batch);
+        Assert.assertEquals(15, recordsFile.memIndex.get("batch0").dataCapacity);
+        Assert.assertEquals(30, recordsFile.memIndex.get("batch1").dataCapacity);
+        recordsFile.compact(Long.MAX_VALUE);
+        Assert.assertEquals(1500, recordsFile.memIndex.get("key1").dataCapacity);
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        expected.put("key0", filledData(400, (byte)13));
+        expected.put("key1", filledData(1000, (byte)11));
+        expected.put("key2", filledData(100, (byte)2));
+        expected.put("key3", filledData(100, (byte)3));
+        expected.put("batch0", filledData(10, (byte)20));
+        expected.put("batch1", filledData(20, (byte)21));
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        // adaptive padding leaves room for the same growth again
+        path = new File(folder.getRoot(), "adaptive.jdb").getPath();
+        recordsFile = new RecordsFile(path, 16, new RecordsFileOptions().setAdaptivePadding(true));
+        recordsFile.insertRecord(filledRecord("a", 100, (byte)1));
+        recordsFile.insertRecord(filledRecord("b", 100, (byte)2));
+        recordsFile.updateRecord(filledRecord("a", 130, (byte)1));
+        Assert.assertEquals(160, recordsFile.memIndex.get("a").dataCapacity);
+        // which small inserts do not take
+        recordsFile.insertRecord(filledRecord("c", 10, (byte)3));
+        Assert.assertEquals(160, recordsFile.memIndex.get("a").dataCapacity);
+        recordsFile.close();
+        // records which never grew keep no room to grow, and the others keep it when reopened
+        recordsFile = new RecordsFile(path, "rw", new RecordsFileOptions().setAdaptivePadding(true));
+        Assert.assertTrue(recordsFile.memIndex.get("a").grown);
+        Assert.assertFalse(recordsFile.memIndex.get("b").grown);
+        recordsFile.updateRecord(filledRecord("b", 40, (byte)2));
+        long b = recordsFile.memIndex.get("b").dataPointer;
+        recordsFile.insertRecord(filledRecord("d", 50, (byte)4));
+        Assert.assertEquals(b + 40, recordsFile.memIndex.get("d").dataPointer);
+        recordsFile.insertRecord(filledRecord("e", 10, (byte)5));
+        Assert.assertEquals(160, recordsFile.memIndex.get("a").dataCapacity);
+        recordsFile.close();
+    }
+
+    @Test
+    public void paddingNotTakenByInserts() throws Exception {
+        for (IndexMode mode : IndexMode.values()) {
+            String path = new File(folder.getRoot(), mode + ".jdb").getPath();
+            RecordsFile recordsFile = new RecordsFile(path, 16, new RecordsFileOptions().setPadding(50)
+                    .setIndexMode(mode).setMetrics(true));
+            recordsFile.insertRecord(filledRecord("a", 100, (byte)1));
+            recordsFile.insertRecord(filledRecord("b", 100, (byte)2));
+            long end = recordsFile.getFileLength();
+            for (int i = 0; i < 10; i++) {
+                recordsFile.insertRecord(filledRecord("small" + i, 10, (byte)i));
+                Assert.assertTrue(recordsFile.memIndex.get("small" + i).dataPointer >= end);
+            }
+            Assert.assertEquals(150, recordsFile.memIndex.get("a").dataCapacity);
+            Assert.assertEquals(150, recordsFile.memIndex.get("b").dataCapacity);
+            // the padding is still there to grow into
+            RecordsFileMetrics metrics = recordsFile.getMetrics();
+            long pointer = recordsFile.memIndex.get("a").dataPointer;
+            recordsFile.updateRecord(filledRecord("a", 150, (byte)3));
+            recordsFile.updateRecord(filledRecord("b", 150, (byte)4));
+            Assert.assertEquals(0, metrics.getInPlaceGrowths());
+            Assert.assertEquals(12, metrics.getAllocations());
+            Assert.assertEquals(pointer, recordsFile.memIndex.get("a").dataPointer);
+            // capacity beyond the padding, here left by a record which shrank, is still reused
+            recordsFile.updateRecord(filledRecord("small0", 60, (byte)5));
+            recordsFile.updateRecord(filledRecord("small0", 1, (byte)5));
+            long small0 = recordsFile.memIndex.get("small0").dataPointer;
+            recordsFile.insertRecord(filledRecord("reused", 40, (byte)6));
+            Assert.assertEquals(1, metrics.getFreeSpaceAllocations());
+            Assert.assertTrue(recordsFile.memIndex.get("reused").dataPointer > small0);
+            Assert.assertTrue(recordsFile.memIndex.get("reused").dataPointer < small0 + 90);
+            Assert.assertArrayEquals(filledData(150, (byte)3), recordsFile.readRecord("a").getData());
+            Assert.assertArrayEquals(filledData(150, (byte)4), recordsFile.readRecord("b").getData());
+            Assert.assertArrayEquals(filledData(1, (byte)5), recordsFile.readRecord("small0").getData());
+            recordsFile.close();
+        }
+    }
+
+    /**
+     * Applies a random mix of inserts, updates and deletes and checks the file against
+     * an in-memory copy, both while it is open and after it has been reopened.
+     */
+    private void randomOperations(RecordsFileOptions options) throws IOException {
+        String path = new File(folder.getRoot(), "random.jdb").getPath();
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        Random random = new Random(42);
+        RecordsFile recordsFile = new RecordsFile(path, 4, options);
+        for (int i = 0; i < 2000; i++) {
+            String key = "key" + random.nextInt(200);
+            byte[] data = new byte[1 + random.nextInt(300)];
+            random.nextBytes(data);
+            RecordWriter rw = new RecordWriter(key);
+            rw.getOutputStream().write(data);
+            if (!expected.containsKey(key)) {
+                recordsFile.insertRecord(rw);
+                expected.put(key, data);
+            } else if (random.nextInt(3) == 0) {
+                recordsFile.deleteRecord(key);
+                expected.remove(key);
+            } else {
+                recordsFile.updateRecord(rw);
+                expected.put(key, data);
+            }
+        }
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+
+        recordsFile = new RecordsFile(path, "rw", options);
+        assertContents(expected, recordsFile);
+        recordsFile.close();
+    }
+
+    static void assertContents(Map<String, byte[]> expected, BaseRecordsFile recordsFile) throws IOException {
+        Assert.assertEquals(expected.size(), recordsFile.getNumRecords());
+        for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+            Assert.assertArrayEquals(e.getKey(), e.getValue(), recordsFile.readRecord(e.getKey()).getData());
+        }
+    }
+}